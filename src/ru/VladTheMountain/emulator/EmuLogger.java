@@ -23,16 +23,250 @@
  */
 package ru.VladTheMountain.emulator;
 
+import java.io.PrintStream;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
+ * Asynchronous logger of emulator events.
+ *
+ * Callers never wait for the output: records go into a bounded queue and a
+ * writer thread formats them and prints them in batches. When the queue is
+ * full, records are dropped and the number of dropped records is reported
+ * with the next batch. Messages are patterns with {@code {}} placeholders,
+ * filled in on the writer thread. Arguments are still evaluated, and
+ * primitives boxed, before the level is checked; hot call sites guard the
+ * call with {@link #isEnabled} so a disabled level costs a single check.
  *
  * @author VladTheMountain
  */
 public class EmuLogger {
 
-    public void log(Level lvl, String msg) {
-        System.out.println("[" + LocalTime.now() + "][Ocelot/" + lvl.getName() + "] " + msg);
+    /**
+     * Records kept waiting for the writer at most
+     */
+    public static final int QUEUE_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+
+    /**
+     * Sources of emulator log records, each can be switched off
+     */
+    public enum Category {
+        MACHINE, BEEP, FILESYSTEM, NETWORK, GPU, REPLAY
+    }
+
+    private final PrintStream out;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile int threshold = Level.INFO.intValue();
+    private volatile Set<Category> enabled = EnumSet.allOf(Category.class);
+    private volatile boolean closed;
+
+    /**
+     * Creates a logger printing to {@code System.out}, looked up for every
+     * batch so that redirecting it later is picked up
+     */
+    public EmuLogger() {
+        this(null);
+    }
+
+    /**
+     * @param stream where to print records to
+     */
+    public EmuLogger(PrintStream stream) {
+        out = stream;
+        writer = new Thread(this::write, "Ocelot logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param level records below this level are skipped
+     */
+    public void setLevel(Level level) {
+        threshold = level.intValue();
+    }
+
+    /**
+     * @param category source of records
+     * @param value {@code false} to skip records of {@code category}
+     */
+    public void setEnabled(Category category, boolean value) {
+        Set<Category> categories = EnumSet.noneOf(Category.class);
+        categories.addAll(enabled);
+        if (value) {
+            categories.add(category);
+        } else {
+            categories.remove(category);
+        }
+        enabled = categories;
+    }
+
+    /**
+     * @return {@code true} if records of this level and category are kept;
+     * check this before building costly arguments
+     */
+    public boolean isEnabled(Level level, Category category) {
+        return level.intValue() >= threshold && enabled.contains(category) && !(closed);
+    }
+
+    public void log(Level level, Category category, String message) {
+        if (isEnabled(level, category)) {
+            enqueue(new Record(level, category, message, null));
+        }
+    }
+
+    public void log(Level level, Category category, String pattern, Object arg) {
+        if (isEnabled(level, category)) {
+            enqueue(new Record(level, category, pattern, new Object[]{arg}));
+        }
+    }
+
+    public void log(Level level, Category category, String pattern, Object arg1, Object arg2) {
+        if (isEnabled(level, category)) {
+            enqueue(new Record(level, category, pattern, new Object[]{arg1, arg2}));
+        }
+    }
+
+    public void log(Level level, Category category, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(level, category)) {
+            enqueue(new Record(level, category, pattern, new Object[]{arg1, arg2, arg3}));
+        }
+    }
+
+    public void log(Level level, Category category, String pattern, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (isEnabled(level, category)) {
+            enqueue(new Record(level, category, pattern, new Object[]{arg1, arg2, arg3, arg4}));
+        }
+    }
+
+    /**
+     * @return records dropped so far because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Prints what's queued and stops the writer. Records logged afterwards
+     * are skipped.
+     */
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Record record) {
+        if (!(queue.offer(record))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writer thread body
+     */
+    private void write() {
+        List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder text = new StringBuilder(BATCH_SIZE * 80);
+        long reported = 0;
+        ZoneId zone = ZoneId.systemDefault();
+        while (!(closed) || !(queue.isEmpty())) {
+            Record first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                //Woken up by close()
+                first = queue.poll();
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            long lost = dropped.get();
+            if (lost != reported) {
+                text.append("[Ocelot] ").append(lost - reported).append(" log records dropped\n");
+                reported = lost;
+            }
+            for (Record record : batch) {
+                int start = text.length();
+                try {
+                    text.append('[').append(LocalTime.from(Instant.ofEpochMilli(record.millis).atZone(zone)))
+                            .append("][Ocelot/").append(record.level.getName()).append('/').append(record.category).append("] ");
+                    format(text, record.pattern, record.args);
+                } catch (RuntimeException ex) {
+                    //A bad record must not take the writer down with it
+                    text.setLength(start);
+                    text.append("[Ocelot] Unprintable log record: ").append(ex);
+                }
+                text.append('\n');
+            }
+            PrintStream stream = out == null ? System.out : out;
+            stream.print(text);
+            stream.flush();
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Appends {@code pattern} with each {@code {}} replaced by the next
+     * argument
+     */
+    static void format(StringBuilder text, String pattern, Object[] args) {
+        if (args == null) {
+            text.append(pattern);
+            return;
+        }
+        int from = 0;
+        for (Object arg : args) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            text.append(pattern, from, at);
+            try {
+                text.append(arg);
+            } catch (RuntimeException ex) {
+                text.append('<').append(ex.getClass().getSimpleName()).append(" in toString()>");
+            }
+            from = at + 2;
+        }
+        text.append(pattern, from, pattern.length());
+    }
+
+    /**
+     * A log call waiting for the writer
+     */
+    private static class Record {
+
+        private final long millis = System.currentTimeMillis();
+        private final Level level;
+        private final Category category;
+        private final String pattern;
+        private final Object[] args;
+
+        Record(Level recordLevel, Category recordCategory, String recordPattern, Object[] recordArgs) {
+            level = recordLevel;
+            category = recordCategory;
+            pattern = recordPattern;
+            args = recordArgs;
+        }
     }
 }
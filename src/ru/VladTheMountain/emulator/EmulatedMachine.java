@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.nio.file.Path;
+import totoro.ocelot.brain.entity.Case;
+import totoro.ocelot.brain.entity.HDDManaged;
+import totoro.ocelot.brain.entity.Screen;
+
+/**
+ * A computer built from a {@link MachineSetup}
+ *
+ * @author VladTheMountain
+ */
+public class EmulatedMachine {
+
+    private final Case computer;
+    private final Screen screen;
+    private final HDDManaged[] disks;
+
+    EmulatedMachine(Case computer, Screen screen, HDDManaged[] disks) {
+        this.computer = computer;
+        this.screen = screen;
+        this.disks = disks;
+    }
+
+    public Case getComputer() {
+        return computer;
+    }
+
+    public Screen getScreen() {
+        return screen;
+    }
+
+    public HDDManaged[] getDisks() {
+        return disks.clone();
+    }
+
+    /**
+     * Managed drives keep their contents in a directory named after the
+     * drive's address inside the workspace folder.
+     *
+     * @param workspaceDir folder the {@code Workspace} was created with
+     * @param index drive index as given to {@link MachineSetup#setDiskTiers}
+     * @return host folder backing the drive
+     */
+    public Path getDiskDirectory(Path workspaceDir, int index) {
+        return workspaceDir.resolve(disks[index].node().address());
+    }
+}
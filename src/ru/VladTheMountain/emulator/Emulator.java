@@ -23,17 +23,38 @@
  */
 package ru.VladTheMountain.emulator;
 
+import java.awt.CardLayout;
 import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics;
+import java.awt.event.ActionEvent;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import javax.swing.JComponent;
-import totoro.ocelot.brain.Ocelot;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import scala.collection.Iterator;
+import totoro.ocelot.brain.entity.Relay;
+import totoro.ocelot.brain.entity.Screen;
+import totoro.ocelot.brain.entity.traits.Entity;
 import totoro.ocelot.brain.event.BeepEvent;
 import totoro.ocelot.brain.event.BeepPatternEvent;
 import totoro.ocelot.brain.event.Event;
-import totoro.ocelot.brain.event.EventBus;
 import totoro.ocelot.brain.event.FileSystemActivityEvent;
 import totoro.ocelot.brain.event.MachineCrashEvent;
 import totoro.ocelot.brain.event.RelayActivityEvent;
@@ -50,6 +71,8 @@ import totoro.ocelot.brain.nbt.NBTTagCompound;
 import totoro.ocelot.brain.workspace.Workspace;
 
 /**
+ * Built-in emulator: runs any number of computers in one {@code Workspace}
+ * and one tick loop, and shows the screen of one of them at a time.
  *
  * @author VladTheMountain
  */
@@ -59,15 +82,40 @@ public class Emulator extends JComponent {
 
     //JComponent
     private Color back = Color.BLACK;
-    private Color fore = Color.WHITE;
-    private final int CHAR_WIDTH = 9;
-    private final int CHAR_HEIGHT = 22;
-    private final Font font = Font.getFont("Monospaced Plain 16");
+    private final CardLayout cards = new CardLayout();
     //Ocelot
     private Workspace world;
-    private NBTTagCompound emulation;
+    private NBTTagCompound emulation = new NBTTagCompound();
     //Custom
     private EmuLogger logger;
+    private final TickScheduler scheduler = new TickScheduler();
+    private final List<MachineSetup> setups = new ArrayList<>();
+    private final List<MachineView> views = new ArrayList<>();
+    private final Map<String, MachineView> screens = new ConcurrentHashMap<>();
+    private MachineView selected;
+    private boolean networked;
+    private TickScheduler.Tick tickListener;
+    private NBTTagCompound restored;
+    private MachineView workspaceView;
+    private final Queue<Runnable> betweenTicks = new ConcurrentLinkedQueue<>();
+    private final Queue<QueuedInput> inputs = new ConcurrentLinkedQueue<>();
+    //Simulation thread only
+    private long ticksRun;
+    private ReplayLog.Recorder recorder;
+    private ReplayLog replay;
+    private int replayIndex;
+    private final List<EventDispatcher.Subscription> subscriptions = new ArrayList<>();
+    private final AtomicBoolean ocelotAcquired = new AtomicBoolean();
+    //Simulation thread -> renderer handoff
+    private static final int FRAME_MILLIS = 16;
+    private volatile boolean renderOnEdt;
+    private Thread simulation;
+    private Timer frameTimer;
+    //Performance HUD
+    private final EmulatorMetrics metrics = new EmulatorMetrics();
+    private volatile EmulatorMetrics.Report lastReport;
+    private boolean hudVisible;
+    private Timer hudTimer;
 
     //Emulator-specific
     private Color[] colors = { //Data was taken from https://minecraft-ru.gamepedia.com/OpenComputers/Colors_API
@@ -96,6 +144,23 @@ public class Emulator extends JComponent {
      */
     public Emulator(Workspace workspace) {
         world = workspace;
+        logger = new EmuLogger();
+        setLayout(cards);
+        setBackground(back);
+    }
+
+    /**
+     * Launch emulator with a premade workspace and computers to build in it on
+     * start, all sharing one tick loop
+     *
+     * @param workspace Workspace to deploy
+     * @param machineSetups Hardware of the computers to add
+     */
+    public Emulator(Workspace workspace, MachineSetup... machineSetups) {
+        this(workspace);
+        for (MachineSetup machineSetup : machineSetups) {
+            addMachine(machineSetup);
+        }
     }
 
     /**
@@ -104,57 +169,485 @@ public class Emulator extends JComponent {
      * @param workspaceDir File to get workspace from
      */
     public Emulator(File workspaceDir) {
-        world = new Workspace(workspaceDir.toPath());
+        this(new Workspace(workspaceDir.toPath()));
         start();
     }
 
     /**
-     * What to do when emulation starting
+     * Adds a computer to build on start. Must be called before
+     * {@link #start()}, from the event dispatch thread once the emulator is
+     * displayed.
+     *
+     * @param machineSetup Hardware of the computer to add
+     * @return the view showing the computer's screen
+     */
+    public MachineView addMachine(MachineSetup machineSetup) {
+        String title = machineSetup.getName() != null ? machineSetup.getName() : "Computer " + (setups.size() + 1);
+        MachineView view = new MachineView(title);
+        setups.add(machineSetup);
+        addView(view);
+        return view;
+    }
+
+    /**
+     * Without computers to build, a loaded workspace is shown with all of its
+     * screens drawn into one view
+     */
+    private void addWorkspaceView() {
+        if (views.isEmpty()) {
+            workspaceView = new MachineView("Workspace");
+            addView(workspaceView);
+        }
+    }
+
+    private void addView(MachineView view) {
+        view.setInputListener((MachineInput input) -> {
+            if (replay == null) {
+                inputs.add(new QueuedInput(view, input));
+            }
+        });
+        view.setMetrics(metrics);
+        views.add(view);
+        add(view, String.valueOf(views.size() - 1));
+        if (views.size() == 1) {
+            selected = view;
+        }
+    }
+
+    /**
+     * Runs the emulation on its own thread, leaving the calling thread free.
+     * GPU calls are handed over to the event dispatch thread and painted once
+     * per frame.
+     */
+    public void launch() {
+        if (simulation != null) {
+            return;
+        }
+        renderOnEdt = true;
+        addWorkspaceView();
+        frameTimer = new Timer(FRAME_MILLIS, (ActionEvent e) -> {
+            drainViews();
+        });
+        frameTimer.start();
+        hudTimer = new Timer(1000, (ActionEvent e) -> {
+            lastReport = metrics.sample(scheduler.getTargetTps());
+            if (hudVisible) {
+                for (MachineView view : views) {
+                    view.setHud(lastReport.toLines());
+                }
+            }
+        });
+        hudTimer.start();
+        simulation = new Thread(this::start, "Ocelot simulation");
+        simulation.start();
+    }
+
+    /**
+     * What to do when emulation starting. Blocks until the emulation stops;
+     * see {@link #launch()} to run it in the background.
      */
     public void start() {
-        Ocelot.initialize();
-        //
+        if (ocelotAcquired.compareAndSet(false, true)) {
+            OcelotRuntime.acquire();
+        }
+        addWorkspaceView();
+        if (restored != null) {
+            world.load(restored);
+            for (MachineView view : views) {
+                if (view.getScreenAddress() != null) {
+                    screens.put(view.getScreenAddress(), view);
+                }
+            }
+            attachRestoredScreens();
+        }
+        Relay relay = null;
+        if (networked && setups.size() > 1) {
+            relay = world.add(new Relay());
+        }
+        for (int i = 0; i < setups.size(); i++) {
+            EmulatedMachine machine = setups.get(i).build(world);
+            views.get(i).bind(machine);
+            screens.put(machine.getScreen().node().address(), views.get(i));
+            if (relay != null) {
+                machine.getComputer().connect(relay);
+            }
+        }
+        for (MachineView view : views) {
+            if (view.getMachine() != null) {
+                view.getMachine().getComputer().turnOn();
+            }
+        }
+        subscribe();
+        // DO NOT MODIFY //
+        scheduler.run(() -> {
+            if (loop() != 1 || !(deliverInputs())) {
+                return false;
+            }
+            long started = System.nanoTime();
+            world.update();
+            metrics.tick(System.nanoTime() - started);
+            ticksRun++;
+            if (!(renderOnEdt)) {
+                drainViews();
+            }
+            Runnable task;
+            while ((task = betweenTicks.poll()) != null) {
+                task.run();
+            }
+            return true;
+        });
+        Runnable task;
+        while ((task = betweenTicks.poll()) != null) {
+            task.run();
+        }
+        stop();
+    }
 
+    /**
+     * Subscribes this emulator to ocelot-brain events. Does nothing if already
+     * subscribed.
+     */
+    private void subscribe() {
+        if (!(subscriptions.isEmpty())) {
+            return;
+        }
         //Event handlers
-        EventBus.listenTo(BeepEvent.class, (Event v1) -> {
-            BeepEvent event = (BeepEvent) v1;
-            logger.log(Level.INFO, "Computer beeped with " + event.frequency() + " Hz for " + event.duration());
-            return null;
+        subscriptions.add(EventDispatcher.subscribe(BeepEvent.class, (BeepEvent event) -> {
+            logger.log(Level.INFO, EmuLogger.Category.BEEP, "Computer beeped with {} Hz for {}", event.frequency(), event.duration());
+        }));
+        subscriptions.add(EventDispatcher.subscribe(BeepPatternEvent.class, (BeepPatternEvent event) -> {
+            logger.log(Level.INFO, EmuLogger.Category.BEEP, "Computer beeped with pattern {}", event.pattern());
+        }));
+        subscriptions.add(EventDispatcher.subscribe(FileSystemActivityEvent.class, (FileSystemActivityEvent event) -> {
+            logger.log(Level.FINE, EmuLogger.Category.FILESYSTEM, "Filesystem activity at {}", event.address());
+        }));
+        subscriptions.add(EventDispatcher.subscribe(MachineCrashEvent.class, (MachineCrashEvent event) -> {
+            if (!(runsMachine(event.address()))) {
+                //Another emulation in this JVM
+                return;
+            }
+            logger.log(Level.WARNING, EmuLogger.Category.MACHINE, "Machine crashed. Info:\n{}", event.message());
+            recordCrash(event.message());
+        }));
+        subscriptions.add(EventDispatcher.subscribe(RelayActivityEvent.class, (RelayActivityEvent event) -> {
+            logger.log(Level.FINE, EmuLogger.Category.NETWORK, "Relay activity at {}", event.relay());
+        }));
+        //GPU-related event handling
+        onGpuEvent(TextBufferCopyEvent.class, TextBufferCopyEvent::address, (MachineView view, TextBufferCopyEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Copied area {} at {} to {}:{}", event.width() + "x" + event.height(), event.x() + ":" + event.y(), event.x() + event.horizontalTranslation(), event.y() + event.verticalTranslation());
+            }
+            publish(view, GpuCommand.copy(event.x(), event.y(), event.width(), event.height(), event.horizontalTranslation(), event.verticalTranslation()));
         });
-        EventBus.listenTo(BeepPatternEvent.class, (Event v1) -> {
-            BeepPatternEvent event = (BeepPatternEvent) v1;
-            logger.log(Level.INFO, "Computer beeped with pattern " + event.pattern());
-            return null;
+        onGpuEvent(TextBufferFillEvent.class, TextBufferFillEvent::address, (MachineView view, TextBufferFillEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Filled area at {}:{} with size of {}", event.x(), event.y(), event.width() + "x" + event.height());
+            }
+            publish(view, GpuCommand.fill(event.x(), event.y(), event.width(), event.height(), event.value()));
         });
-        EventBus.listenTo(FileSystemActivityEvent.class, (Event v1) -> {
-            FileSystemActivityEvent event = (FileSystemActivityEvent) v1;
-            logger.log(Level.INFO, "Filesystem actvity at " + event.address());
-            return null;
+        onGpuEvent(TextBufferSetBackgroundColorEvent.class, TextBufferSetBackgroundColorEvent::address, (MachineView view, TextBufferSetBackgroundColorEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Background set to {}", event.color());
+            }
+            publish(view, GpuCommand.background(event.color()));
         });
-        EventBus.listenTo(MachineCrashEvent.class, (Event v1) -> {
-            MachineCrashEvent event = (MachineCrashEvent) v1;
-            logger.log(Level.WARNING, "Machine crashed. Info:\n" + event.message());
-            return null;
+        onGpuEvent(TextBufferSetColorDepthEvent.class, TextBufferSetColorDepthEvent::address, (MachineView view, TextBufferSetColorDepthEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Set color depth to {}", event.depth());
+            }
+            publish(view, GpuCommand.depth(event.depth()));
         });
-        EventBus.listenTo(RelayActivityEvent.class, (Event v1) -> {
-            RelayActivityEvent event = (RelayActivityEvent) v1;
-            logger.log(Level.INFO, "Relay activity at " + event.relay().toString());
-            return null;
+        onGpuEvent(TextBufferSetEvent.class, TextBufferSetEvent::address, (MachineView view, TextBufferSetEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Printed string {} at {}:{}", event.value(), event.x(), event.y());
+            }
+            publish(view, GpuCommand.set(event.x(), event.y(), event.value(), event.vertical()));
         });
-        // DO NOT MODIFY //
-        while (true) {
-            if (loop() != 1) {
-                break;
+        onGpuEvent(TextBufferSetForegroundColorEvent.class, TextBufferSetForegroundColorEvent::address, (MachineView view, TextBufferSetForegroundColorEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Foreground set to {}", event.color());
+            }
+            publish(view, GpuCommand.foreground(event.color()));
+        });
+        onGpuEvent(TextBufferSetPaletteColorEvent.class, TextBufferSetPaletteColorEvent::address, (MachineView view, TextBufferSetPaletteColorEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Set palette color {}", event.index());
+            }
+            publish(view, GpuCommand.palette(event.index(), event.color()));
+        });
+        onGpuEvent(TextBufferSetResolutionEvent.class, TextBufferSetResolutionEvent::address, (MachineView view, TextBufferSetResolutionEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Resolution is set to {}x{}", event.width(), event.height());
+            }
+            publish(view, GpuCommand.resolution(event.width(), event.height()));
+        });
+        onGpuEvent(TextBufferSetViewportEvent.class, TextBufferSetViewportEvent::address, (MachineView view, TextBufferSetViewportEvent event) -> {
+            if (logger.isEnabled(Level.FINE, EmuLogger.Category.GPU)) {
+                logger.log(Level.FINE, EmuLogger.Category.GPU, "Viewport is set to {}x{}", event.width(), event.height());
+            }
+            publish(view, GpuCommand.viewport(event.width(), event.height()));
+        });
+    }
+
+    /**
+     * Subscribes to a GPU event of this emulator's screens, timing the handler
+     *
+     * @param <T> event class
+     * @param type event class
+     * @param address gets the address of the screen an event came from
+     * @param handler called with the view showing that screen
+     */
+    private <T extends Event> void onGpuEvent(Class<T> type, Function<T, String> address, BiConsumer<MachineView, T> handler) {
+        int counter = metrics.addEventType(type.getSimpleName());
+        subscriptions.add(EventDispatcher.subscribe(type, (T event) -> {
+            long started = System.nanoTime();
+            MachineView view = viewFor(address.apply(event));
+            if (view != null) {
+                handler.accept(view, event);
+            }
+            metrics.event(counter, System.nanoTime() - started);
+        }));
+    }
+
+    /**
+     * @param address address of the screen an event came from
+     * @return the view showing that screen, or {@code null} if it isn't one
+     * of this emulator's
+     */
+    private MachineView viewFor(String address) {
+        MachineView view = screens.get(address);
+        return view != null ? view : workspaceView;
+    }
+
+    /**
+     * Hands a GPU call over to the renderer. Simulation thread only.
+     *
+     * @param view view showing the screen the call was made on
+     * @param command call to replay on the view's {@link ScreenBuffer}
+     */
+    private void publish(MachineView view, GpuCommand command) {
+        while (!(view.offer(command))) {
+            if (!(renderOnEdt)) {
+                //The simulation thread is the renderer as well
+                view.drain();
+            } else if (scheduler.isRunning()) {
+                //Let the renderer catch up rather than lose screen contents
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
             } else {
-                world.update();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replays the GPU calls published so far on every view. Renderer side
+     * only: the event dispatch thread after {@link #launch()}, the simulation
+     * thread otherwise.
+     */
+    private void drainViews() {
+        for (MachineView view : views) {
+            view.drain();
+        }
+        if (renderOnEdt && !(getSize().equals(getPreferredSize()))) {
+            setSize(getPreferredSize());
+            revalidate();
+        }
+    }
+
+    /**
+     * Freezes the whole emulation into a {@link WorkspaceSnapshot} file. While
+     * running, the snapshot is taken between two ticks.
+     *
+     * @param file snapshot to write
+     * @return completes once the file is written
+     */
+    public CompletableFuture<Void> snapshot(Path file) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                NBTTagCompound nbt = new NBTTagCompound();
+                world.save(nbt);
+                WorkspaceSnapshot.write(file, nbt, world.path(), captureScreens());
+                result.complete(null);
+            } catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        };
+        if (scheduler.isRunning()) {
+            betweenTicks.add(task);
+        } else {
+            task.run();
+        }
+        return result;
+    }
+
+    /**
+     * Saves the screens as of the end of the current tick. The renderer has to
+     * catch up first, so after {@link #launch()} this waits for the event
+     * dispatch thread.
+     */
+    private byte[] captureScreens() throws IOException {
+        if (!(renderOnEdt) || SwingUtilities.isEventDispatchThread()) {
+            drainViews();
+            return WorkspaceSnapshot.writeScreens(views);
+        }
+        CompletableFuture<byte[]> screensState = new CompletableFuture<>();
+        SwingUtilities.invokeLater(() -> {
+            try {
+                drainViews();
+                screensState.complete(WorkspaceSnapshot.writeScreens(views));
+            } catch (IOException | RuntimeException ex) {
+                screensState.completeExceptionally(ex);
+            }
+        });
+        while (true) {
+            try {
+                return screensState.get(50, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                if (!(scheduler.isRunning())) {
+                    //exit() may be waiting for this thread on the EDT
+                    throw new IOException("Emulation stopped while taking a snapshot");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while taking a snapshot", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Can't save screens", ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Continues the emulation from a {@link WorkspaceSnapshot} instead of
+     * building computers. Must be called before {@link #start()}, from the
+     * event dispatch thread once the emulator is displayed. The workspace
+     * folder is replaced with the saved one.
+     *
+     * @param file snapshot to read
+     * @throws IOException if the snapshot can't be read
+     */
+    public void restore(Path file) throws IOException {
+        WorkspaceSnapshot snapshot = WorkspaceSnapshot.read(file, world.path());
+        restored = snapshot.getWorkspace();
+        setups.clear();
+        views.clear();
+        removeAll();
+        workspaceView = null;
+        for (MachineView view : snapshot.getViews()) {
+            if (view.getScreenAddress() == null) {
+                workspaceView = view;
+            }
+            addView(view);
+        }
+        revalidate();
+    }
+
+    /**
+     * Records every input given to the computers into a {@link ReplayLog},
+     * starting from boot. Must be called before {@link #start()}.
+     *
+     * @param log file to record to
+     * @throws IOException if the log can't be created
+     */
+    public void record(Path log) throws IOException {
+        recorder = new ReplayLog.Recorder(log, scheduler.getTargetTps());
+    }
+
+    /**
+     * Boots the computers and gives them the inputs from a {@link ReplayLog}
+     * at the ticks they were recorded at, as fast as possible. The computers
+     * must be set up as they were for the recording; live input is ignored.
+     * Must be called before {@link #start()}.
+     *
+     * @param log recording to play
+     * @throws IOException if the log can't be read
+     */
+    public void replay(Path log) throws IOException {
+        replay = ReplayLog.read(log);
+        replayIndex = 0;
+        scheduler.setUnthrottled(true);
+    }
+
+    /**
+     * Gives the inputs due before the coming update to the screens
+     *
+     * @return {@code false} once a replay is over
+     */
+    private boolean deliverInputs() {
+        if (replay != null) {
+            List<ReplayLog.Entry> entries = replay.getEntries();
+            while (replayIndex < entries.size() && entries.get(replayIndex).getTick() <= ticksRun) {
+                ReplayLog.Entry entry = entries.get(replayIndex++);
+                if (entry.getInput() != null && entry.getView() < views.size()) {
+                    give(views.get(entry.getView()), entry.getInput());
+                } else if (entry.getCrash() != null) {
+                    logger.log(Level.INFO, EmuLogger.Category.REPLAY, "The recorded run crashed at tick {}:\n{}", entry.getTick(), entry.getCrash());
+                }
+            }
+            return replay.getEndTick() < 0 || ticksRun < replay.getEndTick();
+        }
+        QueuedInput queued;
+        while ((queued = inputs.poll()) != null) {
+            give(queued.view, queued.input);
+            if (recorder != null) {
                 try {
-                    Thread.sleep(50);
-                } catch (InterruptedException ex) {
-                    System.out.println("[" + Emulator.class.getName() + "]" + ex.getMessage());
+                    recorder.input(ticksRun, views.indexOf(queued.view), queued.input);
+                } catch (IOException ex) {
+                    stopRecording(ex);
                 }
             }
         }
-        stop();
+        return true;
+    }
+
+    private void give(MachineView view, MachineInput input) {
+        if (view.getScreen() != null) {
+            input.applyTo(view.getScreen());
+        }
+    }
+
+    /**
+     * Gives the views restored from a snapshot their screens back, by
+     * address, once the workspace is loaded
+     */
+    private void attachRestoredScreens() {
+        Iterator<Entity> entities = world.getEntitiesIter();
+        while (entities.hasNext()) {
+            Entity entity = entities.next();
+            if (entity instanceof Screen) {
+                MachineView view = screens.get(((Screen) entity).node().address());
+                if (view != null) {
+                    view.attach((Screen) entity);
+                }
+            }
+        }
+        for (MachineView view : views) {
+            if (view.getScreenAddress() != null && view.getScreen() == null) {
+                logger.log(Level.WARNING, EmuLogger.Category.REPLAY, "Screen {} wasn't restored, input to it is dropped", view.getScreenAddress());
+            }
+        }
+    }
+
+    private void recordCrash(String message) {
+        if (replay != null) {
+            logger.log(Level.INFO, EmuLogger.Category.REPLAY, "Crashed at tick {}", ticksRun);
+        } else if (recorder != null) {
+            try {
+                recorder.crash(ticksRun, message);
+            } catch (IOException ex) {
+                stopRecording(ex);
+            }
+        }
+    }
+
+    private void stopRecording(IOException cause) {
+        logger.log(Level.WARNING, EmuLogger.Category.REPLAY, "Replay log stopped: {}", cause.getMessage());
+        try {
+            recorder.close();
+        } catch (IOException ex) {
+            //Already failing
+        }
+        recorder = null;
     }
 
     /**
@@ -163,7 +656,9 @@ public class Emulator extends JComponent {
      * @return status of performed operation
      */
     private int loop() {
-
+        if (tickListener != null && !(tickListener.tick())) {
+            return 0;
+        }
         return 1;
     }
 
@@ -171,74 +666,172 @@ public class Emulator extends JComponent {
      * What to do when stopping the emulation
      */
     private void stop() {
+        if (recorder != null) {
+            try {
+                recorder.end(ticksRun);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, EmuLogger.Category.REPLAY, "Replay log not finished: {}", ex.getMessage());
+            }
+            recorder = null;
+        }
 
         // DO NOT MODIFY //
         world.save(emulation);
     }
 
+    /**
+     * Stops the emulation and drops all event subscriptions of this emulator
+     */
     public void exit() {
-        stop();
-        Ocelot.shutdown();
+        for (EventDispatcher.Subscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+        subscriptions.clear();
+        scheduler.stop();
+        if (frameTimer != null) {
+            frameTimer.stop();
+            hudTimer.stop();
+        }
+        if (simulation != null && simulation != Thread.currentThread()) {
+            try {
+                simulation.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ocelotAcquired.compareAndSet(true, false)) {
+            OcelotRuntime.release();
+        }
+        logger.close();
+    }
+
+    /**
+     * @return the logger of this emulator's events, to change the level or
+     * switch categories off
+     */
+    public EmuLogger getLogger() {
+        return logger;
     }
 
     /**
-     * GPU-related event handling
+     * @return the scheduler driving {@code Workspace} updates, used to change
+     * the tick rate or to run unthrottled
+     */
+    public TickScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the first computer built from a {@link MachineSetup} on start,
+     * or {@code null}
+     */
+    public EmulatedMachine getMachine() {
+        return views.isEmpty() ? null : views.get(0).getMachine();
+    }
+
+    /**
+     * @param address address of a computer
+     * @return whether the computer is one of this emulator's. Computers
+     * restored from a snapshot aren't bound to a view, so while there are
+     * any every address is taken as ours.
+     */
+    private boolean runsMachine(String address) {
+        for (MachineView view : views) {
+            EmulatedMachine machine = view.getMachine();
+            if (machine == null || machine.getComputer().node().address().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return views of all computers, in the order they were added
+     */
+    public List<MachineView> getViews() {
+        return Collections.unmodifiableList(views);
+    }
+
+    /**
+     * Shows another computer's screen
      *
-     * @param gr
-     */
-    @Override
-    public void paintComponent(Graphics gr) {
-        super.paintComponent(gr);
-        EventBus.listenTo(TextBufferCopyEvent.class, (Event v1) -> {
-            TextBufferCopyEvent event = (TextBufferCopyEvent) v1;
-            logger.log(Level.INFO, "GPU: Copied area " + event.width() + "x" + event.height() + "at" + event.x() + ":" + event.y() + " to " + (event.x() + event.horizontalTranslation()) + ":" + (event.y() + event.verticalTranslation()));
-            gr.copyArea(event.x(), event.y(), event.width(), event.height(), event.x() + event.horizontalTranslation(), event.y() + event.verticalTranslation());
-            return null;
-        });
-        EventBus.listenTo(TextBufferFillEvent.class, (Event v1) -> {
-            TextBufferFillEvent event = (TextBufferFillEvent) v1;
-            logger.log(Level.INFO, "GPU: Filled area at " + event.x() + ":" + event.y() + " with size of " + event.width() + "x" + event.height());
-            gr.fillRect(event.x(), event.y(), event.width(), event.height());
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetBackgroundColorEvent.class, (Event v1) -> {
-            TextBufferSetBackgroundColorEvent event = (TextBufferSetBackgroundColorEvent) v1;
-            logger.log(Level.INFO, "GPU: Background set to " + event.color());
-            this.setBackground(new Color(event.color()));
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetColorDepthEvent.class, (Event v1) -> {
-            TextBufferSetColorDepthEvent event = (TextBufferSetColorDepthEvent) v1;
-            logger.log(Level.INFO, "GPU: Set color depth to " + event.depth());
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetEvent.class, (Event v1) -> {
-            TextBufferSetEvent event = (TextBufferSetEvent) v1;
-            logger.log(Level.INFO, "GPU: Printed string " + event.value() + " at " + event.x() + ":" + event.y());
-            gr.drawString(event.value(), event.x() * this.CHAR_WIDTH, event.y() * this.CHAR_HEIGHT);
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetForegroundColorEvent.class, (Event v1) -> {
-            TextBufferSetForegroundColorEvent event = (TextBufferSetForegroundColorEvent) v1;
-            logger.log(Level.INFO, "GPU: Foreground set to " + event.color());
-            gr.setColor(new Color(event.color()));
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetPaletteColorEvent.class, (Event v1) -> {
-            TextBufferSetPaletteColorEvent event = (TextBufferSetPaletteColorEvent) v1;
-            logger.log(Level.INFO, "GPU: Set palette color " + event.index());
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetResolutionEvent.class, (Event v1) -> {
-            TextBufferSetResolutionEvent event = (TextBufferSetResolutionEvent) v1;
-            logger.log(Level.INFO, "GPU: Resolution is set to " + event.width() + "x" + event.height());
-            this.setSize(event.width() * this.CHAR_WIDTH, event.height() * this.CHAR_HEIGHT);
-            return null;
-        });
-        EventBus.listenTo(TextBufferSetViewportEvent.class, (Event v1) -> {
-            TextBufferSetViewportEvent event = (TextBufferSetViewportEvent) v1;
-            // TODO
-            return null;
-        });
+     * @param index view index, as in {@link #getViews()}
+     */
+    public void setSelectedView(int index) {
+        selected = views.get(index);
+        cards.show(this, String.valueOf(index));
+    }
+
+    public MachineView getSelectedView() {
+        return selected;
+    }
+
+    /**
+     * Shows or hides the performance overlay on the views. Event dispatch
+     * thread only.
+     *
+     * @param value whether to show the overlay
+     */
+    public void setHudVisible(boolean value) {
+        hudVisible = value;
+        for (MachineView view : views) {
+            view.setHud(value && lastReport != null ? lastReport.toLines() : null);
+        }
+    }
+
+    public boolean isHudVisible() {
+        return hudVisible;
+    }
+
+    /**
+     * @return timing of this emulator, recorded as it runs
+     */
+    public EmulatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return metrics of the last full second after {@link #launch()}, or
+     * {@code null}
+     */
+    public EmulatorMetrics.Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * @param value whether to connect all computers to one relay on start, so
+     * that machines with a network card can talk to each other
+     */
+    public void setNetworked(boolean value) {
+        networked = value;
+    }
+
+    /**
+     * @param listener called before every {@code Workspace} update, returning
+     * {@code false} stops the emulation
+     */
+    public void setTickListener(TickScheduler.Tick listener) {
+        tickListener = listener;
+    }
+
+    /**
+     * @return model of the first computer's screen
+     */
+    public ScreenBuffer getScreenBuffer() {
+        return views.isEmpty() ? null : views.get(0).getScreenBuffer();
+    }
+
+    /**
+     * Input waiting for the simulation thread
+     */
+    private static final class QueuedInput {
+
+        private final MachineView view;
+        private final MachineInput input;
+
+        QueuedInput(MachineView view, MachineInput input) {
+            this.view = view;
+            this.input = input;
+        }
     }
 }
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing of an emulator: how long {@code Workspace} updates, event handling
+ * and painting take, and how many events of each type arrive.
+ *
+ * Measurements are recorded from the simulation and painting threads as they
+ * happen. {@link #sample()} closes the current interval and returns a
+ * {@link Report} of it, for the HUD or for export.
+ *
+ * @author VladTheMountain
+ */
+public class EmulatorMetrics {
+
+    private static final int MAX_EVENT_TYPES = 32;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final LatencyHistogram tickTimes = new LatencyHistogram();
+    private final LatencyHistogram paintTimes = new LatencyHistogram();
+    private final List<String> eventTypes = new CopyOnWriteArrayList<>();
+    private final AtomicLongArray eventCounts = new AtomicLongArray(MAX_EVENT_TYPES);
+    private final AtomicLong dispatchNanos = new AtomicLong();
+    private final AtomicLong ticks = new AtomicLong();
+    private long intervalStart = System.nanoTime();
+
+    /**
+     * Makes up a counter for an event type
+     *
+     * @param name event type shown in reports
+     * @return counter index for {@link #event}
+     */
+    public synchronized int addEventType(String name) {
+        int index = eventTypes.indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        if (eventTypes.size() == MAX_EVENT_TYPES) {
+            throw new IllegalStateException("Too many event types");
+        }
+        eventTypes.add(name);
+        return eventTypes.size() - 1;
+    }
+
+    /**
+     * @param nanos time a {@code Workspace} update took
+     */
+    public void tick(long nanos) {
+        tickTimes.record(nanos);
+        ticks.incrementAndGet();
+    }
+
+    /**
+     * @param type counter index from {@link #addEventType}
+     * @param nanos time spent handling the event
+     */
+    public void event(int type, long nanos) {
+        eventCounts.incrementAndGet(type);
+        dispatchNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param nanos time a paint of the screen took
+     */
+    public void paint(long nanos) {
+        paintTimes.record(nanos);
+    }
+
+    /**
+     * Closes the current interval
+     *
+     * @param targetTps tick rate the scheduler aims for
+     * @return what happened since the previous call
+     */
+    public synchronized Report sample(double targetTps) {
+        long now = System.nanoTime();
+        long[] events = new long[eventTypes.size()];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = eventCounts.getAndSet(i, 0);
+        }
+        Report report = new Report(now - intervalStart, targetTps, ticks.getAndSet(0), tickTimes.takeInterval(),
+                paintTimes.takeInterval(), new ArrayList<>(eventTypes), events, dispatchNanos.getAndSet(0));
+        intervalStart = now;
+        return report;
+    }
+
+    /**
+     * Metrics of one interval
+     */
+    public static final class Report {
+
+        private final long nanos;
+        private final double targetTps;
+        private final long ticks;
+        private final LatencyHistogram tickTimes;
+        private final LatencyHistogram paintTimes;
+        private final List<String> eventTypes;
+        private final long[] events;
+        private final long dispatchNanos;
+
+        Report(long nanos, double targetTps, long ticks, LatencyHistogram tickTimes, LatencyHistogram paintTimes, List<String> eventTypes, long[] events, long dispatchNanos) {
+            this.nanos = nanos;
+            this.targetTps = targetTps;
+            this.ticks = ticks;
+            this.tickTimes = tickTimes;
+            this.paintTimes = paintTimes;
+            this.eventTypes = eventTypes;
+            this.events = events;
+            this.dispatchNanos = dispatchNanos;
+        }
+
+        /**
+         * @return ticks actually run per wall-clock second
+         */
+        public double getTps() {
+            return nanos == 0 ? 0 : ticks * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        public double getTargetTps() {
+            return targetTps;
+        }
+
+        /**
+         * @return durations of the {@code Workspace} updates
+         */
+        public LatencyHistogram getTickTimes() {
+            return tickTimes;
+        }
+
+        /**
+         * @return durations of screen paints
+         */
+        public LatencyHistogram getPaintTimes() {
+            return paintTimes;
+        }
+
+        /**
+         * @param type event type, as given to {@link #addEventType}
+         * @return average number of events of the type per tick
+         */
+        public double getEventsPerTick(String type) {
+            int index = eventTypes.indexOf(type);
+            return index < 0 || index >= events.length || ticks == 0 ? 0 : (double) events[index] / ticks;
+        }
+
+        /**
+         * @return average time spent in event handlers per tick
+         */
+        public long getDispatchNanosPerTick() {
+            return ticks == 0 ? 0 : dispatchNanos / ticks;
+        }
+
+        /**
+         * @return short lines for the on-screen HUD
+         */
+        public List<String> toLines() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format(Locale.ROOT, "TPS %.1f / %.1f (%.0f%%)", getTps(), targetTps, getTps() * 100 / targetTps));
+            lines.add("tick   " + percentiles(tickTimes));
+            lines.add(String.format(Locale.ROOT, "events %s/tick", millis(getDispatchNanosPerTick())));
+            for (int i = 0; i < events.length; i++) {
+                if (events[i] != 0) {
+                    lines.add(String.format(Locale.ROOT, "  %-24s %8.1f/tick", eventTypes.get(i), (double) events[i] / Math.max(1, ticks)));
+                }
+            }
+            lines.add("paint  " + percentiles(paintTimes));
+            return lines;
+        }
+
+        private static String percentiles(LatencyHistogram histogram) {
+            StringBuilder sb = new StringBuilder();
+            for (double p : PERCENTILES) {
+                sb.append('p').append(p == (long) p ? String.valueOf((long) p) : String.valueOf(p)).append(' ')
+                        .append(millis(histogram.getValueAtPercentile(p))).append("  ");
+            }
+            return sb.append("max ").append(millis(histogram.getMax())).toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+        }
+
+        /**
+         * Writes the report in the Prometheus text format
+         *
+         * @param out target
+         * @throws IOException
+         */
+        public void export(Appendable out) throws IOException {
+            out.append(String.format(Locale.ROOT, "oclide_emulator_tps %f%n", getTps()));
+            out.append(String.format(Locale.ROOT, "oclide_emulator_target_tps %f%n", targetTps));
+            exportHistogram(out, "oclide_emulator_tick_seconds", tickTimes);
+            exportHistogram(out, "oclide_emulator_paint_seconds", paintTimes);
+            out.append(String.format(Locale.ROOT, "oclide_emulator_dispatch_seconds_per_tick %.9f%n", getDispatchNanosPerTick() / 1e9));
+            for (int i = 0; i < events.length; i++) {
+                out.append(String.format(Locale.ROOT, "oclide_emulator_events_per_tick{type=\"%s\"} %f%n", eventTypes.get(i), (double) events[i] / Math.max(1, ticks)));
+            }
+        }
+
+        private static void exportHistogram(Appendable out, String name, LatencyHistogram histogram) throws IOException {
+            for (double p : PERCENTILES) {
+                out.append(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.9f%n", name, p / 100, histogram.getValueAtPercentile(p) / 1e9));
+            }
+            out.append(String.format(Locale.ROOT, "%s_count %d%n", name, histogram.getCount()));
+            out.append(String.format(Locale.ROOT, "%s_max %.9f%n", name, histogram.getMax() / 1e9));
+        }
+    }
+}
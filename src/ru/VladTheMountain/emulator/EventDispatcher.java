@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import totoro.ocelot.brain.event.Event;
+import totoro.ocelot.brain.event.EventBus;
+
+/**
+ * Process-wide bridge to ocelot-brain's {@link EventBus}.
+ *
+ * {@code EventBus} listeners can't be removed, so every event class is
+ * registered there only once and fanned out to the listeners subscribed
+ * here. Subscriptions are cancelled when their owner goes away, keeping the
+ * number of listeners flat no matter how many emulators were opened.
+ *
+ * @author VladTheMountain
+ */
+public final class EventDispatcher {
+
+    private static final Map<Class<?>, CopyOnWriteArrayList<Consumer<Event>>> LISTENERS = new ConcurrentHashMap<>();
+
+    private EventDispatcher() {
+    }
+
+    /**
+     * Starts delivering events of {@code type} to {@code listener}
+     *
+     * @param <T> event class
+     * @param type event class
+     * @param listener event handler
+     * @return handle to cancel the subscription with
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Event> Subscription subscribe(Class<T> type, Consumer<? super T> listener) {
+        CopyOnWriteArrayList<Consumer<Event>> list = LISTENERS.computeIfAbsent(type, (Class<?> t) -> {
+            CopyOnWriteArrayList<Consumer<Event>> created = new CopyOnWriteArrayList<>();
+            EventBus.listenTo(type, (Event v1) -> {
+                for (Consumer<Event> l : created) {
+                    l.accept(v1);
+                }
+                return null;
+            });
+            return created;
+        });
+        Consumer<Event> wrapped = (Consumer<Event>) listener;
+        list.add(wrapped);
+        return () -> list.remove(wrapped);
+    }
+
+    /**
+     * @param type event class
+     * @return number of listeners currently subscribed to {@code type}
+     */
+    public static int getListenerCount(Class<? extends Event> type) {
+        CopyOnWriteArrayList<Consumer<Event>> list = LISTENERS.get(type);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Handle returned by {@link #subscribe}
+     */
+    @FunctionalInterface
+    public interface Subscription {
+
+        void cancel();
+    }
+}
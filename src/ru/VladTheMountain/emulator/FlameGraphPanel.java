@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.JComponent;
+import javax.swing.ToolTipManager;
+
+/**
+ * Flame graph of a {@link LuaProfile}, outermost frames on top.
+ *
+ * Frame widths are proportional to the CPU time spent in them. Clicking a
+ * frame zooms into it, clicking the top row zooms back out one level.
+ *
+ * @author VladTheMountain
+ */
+public class FlameGraphPanel extends JComponent {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int ROW_HEIGHT = 18;
+    private static final int MIN_WIDTH = 2;
+
+    private final Font font = new Font(Font.SANS_SERIF, Font.PLAIN, 11);
+    private final Frame root = new Frame("all", null);
+    private Frame zoom = root;
+
+    /**
+     * @param profile profile to draw
+     */
+    public FlameGraphPanel(LuaProfile profile) {
+        int depth = 0;
+        for (Map.Entry<String, Long> stack : profile.getStacks().entrySet()) {
+            Frame frame = root;
+            frame.micros += stack.getValue();
+            String[] names = stack.getKey().isEmpty() ? new String[0] : stack.getKey().split(";");
+            for (String name : names) {
+                frame = frame.child(name);
+                frame.micros += stack.getValue();
+            }
+            depth = Math.max(depth, names.length);
+        }
+        setPreferredSize(new Dimension(900, (depth + 1) * ROW_HEIGHT));
+        setOpaque(true);
+        ToolTipManager.sharedInstance().registerComponent(this);
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                Frame frame = frameAt(e.getX(), e.getY());
+                if (frame == zoom && zoom.parent != null) {
+                    zoom = zoom.parent;
+                } else if (frame != null) {
+                    zoom = frame;
+                }
+                repaint();
+            }
+        });
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        Frame frame = frameAt(e.getX(), e.getY());
+        if (frame == null || root.micros == 0) {
+            return null;
+        }
+        return String.format("%s: %.1f ms (%.1f%%)", frame.name, frame.micros / 1000.0, frame.micros * 100.0 / root.micros);
+    }
+
+    @Override
+    protected void paintComponent(Graphics gr) {
+        gr.setColor(getBackground() == null ? Color.WHITE : getBackground());
+        gr.fillRect(0, 0, getWidth(), getHeight());
+        if (zoom.micros == 0) {
+            return;
+        }
+        gr.setFont(font);
+        paintFrame(gr, gr.getFontMetrics(), zoom, 0, getWidth(), 0);
+    }
+
+    private void paintFrame(Graphics gr, FontMetrics fm, Frame frame, double x, double width, int depth) {
+        int left = (int) x;
+        int right = (int) (x + width);
+        int y = depth * ROW_HEIGHT;
+        gr.setColor(color(frame.name));
+        gr.fillRect(left, y, Math.max(1, right - left - 1), ROW_HEIGHT - 1);
+        if (right - left > 20) {
+            gr.setColor(Color.BLACK);
+            String label = frame.name;
+            int room = right - left - 6;
+            while (!(label.isEmpty()) && fm.stringWidth(label) > room) {
+                label = label.substring(0, label.length() - 1);
+            }
+            gr.drawString(label, left + 3, y + (ROW_HEIGHT + fm.getAscent() - fm.getDescent()) / 2);
+        }
+        double childX = x;
+        for (Frame child : frame.children.values()) {
+            double childWidth = width * child.micros / frame.micros;
+            if (childWidth >= MIN_WIDTH) {
+                paintFrame(gr, fm, child, childX, childWidth, depth + 1);
+            }
+            childX += childWidth;
+        }
+    }
+
+    /**
+     * @return the frame painted at the given point, or {@code null}
+     */
+    private Frame frameAt(int px, int py) {
+        if (zoom.micros == 0 || px < 0 || px >= getWidth()) {
+            return null;
+        }
+        int row = py / ROW_HEIGHT;
+        Frame frame = zoom;
+        double x = 0;
+        double width = getWidth();
+        for (int depth = 0; depth < row; depth++) {
+            Frame hit = null;
+            double childX = x;
+            for (Frame child : frame.children.values()) {
+                double childWidth = width * child.micros / frame.micros;
+                if (px >= childX && px < childX + childWidth) {
+                    hit = child;
+                    x = childX;
+                    width = childWidth;
+                    break;
+                }
+                childX += childWidth;
+            }
+            if (hit == null || width < MIN_WIDTH) {
+                return null;
+            }
+            frame = hit;
+        }
+        return frame;
+    }
+
+    /**
+     * @return a warm colour that stays the same for a function across
+     * repaints and profiles
+     */
+    private static Color color(String name) {
+        int hash = name.hashCode();
+        return new Color(205 + (hash & 0x31), 80 + ((hash >>> 8) & 0x7f), 40 + ((hash >>> 16) & 0x1f));
+    }
+
+    /**
+     * Node of the merged call tree
+     */
+    private static class Frame {
+
+        private final String name;
+        private final Frame parent;
+        private final Map<String, Frame> children = new LinkedHashMap<>();
+        private long micros;
+
+        Frame(String frameName, Frame parentFrame) {
+            name = frameName;
+            parent = parentFrame;
+        }
+
+        Frame child(String childName) {
+            return children.computeIfAbsent(childName, (String key) -> new Frame(key, this));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of pre-rendered screen cells.
+ *
+ * Each slot of a single texture holds one character already drawn in one
+ * colour pair, background included, so painting a cell is a plain image copy
+ * instead of a font shaping call. Slots are keyed by codepoint and the packed
+ * palette indices used by {@link ScreenBuffer}; when the texture is full the
+ * least recently drawn slot gets reused.
+ *
+ * Not thread-safe, meant to be used while painting only.
+ *
+ * @author VladTheMountain
+ */
+public class GlyphAtlas {
+
+    private static final int COLUMNS = 64;
+    private static final int ROWS = 64;
+
+    private final Font font;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int baseline;
+    private final BufferedImage texture;
+    private final Graphics2D painter;
+    private final LinkedHashMap<Long, Integer> slots;
+    private final int[] palette = new int[256];
+    private final char[] glyph = new char[2];
+    private int nextSlot;
+
+    /**
+     * @param font font to render glyphs with
+     * @param cellWidth cell width in pixels
+     * @param cellHeight cell height in pixels
+     * @param palette initial palette, see {@link ScreenBuffer#getPalette()}
+     */
+    public GlyphAtlas(Font font, int cellWidth, int cellHeight, int[] palette) {
+        this.font = font;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.texture = new BufferedImage(COLUMNS * cellWidth, ROWS * cellHeight, BufferedImage.TYPE_INT_RGB);
+        this.painter = texture.createGraphics();
+        painter.setFont(font);
+        painter.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        this.baseline = cellHeight - painter.getFontMetrics().getDescent();
+        this.slots = new LinkedHashMap<>(COLUMNS * ROWS, 0.75f, true);
+        setPalette(palette);
+    }
+
+    /**
+     * Replaces the palette, dropping all cached cells
+     *
+     * @param colors 256 RGB entries
+     */
+    public final void setPalette(int[] colors) {
+        System.arraycopy(colors, 0, palette, 0, palette.length);
+        slots.clear();
+        nextSlot = 0;
+        //Printable ASCII in the default colours is on nearly every screen
+        short white = (short) (ScreenBuffer.WHITE << 8 | ScreenBuffer.BLACK);
+        for (int c = 0x20; c < 0x7F; c++) {
+            slot(c, white);
+        }
+    }
+
+    /**
+     * Copies a cell from the texture
+     *
+     * @param g target
+     * @param codepoint character
+     * @param color packed palette indices, foreground in the high byte
+     * @param x left edge in pixels
+     * @param y top edge in pixels
+     */
+    public void draw(Graphics g, int codepoint, short color, int x, int y) {
+        int slot = slot(codepoint, color);
+        int sx = slot % COLUMNS * cellWidth;
+        int sy = slot / COLUMNS * cellHeight;
+        g.drawImage(texture, x, y, x + cellWidth, y + cellHeight, sx, sy, sx + cellWidth, sy + cellHeight, null);
+    }
+
+    private int slot(int codepoint, short color) {
+        Long key = ((long) codepoint << 16) | (color & 0xFFFF);
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        if (nextSlot < COLUMNS * ROWS) {
+            slot = nextSlot++;
+        } else {
+            Iterator<Map.Entry<Long, Integer>> eldest = slots.entrySet().iterator();
+            slot = eldest.next().getValue();
+            eldest.remove();
+        }
+        render(slot, codepoint, color);
+        slots.put(key, slot);
+        return slot;
+    }
+
+    private void render(int slot, int codepoint, short color) {
+        int x = slot % COLUMNS * cellWidth;
+        int y = slot / COLUMNS * cellHeight;
+        painter.setClip(x, y, cellWidth, cellHeight);
+        painter.setColor(new Color(palette[color & 0xFF]));
+        painter.fillRect(x, y, cellWidth, cellHeight);
+        if (codepoint != ' ' && font.canDisplay(codepoint)) {
+            painter.setColor(new Color(palette[(color >> 8) & 0xFF]));
+            painter.drawChars(glyph, 0, Character.toChars(codepoint, glyph, 0), x, y + baseline);
+        }
+    }
+
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    public int getCellHeight() {
+        return cellHeight;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+/**
+ * A GPU call recorded by the simulation thread to be replayed on a
+ * {@link ScreenBuffer} by the renderer.
+ *
+ * Commands are plain immutable values, so ocelot-brain event objects never
+ * leave the simulation thread.
+ *
+ * @author VladTheMountain
+ */
+public final class GpuCommand {
+
+    /**
+     * Kind of a command, deciding which of its fields are used
+     */
+    public enum Type {
+        /**
+         * x, y, width, height, dx, dy
+         */
+        COPY,
+        /**
+         * x, y, width, height, value (codepoint)
+         */
+        FILL,
+        /**
+         * x, y, text, vertical
+         */
+        SET,
+        /**
+         * value (RGB)
+         */
+        FOREGROUND,
+        /**
+         * value (RGB)
+         */
+        BACKGROUND,
+        /**
+         * value (bits)
+         */
+        DEPTH,
+        /**
+         * x (index), value (RGB)
+         */
+        PALETTE,
+        /**
+         * width, height
+         */
+        RESOLUTION,
+        /**
+         * width, height
+         */
+        VIEWPORT
+    }
+
+    private final Type type;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final int dx;
+    private final int dy;
+    private final int value;
+    private final String text;
+    private final boolean vertical;
+
+    private GpuCommand(Type type, int x, int y, int width, int height, int dx, int dy, int value, String text, boolean vertical) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.dx = dx;
+        this.dy = dy;
+        this.value = value;
+        this.text = text;
+        this.vertical = vertical;
+    }
+
+    public static GpuCommand copy(int x, int y, int width, int height, int dx, int dy) {
+        return new GpuCommand(Type.COPY, x, y, width, height, dx, dy, 0, null, false);
+    }
+
+    public static GpuCommand fill(int x, int y, int width, int height, int codepoint) {
+        return new GpuCommand(Type.FILL, x, y, width, height, 0, 0, codepoint, null, false);
+    }
+
+    public static GpuCommand set(int x, int y, String text, boolean vertical) {
+        return new GpuCommand(Type.SET, x, y, 0, 0, 0, 0, 0, text, vertical);
+    }
+
+    public static GpuCommand foreground(int rgb) {
+        return new GpuCommand(Type.FOREGROUND, 0, 0, 0, 0, 0, 0, rgb, null, false);
+    }
+
+    public static GpuCommand background(int rgb) {
+        return new GpuCommand(Type.BACKGROUND, 0, 0, 0, 0, 0, 0, rgb, null, false);
+    }
+
+    public static GpuCommand depth(int bits) {
+        return new GpuCommand(Type.DEPTH, 0, 0, 0, 0, 0, 0, bits, null, false);
+    }
+
+    public static GpuCommand palette(int index, int rgb) {
+        return new GpuCommand(Type.PALETTE, index, 0, 0, 0, 0, 0, rgb, null, false);
+    }
+
+    public static GpuCommand resolution(int width, int height) {
+        return new GpuCommand(Type.RESOLUTION, 0, 0, width, height, 0, 0, 0, null, false);
+    }
+
+    public static GpuCommand viewport(int width, int height) {
+        return new GpuCommand(Type.VIEWPORT, 0, 0, width, height, 0, 0, 0, null, false);
+    }
+
+    /**
+     * Performs the command
+     *
+     * @param buffer screen to draw on
+     */
+    public void applyTo(ScreenBuffer buffer) {
+        switch (type) {
+            case COPY:
+                buffer.copy(x, y, width, height, dx, dy);
+                break;
+            case FILL:
+                buffer.fill(x, y, width, height, value);
+                break;
+            case SET:
+                buffer.set(x, y, text, vertical);
+                break;
+            case FOREGROUND:
+                buffer.setForeground(value);
+                break;
+            case BACKGROUND:
+                buffer.setBackground(value);
+                break;
+            case DEPTH:
+                buffer.setDepth(value);
+                break;
+            case PALETTE:
+                buffer.setPaletteColor(x, value);
+                break;
+            case RESOLUTION:
+                buffer.setResolution(width, height);
+                break;
+            case VIEWPORT:
+                buffer.setViewport(width, height);
+                break;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDx() {
+        return dx;
+    }
+
+    public int getDy() {
+        return dy;
+    }
+
+    /**
+     * @return codepoint, colour or depth, depending on the type
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean isVertical() {
+        return vertical;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Drops and merges redundant {@link GpuCommand}s of one frame before they
+ * reach the {@link ScreenBuffer}, without changing the resulting screen.
+ *
+ * <ul>
+ * <li>fills and sets whose cells are all overwritten by a later fill are
+ * dropped, unless a copy or resolution change in between could still read
+ * them;</li>
+ * <li>foreground and background changes not followed by any drawing before
+ * the next change of the same colour are dropped;</li>
+ * <li>sets continuing right where the previous one ended, in the same
+ * direction and colours, are merged into one.</li>
+ * </ul>
+ *
+ * Not thread-safe, used by the renderer only.
+ *
+ * @author VladTheMountain
+ */
+public class GpuCommandCoalescer {
+
+    /**
+     * Fills remembered as covering earlier commands. Older ones are forgotten,
+     * which only costs a missed drop.
+     */
+    private static final int MAX_COVERING_FILLS = 32;
+
+    private final List<GpuCommand> pending = new ArrayList<>();
+    private final List<Rectangle> covering = new ArrayList<>();
+    private final StringBuilder runText = new StringBuilder();
+    //Written by the renderer only, read by anyone
+    private volatile long commandsIn;
+    private volatile long commandsApplied;
+
+    /**
+     * Queues a command for the current frame
+     *
+     * @param command next command, in the order they were issued
+     */
+    public void add(GpuCommand command) {
+        pending.add(command);
+        commandsIn++;
+    }
+
+    /**
+     * Coalesces the queued commands and passes what is left on in order
+     *
+     * @param target receives the commands to apply
+     */
+    public void flush(Consumer<? super GpuCommand> target) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        dropCovered();
+        dropUnusedColors();
+        GpuCommand run = null;
+        int runLength = 0;
+        for (GpuCommand command : pending) {
+            if (command == null) {
+                continue;
+            }
+            if (run != null && continuesRun(run, runLength, command)) {
+                runText.append(command.getText());
+                runLength += length(command);
+                continue;
+            }
+            if (run != null) {
+                apply(target, endRun(run));
+                run = null;
+            }
+            if (command.getType() == GpuCommand.Type.SET) {
+                run = command;
+                runLength = length(command);
+                runText.setLength(0);
+                runText.append(command.getText());
+            } else {
+                apply(target, command);
+            }
+        }
+        if (run != null) {
+            apply(target, endRun(run));
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return whether {@code next} starts right where the run of sets begun
+     * by {@code run} ends
+     */
+    private static boolean continuesRun(GpuCommand run, int runLength, GpuCommand next) {
+        if (next.getType() != GpuCommand.Type.SET || next.isVertical() != run.isVertical()) {
+            return false;
+        }
+        return run.isVertical()
+                ? next.getX() == run.getX() && next.getY() == run.getY() + runLength
+                : next.getY() == run.getY() && next.getX() == run.getX() + runLength;
+    }
+
+    private GpuCommand endRun(GpuCommand run) {
+        if (runText.length() == run.getText().length()) {
+            return run;
+        }
+        return GpuCommand.set(run.getX(), run.getY(), runText.toString(), run.isVertical());
+    }
+
+    private void apply(Consumer<? super GpuCommand> target, GpuCommand command) {
+        target.accept(command);
+        commandsApplied++;
+    }
+
+    /**
+     * Walks the frame backwards, dropping draws hidden by a later fill
+     */
+    private void dropCovered() {
+        covering.clear();
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            GpuCommand command = pending.get(i);
+            switch (command.getType()) {
+                case COPY:
+                case RESOLUTION:
+                    //Reads or moves cells drawn before it
+                    covering.clear();
+                    break;
+                case FILL:
+                    Rectangle area = new Rectangle(command.getX(), command.getY(), command.getWidth(), command.getHeight());
+                    if (isCovered(area)) {
+                        pending.set(i, null);
+                    } else if (!(area.isEmpty())) {
+                        if (covering.size() == MAX_COVERING_FILLS) {
+                            covering.remove(0);
+                        }
+                        covering.add(area);
+                    }
+                    break;
+                case SET:
+                    if (isCovered(getArea(command))) {
+                        pending.set(i, null);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private boolean isCovered(Rectangle area) {
+        for (Rectangle fill : covering) {
+            if (fill.contains(area)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops colour changes overridden before anything was drawn with them
+     */
+    private void dropUnusedColors() {
+        int foreground = -1;
+        int background = -1;
+        for (int i = 0; i < pending.size(); i++) {
+            GpuCommand command = pending.get(i);
+            if (command == null) {
+                continue;
+            }
+            switch (command.getType()) {
+                case FOREGROUND:
+                    if (foreground >= 0) {
+                        pending.set(foreground, null);
+                    }
+                    foreground = i;
+                    break;
+                case BACKGROUND:
+                    if (background >= 0) {
+                        pending.set(background, null);
+                    }
+                    background = i;
+                    break;
+                case SET:
+                case FILL:
+                case RESOLUTION:
+                    //New cells are drawn with the current colours
+                    foreground = -1;
+                    background = -1;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static int length(GpuCommand set) {
+        return set.getText().codePointCount(0, set.getText().length());
+    }
+
+    private static Rectangle getArea(GpuCommand set) {
+        int length = length(set);
+        return set.isVertical()
+                ? new Rectangle(set.getX(), set.getY(), 1, length)
+                : new Rectangle(set.getX(), set.getY(), length, 1);
+    }
+
+    /**
+     * @return commands received since creation
+     */
+    public long getCommandsIn() {
+        return commandsIn;
+    }
+
+    /**
+     * @return commands passed on since creation
+     */
+    public long getCommandsApplied() {
+        return commandsApplied;
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
+import ru.VladTheMountain.oclide.util.FileClones;
+import totoro.ocelot.brain.event.MachineCrashEvent;
+import totoro.ocelot.brain.event.TextBufferSetEvent;
+import totoro.ocelot.brain.workspace.Workspace;
+
+/**
+ * Runs a project's {@code main.lua} on the built-in emulator without any
+ * window, ticking as fast as the host allows.
+ *
+ * The project is copied onto the first managed drive next to an
+ * {@code autorun.lua} wrapper. OpenOS runs the wrapper when it mounts the
+ * drive; the wrapper runs {@code main.lua}, prints the exit marker and shuts
+ * the machine down.
+ *
+ * With profiling on, the project's Lua files are instrumented by
+ * {@link LuaInstrumenter} and the wrapper dumps a {@link LuaProfile} next to
+ * them.
+ *
+ * Usage:
+ * {@code HeadlessRunner [--ticks N] [--profile] [--shards N] <project dir>...};
+ * {@code --profile} prints the profile dump after the output,
+ * {@code --shards} runs all projects at once, each on its own machine, spread
+ * over up to N parallel {@link ShardedHost} workspaces.
+ *
+ * @author VladTheMountain
+ */
+public class HeadlessRunner {
+
+    /**
+     * Exit status reported when the tick limit is reached
+     */
+    public static final int STATUS_TIMEOUT = 124;
+    /**
+     * Exit status reported when the machine crashes
+     */
+    public static final int STATUS_CRASH = 125;
+
+    private static final String EXIT_MARKER = "@@OCLIDE-EXIT ";
+    /**
+     * Name of the profile dump written next to the project files
+     */
+    public static final String PROFILE_FILE = ".oclide-profile";
+    /**
+     * Probe calls between two stack samples
+     */
+    private static final int PROFILE_EVERY = 32;
+    /**
+     * Samples between two profile dumps, so a run stopped at the tick limit
+     * still leaves a profile behind
+     */
+    private static final int PROFILE_FLUSH = 2000;
+    /**
+     * Memory readings kept; when full, every other one is dropped and the
+     * reading interval doubles
+     */
+    private static final int PROFILE_TIMELINE = 512;
+    /**
+     * Tables visited by the final heap walk at most
+     */
+    private static final int PROFILE_MAX_TABLES = 100000;
+    private static final String PROFILER
+            = "local profileFile = filesystem.concat(root, \"" + PROFILE_FILE + "\")\n"
+            + "local wrapperSource = \"@\" .. filesystem.concat(root, \"autorun.lua\")\n"
+            + "local clock, getinfo = os.clock, debug.getinfo\n"
+            + "local freeMemory, totalMemory = computer.freeMemory, computer.totalMemory\n"
+            + "local hits, samples, last = 0, 0, clock()\n"
+            + "local lastUsed = totalMemory() - freeMemory()\n"
+            + "local stacks, lines, allocations = {}, {}, {}\n"
+            + "local timeline, timelineEvery = {}, 1\n"
+            + "local function where(info)\n"
+            + "  local source = info.source or \"?\"\n"
+            + "  if source:sub(1, 1) == \"@\" then\n"
+            + "    source = source:sub(2)\n"
+            + "    if source:sub(1, #root + 1) == root .. \"/\" then\n"
+            + "      source = source:sub(#root + 2)\n"
+            + "    end\n"
+            + "  end\n"
+            + "  return source\n"
+            + "end\n"
+            + "local function add(map, key, amount)\n"
+            + "  local entry = map[key]\n"
+            + "  if not entry then\n"
+            + "    entry = {0, 0}\n"
+            + "    map[key] = entry\n"
+            + "  end\n"
+            + "  entry[1] = entry[1] + amount\n"
+            + "  entry[2] = entry[2] + 1\n"
+            + "end\n"
+            + "local function record(now, used, total)\n"
+            + "  if #timeline >= " + PROFILE_TIMELINE + " then\n"
+            + "    local kept = {}\n"
+            + "    for i = 1, #timeline, 2 do\n"
+            + "      kept[#kept + 1] = timeline[i]\n"
+            + "    end\n"
+            + "    timeline = kept\n"
+            + "    timelineEvery = timelineEvery * 2\n"
+            + "  end\n"
+            + "  timeline[#timeline + 1] = {now, used, total}\n"
+            + "end\n"
+            + "local function tableSizes()\n"
+            + "  local histogram, seen, queue, count = {}, {[_G] = true}, {_G}, 1\n"
+            + "  local i = 1\n"
+            + "  while i <= count and count < " + PROFILE_MAX_TABLES + " do\n"
+            + "    local t = queue[i]\n"
+            + "    i = i + 1\n"
+            + "    local size = 0\n"
+            + "    for k, v in next, t do\n"
+            + "      size = size + 1\n"
+            + "      if type(k) == \"table\" and not seen[k] then\n"
+            + "        seen[k] = true\n"
+            + "        count = count + 1\n"
+            + "        queue[count] = k\n"
+            + "      end\n"
+            + "      if type(v) == \"table\" and not seen[v] then\n"
+            + "        seen[v] = true\n"
+            + "        count = count + 1\n"
+            + "        queue[count] = v\n"
+            + "      end\n"
+            + "    end\n"
+            + "    local mt = getmetatable(t)\n"
+            + "    if type(mt) == \"table\" and not seen[mt] then\n"
+            + "      seen[mt] = true\n"
+            + "      count = count + 1\n"
+            + "      queue[count] = mt\n"
+            + "    end\n"
+            + "    local bucket = 0\n"
+            + "    while size >= 2 ^ bucket do\n"
+            + "      bucket = bucket + 1\n"
+            + "    end\n"
+            + "    add(histogram, bucket, size)\n"
+            + "  end\n"
+            + "  return histogram\n"
+            + "end\n"
+            + "local function dumpProfile(final)\n"
+            + "  local histogram = final and select(2, pcall(tableSizes))\n"
+            + "  local file = io.open(profileFile, \"w\")\n"
+            + "  if not file then\n"
+            + "    return\n"
+            + "  end\n"
+            + "  for stack, entry in pairs(stacks) do\n"
+            + "    file:write(\"stack \", math.floor(entry[1] * 1000000), \" \", entry[2], \" \", stack, \"\\n\")\n"
+            + "  end\n"
+            + "  for line, entry in pairs(lines) do\n"
+            + "    file:write(\"line \", math.floor(entry[1] * 1000000), \" \", entry[2], \" \", line, \"\\n\")\n"
+            + "  end\n"
+            + "  for line, entry in pairs(allocations) do\n"
+            + "    file:write(\"alloc \", math.floor(entry[1]), \" \", entry[2], \" \", line, \"\\n\")\n"
+            + "  end\n"
+            + "  for _, point in ipairs(timeline) do\n"
+            + "    file:write(\"memory \", math.floor(point[1] * 1000000), \" \", math.floor(point[2]), \" \", math.floor(point[3]), \"\\n\")\n"
+            + "  end\n"
+            + "  if type(histogram) == \"table\" then\n"
+            + "    for bucket, entry in pairs(histogram) do\n"
+            + "      file:write(\"tables \", bucket, \" \", entry[2], \" \", math.floor(entry[1]), \"\\n\")\n"
+            + "    end\n"
+            + "  end\n"
+            + "  file:close()\n"
+            + "end\n"
+            + "function " + LuaInstrumenter.PROBE + "()\n"
+            + "  hits = hits + 1\n"
+            + "  if hits < " + PROFILE_EVERY + " then\n"
+            + "    return\n"
+            + "  end\n"
+            + "  hits = 0\n"
+            + "  local now = clock()\n"
+            + "  local elapsed = now - last\n"
+            + "  last = now\n"
+            + "  local total = totalMemory()\n"
+            + "  local used = total - freeMemory()\n"
+            + "  local grown = used - lastUsed\n"
+            + "  lastUsed = used\n"
+            + "  local frames = {}\n"
+            + "  for level = 2, 66 do\n"
+            + "    local info = getinfo(level, \"Sln\")\n"
+            + "    if not info or info.source == wrapperSource then\n"
+            + "      break\n"
+            + "    end\n"
+            + "    if level == 2 then\n"
+            + "      local line = where(info) .. \":\" .. info.currentline\n"
+            + "      add(lines, line, elapsed)\n"
+            + "      if grown > 0 then\n"
+            + "        add(allocations, line, grown)\n"
+            + "      end\n"
+            + "    end\n"
+            + "    if info.what ~= \"C\" then\n"
+            + "      table.insert(frames, 1, (info.name or \"?\") .. \"@\" .. where(info) .. \":\" .. info.linedefined)\n"
+            + "    end\n"
+            + "  end\n"
+            + "  add(stacks, table.concat(frames, \";\"), elapsed)\n"
+            + "  samples = samples + 1\n"
+            + "  if samples % timelineEvery == 0 then\n"
+            + "    record(now, used, total)\n"
+            + "  end\n"
+            + "  if samples % " + PROFILE_FLUSH + " == 0 then\n"
+            + "    dumpProfile(false)\n"
+            + "  end\n"
+            + "end\n";
+    private static final String WRAPPER_HEAD
+            = "local proxy = ...\n"
+            + "local filesystem = require(\"filesystem\")\n"
+            + "local shell = require(\"shell\")\n"
+            + "local root\n"
+            + "for fs, path in filesystem.mounts() do\n"
+            + "  if fs.address == proxy.address then\n"
+            + "    root = path\n"
+            + "  end\n"
+            + "end\n"
+            + "package.path = root .. \"/?.lua;\" .. package.path\n"
+            + "shell.setWorkingDirectory(root)\n";
+    private static final String WRAPPER_RUN
+            = "local result = table.pack(xpcall(dofile, debug.traceback, filesystem.concat(root, \"main.lua\")))\n"
+            + "local code = 0\n"
+            + "if not result[1] then\n"
+            + "  io.stderr:write(tostring(result[2]) .. \"\\n\")\n"
+            + "  code = 1\n"
+            + "elseif type(result[2]) == \"number\" then\n"
+            + "  code = math.floor(result[2])\n"
+            + "end\n";
+    private static final String WRAPPER_EXIT
+            = "print(\"" + EXIT_MARKER + "\" .. code)\n"
+            + "computer.shutdown()\n";
+
+    private final MachineSetup setup;
+    private long tickLimit = TickScheduler.DEFAULT_TPS * 60 * 5;
+    private boolean profiling;
+    private int shards;
+
+    /**
+     * @param machineSetup hardware to run projects on, must have OpenOS and
+     * at least one drive
+     */
+    public HeadlessRunner(MachineSetup machineSetup) {
+        setup = machineSetup;
+    }
+
+    /**
+     * @param ticks how many ticks a project may run before it's stopped
+     */
+    public void setTickLimit(long ticks) {
+        tickLimit = ticks;
+    }
+
+    /**
+     * @param value {@code true} to instrument the project's Lua files and
+     * collect a CPU profile, see {@link Result#getProfile()}
+     */
+    public void setProfiling(boolean value) {
+        profiling = value;
+    }
+
+    /**
+     * @param count how many workspaces {@link #runAll(List)} may tick in
+     * parallel
+     */
+    public void setShards(int count) {
+        shards = count;
+    }
+
+    /**
+     * Boots a fresh machine in a temporary workspace and runs the project on
+     * it. Runs are sequential, only one project may be running at a time.
+     *
+     * @param projectDir folder containing {@code main.lua}
+     * @return the outcome of the run
+     * @throws IOException if the workspace can't be prepared
+     */
+    public synchronized Result run(File projectDir) throws IOException {
+        Path workspaceDir = Files.createTempDirectory("oclide-headless");
+        Result result = new Result(projectDir.getName());
+        Emulator emulator = new Emulator(new Workspace(workspaceDir), setup);
+        emulator.getScheduler().setUnthrottled(true);
+        emulator.setTickListener(() -> {
+            if (result.ticks == 0) {
+                EmulatedMachine machine = emulator.getMachine();
+                result.screenAddress = machine.getScreen().node().address();
+                try {
+                    result.diskDir = machine.getDiskDirectory(workspaceDir, 0);
+                    install(projectDir, result.diskDir);
+                } catch (IOException ex) {
+                    result.crash("Couldn't install the project: " + ex.getMessage());
+                    return false;
+                }
+            }
+            if (result.ticks++ >= tickLimit) {
+                result.status = STATUS_TIMEOUT;
+                return false;
+            }
+            return result.status == null;
+        });
+        EventDispatcher.Subscription output = EventDispatcher.subscribe(TextBufferSetEvent.class, (TextBufferSetEvent event) -> {
+            result.print(event.address(), event.value());
+        });
+        EventDispatcher.Subscription crash = EventDispatcher.subscribe(MachineCrashEvent.class, (MachineCrashEvent event) -> {
+            //Other emulators may be running in this JVM
+            EmulatedMachine machine = emulator.getMachine();
+            if (machine != null && machine.getComputer().node().address().equals(event.address())) {
+                result.crash(event.message());
+            }
+        });
+        long started = System.nanoTime();
+        try {
+            emulator.start();
+        } finally {
+            output.cancel();
+            crash.cancel();
+            emulator.exit();
+            try {
+                if (profiling && result.diskDir != null) {
+                    result.profile = LuaProfile.read(result.diskDir.resolve(PROFILE_FILE));
+                }
+            } finally {
+                FileUtils.deleteDirectory(workspaceDir.toFile());
+            }
+        }
+        result.nanos = System.nanoTime() - started;
+        return result;
+    }
+
+    /**
+     * Runs several projects at once, each on a fresh machine of its own, in
+     * a {@link ShardedHost}. The tick limit applies to all of them together.
+     *
+     * @param projectDirs folders containing {@code main.lua}
+     * @return the outcomes, in the order of {@code projectDirs}
+     * @throws IOException if the workspaces can't be prepared
+     */
+    public synchronized List<Result> runAll(List<File> projectDirs) throws IOException {
+        Path hostDir = Files.createTempDirectory("oclide-headless");
+        ShardedHost host = new ShardedHost(hostDir, Math.max(1, shards));
+        host.getScheduler().setUnthrottled(true);
+        List<Result> results = new ArrayList<>();
+        for (File projectDir : projectDirs) {
+            host.addMachine(setup);
+            results.add(new Result(projectDir.getName()));
+        }
+        //Filled in before the first tick, read by the shard workers
+        Map<String, Result> byScreen = new ConcurrentHashMap<>();
+        Map<String, Result> byComputer = new ConcurrentHashMap<>();
+        long[] ticks = {0};
+        host.setTickListener(() -> {
+            if (ticks[0] == 0) {
+                for (int i = 0; i < results.size(); i++) {
+                    Result result = results.get(i);
+                    EmulatedMachine machine = host.getMachine(i);
+                    result.screenAddress = machine.getScreen().node().address();
+                    byScreen.put(result.screenAddress, result);
+                    byComputer.put(machine.getComputer().node().address(), result);
+                    try {
+                        result.diskDir = machine.getDiskDirectory(host.getShard(i).getWorkspace().path(), 0);
+                        install(projectDirs.get(i), result.diskDir);
+                    } catch (IOException ex) {
+                        result.crash("Couldn't install the project: " + ex.getMessage());
+                    }
+                }
+            }
+            boolean done = true;
+            for (Result result : results) {
+                if (result.status == null) {
+                    result.ticks = ticks[0];
+                    if (ticks[0] >= tickLimit) {
+                        result.status = STATUS_TIMEOUT;
+                    }
+                }
+                done &= result.status != null;
+            }
+            ticks[0]++;
+            return !(done);
+        });
+        EventDispatcher.Subscription output = EventDispatcher.subscribe(TextBufferSetEvent.class, (TextBufferSetEvent event) -> {
+            Result result = byScreen.get(event.address());
+            if (result != null) {
+                result.print(event.address(), event.value());
+            }
+        });
+        EventDispatcher.Subscription crash = EventDispatcher.subscribe(MachineCrashEvent.class, (MachineCrashEvent event) -> {
+            Result result = byComputer.get(event.address());
+            if (result != null) {
+                result.crash(event.message());
+            }
+        });
+        long started = System.nanoTime();
+        try {
+            host.start();
+        } finally {
+            output.cancel();
+            crash.cancel();
+            try {
+                for (Result result : results) {
+                    result.nanos = System.nanoTime() - started;
+                    if (profiling && result.diskDir != null) {
+                        result.profile = LuaProfile.read(result.diskDir.resolve(PROFILE_FILE));
+                    }
+                }
+            } finally {
+                FileUtils.deleteDirectory(hostDir.toFile());
+            }
+        }
+        return results;
+    }
+
+    private void install(File projectDir, Path diskDir) throws IOException {
+        FileClones.cloneTree(projectDir.toPath(), diskDir);
+        String wrapper;
+        if (profiling) {
+            LuaInstrumenter.instrumentTree(diskDir);
+            wrapper = WRAPPER_HEAD + PROFILER + WRAPPER_RUN + "dumpProfile(true)\n" + WRAPPER_EXIT;
+        } else {
+            wrapper = WRAPPER_HEAD + WRAPPER_RUN + WRAPPER_EXIT;
+        }
+        Files.write(diskDir.resolve("autorun.lua"), wrapper.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        HeadlessRunner runner = new HeadlessRunner(new MachineSetup());
+        int exitStatus = 0;
+        boolean sharded = false;
+        List<File> projects = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--profile".equals(args[i])) {
+                runner.setProfiling(true);
+                continue;
+            }
+            if ("--ticks".equals(args[i]) && i + 1 < args.length) {
+                runner.setTickLimit(Long.parseLong(args[++i]));
+                continue;
+            }
+            if ("--shards".equals(args[i]) && i + 1 < args.length) {
+                runner.setShards(Integer.parseInt(args[++i]));
+                sharded = true;
+                continue;
+            }
+            if (sharded) {
+                projects.add(new File(args[i]));
+                continue;
+            }
+            exitStatus = Math.max(exitStatus, report(runner.run(new File(args[i]))));
+        }
+        if (!(projects.isEmpty())) {
+            for (Result result : runner.runAll(projects)) {
+                exitStatus = Math.max(exitStatus, report(result));
+            }
+        }
+        System.exit(exitStatus);
+    }
+
+    private static int report(Result result) throws IOException {
+        for (String line : result.getOutput()) {
+            System.out.println(line);
+        }
+        System.out.println("[" + result.getName() + "] exit " + result.getStatus() + " after " + result.getTicks() + " ticks (" + result.getNanos() / 1_000_000 + " ms)");
+        if (result.getProfile() != null) {
+            result.getProfile().export(System.out);
+        }
+        return result.getStatus();
+    }
+
+    /**
+     * Outcome of a single headless run
+     */
+    public static class Result {
+
+        private final String name;
+        private final List<String> output = new ArrayList<>();
+        private volatile String screenAddress;
+        private volatile Integer status;
+        private String crashMessage;
+        private long ticks;
+        private long nanos;
+        private Path diskDir;
+        private LuaProfile profile;
+
+        Result(String projectName) {
+            name = projectName;
+        }
+
+        private void print(String address, String value) {
+            if (screenAddress != null && !(screenAddress.equals(address))) {
+                return;
+            }
+            String line = value.replaceAll("\\s+$", "");
+            if (line.startsWith(EXIT_MARKER)) {
+                try {
+                    status = Integer.valueOf(line.substring(EXIT_MARKER.length()).trim());
+                } catch (NumberFormatException ex) {
+                    status = 1;
+                }
+            } else if (!(line.isEmpty())) {
+                output.add(line);
+            }
+        }
+
+        private void crash(String message) {
+            crashMessage = message;
+            status = STATUS_CRASH;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return text written to the screen, one entry per GPU write
+         */
+        public List<String> getOutput() {
+            return Collections.unmodifiableList(output);
+        }
+
+        /**
+         * @return value returned by {@code main.lua} (0 if none), 1 on a Lua
+         * error, or one of the {@code STATUS_} constants
+         */
+        public int getStatus() {
+            return status == null ? STATUS_TIMEOUT : status;
+        }
+
+        /**
+         * @return crash message or {@code null}
+         */
+        public String getCrashMessage() {
+            return crashMessage;
+        }
+
+        public long getTicks() {
+            return ticks;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return CPU profile of the run, or {@code null} if profiling was
+         * off
+         */
+        public LuaProfile getProfile() {
+            return profile;
+        }
+    }
+}
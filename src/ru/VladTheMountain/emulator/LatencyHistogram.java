@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with logarithmic buckets, in the spirit of
+ * HdrHistogram: every power of two is split into 32 linear sub-buckets, so
+ * any recorded value is known to within about 3% while the whole range from
+ * 1 ns to over an hour fits in about 1200 counters.
+ *
+ * Recording is lock-free and may happen on any thread. Percentiles are read
+ * from a copy taken by {@link #takeInterval()}, which also starts a new
+ * interval.
+ *
+ * @author VladTheMountain
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Values are clamped to below 2^MAX_BITS ns, about 73 minutes
+     */
+    private static final int MAX_BITS = 42;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private long total;
+    private long max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+    private LatencyHistogram(long[] copied) {
+        counts = new AtomicLongArray(copied);
+        for (int i = 0; i < copied.length; i++) {
+            if (copied[i] != 0) {
+                total += copied[i];
+                max = upperBound(i);
+            }
+        }
+    }
+
+    /**
+     * @param nanos duration to count
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+    }
+
+    /**
+     * Returns the values recorded since the last call and clears them
+     *
+     * @return frozen copy to read percentiles from
+     */
+    public LatencyHistogram takeInterval() {
+        long[] copied = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copied[i] = counts.getAndSet(i, 0);
+        }
+        return new LatencyHistogram(copied);
+    }
+
+    /**
+     * @return number of values in a copy from {@link #takeInterval()}
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * @return upper bound of the largest value in a copy from
+     * {@link #takeInterval()}
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return upper bound of the value below which {@code percentile} percent
+     * of the values in a copy from {@link #takeInterval()} fall, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return max;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Inserts profiler probes into Lua sources.
+ *
+ * ocelot-brain doesn't expose the machine's Lua state and the OpenComputers
+ * sandbox has no {@code debug.sethook}, so the profiler can't interrupt a
+ * running program by itself. Instead a call to {@link #PROBE} is put at the
+ * start of every block that can repeat: loop bodies, branches and function
+ * bodies. Probes are inserted on the same line, so line numbers reported by
+ * {@code debug.getinfo} stay those of the original file.
+ *
+ * @author VladTheMountain
+ */
+public final class LuaInstrumenter {
+
+    /**
+     * Global function called by every probe
+     */
+    public static final String PROBE = "__oclide_probe";
+
+    private static final String CALL = " " + PROBE + "();";
+
+    private LuaInstrumenter() {
+    }
+
+    /**
+     * Instruments every {@code .lua} file under {@code dir} in place
+     *
+     * @param dir folder to instrument
+     * @throws IOException if a file can't be read or written
+     */
+    public static void instrumentTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.filter((Path file) -> Files.isRegularFile(file) && file.getFileName().toString().endsWith(".lua")).forEach((Path file) -> {
+                try {
+                    String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                    Files.write(file, instrument(source).getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * @param source Lua chunk
+     * @return the same chunk with a probe after every {@code do},
+     * {@code then}, {@code else}, {@code repeat} and function parameter list
+     */
+    public static String instrument(String source) {
+        StringBuilder out = new StringBuilder(source.length() + source.length() / 4);
+        int length = source.length();
+        int i = 0;
+        boolean functionHeader = false;
+        if (source.startsWith("#")) {
+            //Shebang line
+            while (i < length && source.charAt(i) != '\n') {
+                i++;
+            }
+        }
+        out.append(source, 0, i);
+        while (i < length) {
+            char c = source.charAt(i);
+            int start = i;
+            if (c == '-' && i + 1 < length && source.charAt(i + 1) == '-') {
+                int level = longBracketLevel(source, i + 2);
+                if (level >= 0) {
+                    i = skipLongBracket(source, i + 2, level);
+                } else {
+                    while (i < length && source.charAt(i) != '\n') {
+                        i++;
+                    }
+                }
+                out.append(source, start, i);
+            } else if (c == '[' && longBracketLevel(source, i) >= 0) {
+                i = skipLongBracket(source, i, longBracketLevel(source, i));
+                out.append(source, start, i);
+            } else if (c == '"' || c == '\'') {
+                i++;
+                while (i < length && source.charAt(i) != c && source.charAt(i) != '\n') {
+                    i += source.charAt(i) == '\\' ? 2 : 1;
+                }
+                i = Math.min(i + 1, length);
+                out.append(source, start, i);
+            } else if (Character.isLetter(c) || c == '_') {
+                while (i < length && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_')) {
+                    i++;
+                }
+                String word = source.substring(start, i);
+                out.append(word);
+                switch (word) {
+                    case "do":
+                    case "then":
+                    case "else":
+                    case "repeat":
+                        out.append(CALL);
+                        break;
+                    case "function":
+                        functionHeader = true;
+                        break;
+                    default:
+                        break;
+                }
+            } else if (Character.isDigit(c)) {
+                //Numbers may contain letters (hex digits, exponents)
+                while (i < length && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '.'
+                        || ((source.charAt(i) == '-' || source.charAt(i) == '+') && "eEpP".indexOf(source.charAt(i - 1)) >= 0))) {
+                    i++;
+                }
+                out.append(source, start, i);
+            } else {
+                out.append(c);
+                i++;
+                if (c == ')' && functionHeader) {
+                    out.append(CALL);
+                    functionHeader = false;
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the number of {@code =} in a long bracket opening at
+     * {@code index}, or -1 if there's none
+     */
+    private static int longBracketLevel(String source, int index) {
+        if (index >= source.length() || source.charAt(index) != '[') {
+            return -1;
+        }
+        int level = 0;
+        int i = index + 1;
+        while (i < source.length() && source.charAt(i) == '=') {
+            level++;
+            i++;
+        }
+        return i < source.length() && source.charAt(i) == '[' ? level : -1;
+    }
+
+    private static int skipLongBracket(String source, int index, int level) {
+        StringBuilder close = new StringBuilder("]");
+        for (int i = 0; i < level; i++) {
+            close.append('=');
+        }
+        close.append(']');
+        int end = source.indexOf(close.toString(), index + level + 2);
+        return end < 0 ? source.length() : end + close.length();
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * CPU profile of a Lua program, as dumped by the probes inserted with
+ * {@link LuaInstrumenter}.
+ *
+ * Every sample carries the machine CPU time ({@code os.clock()}) spent since
+ * the previous one, so weights are in microseconds of Lua time rather than
+ * sample counts. Stacks are folded, outermost frame first, frames separated
+ * by {@code ;}; each frame reads {@code name@file:line defined}.
+ *
+ * Memory is read with {@code computer.freeMemory()} on every sample. Growth
+ * since the previous sample is charged to the line being run, which points at
+ * allocation sites without hooking the allocator. The final dump also walks
+ * the tables reachable from {@code _G} for a histogram of their sizes.
+ *
+ * @author VladTheMountain
+ */
+public class LuaProfile {
+
+    private final Map<String, Long> stacks = new HashMap<>();
+    private final Map<String, Long> stackSamples = new HashMap<>();
+    private final List<Line> lines = new ArrayList<>();
+    private final List<Allocation> allocations = new ArrayList<>();
+    private final List<MemoryReading> memory = new ArrayList<>();
+    private final SortedMap<Integer, TableBucket> tables = new TreeMap<>();
+    private long totalMicros;
+    private long samples;
+
+    /**
+     * Reads a profile dump. Malformed lines are skipped, a missing file gives
+     * an empty profile.
+     *
+     * @param file profile written by the probes
+     * @return the profile
+     * @throws IOException if the file exists but can't be read
+     */
+    public static LuaProfile read(Path file) throws IOException {
+        LuaProfile profile = new LuaProfile();
+        if (!(Files.isRegularFile(file))) {
+            return profile;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String record;
+            while ((record = in.readLine()) != null) {
+                String[] fields = record.split(" ", 4);
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    long micros = Long.parseLong(fields[1]);
+                    long count = Long.parseLong(fields[2]);
+                    switch (fields[0]) {
+                        case "stack":
+                            profile.stacks.merge(fields[3], micros, Long::sum);
+                            profile.stackSamples.merge(fields[3], count, Long::sum);
+                            profile.totalMicros += micros;
+                            profile.samples += count;
+                            break;
+                        case "line": {
+                            int colon = fields[3].lastIndexOf(':');
+                            profile.lines.add(new Line(fields[3].substring(0, colon), Integer.parseInt(fields[3].substring(colon + 1)), micros, count));
+                            break;
+                        }
+                        case "alloc": {
+                            int colon = fields[3].lastIndexOf(':');
+                            profile.allocations.add(new Allocation(fields[3].substring(0, colon), Integer.parseInt(fields[3].substring(colon + 1)), micros, count));
+                            break;
+                        }
+                        case "memory":
+                            profile.memory.add(new MemoryReading(micros, count, Long.parseLong(fields[3])));
+                            break;
+                        case "tables":
+                            profile.tables.put((int) micros, new TableBucket((int) micros, count, Long.parseLong(fields[3])));
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+                    //Dump was cut short by a shutdown, skip the line
+                }
+            }
+        }
+        profile.lines.sort(Comparator.comparingLong(Line::getMicros).reversed());
+        profile.allocations.sort(Comparator.comparingLong(Allocation::getBytes).reversed());
+        profile.memory.sort(Comparator.comparingLong(MemoryReading::getMicros));
+        return profile;
+    }
+
+    /**
+     * Writes the profile in the format {@link #read} accepts, for scripts
+     * and for keeping next to a build
+     *
+     * @param out where to write to
+     * @throws IOException if {@code out} fails
+     */
+    public void export(Appendable out) throws IOException {
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            out.append("stack ").append(String.valueOf(stack.getValue())).append(' ').append(String.valueOf(stackSamples.get(stack.getKey()))).append(' ').append(stack.getKey()).append('\n');
+        }
+        for (Line line : lines) {
+            out.append("line ").append(String.valueOf(line.micros)).append(' ').append(String.valueOf(line.samples)).append(' ').append(line.file).append(':').append(String.valueOf(line.line)).append('\n');
+        }
+        for (Allocation allocation : allocations) {
+            out.append("alloc ").append(String.valueOf(allocation.bytes)).append(' ').append(String.valueOf(allocation.samples)).append(' ').append(allocation.file).append(':').append(String.valueOf(allocation.line)).append('\n');
+        }
+        for (MemoryReading reading : memory) {
+            out.append("memory ").append(String.valueOf(reading.micros)).append(' ').append(String.valueOf(reading.used)).append(' ').append(String.valueOf(reading.total)).append('\n');
+        }
+        for (TableBucket bucket : tables.values()) {
+            out.append("tables ").append(String.valueOf(bucket.bucket)).append(' ').append(String.valueOf(bucket.tables)).append(' ').append(String.valueOf(bucket.entries)).append('\n');
+        }
+    }
+
+    /**
+     * @return folded stacks and the CPU time spent in them
+     */
+    public Map<String, Long> getStacks() {
+        return Collections.unmodifiableMap(stacks);
+    }
+
+    /**
+     * @return sampled lines, hottest first
+     */
+    public List<Line> getLines() {
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * @param file path relative to the project folder
+     * @return sampled lines of {@code file}, hottest first
+     */
+    public List<Line> getLines(String file) {
+        List<Line> result = new ArrayList<>();
+        for (Line line : lines) {
+            if (line.file.equals(file)) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return lines that were running while memory grew, biggest growth
+     * first
+     */
+    public List<Allocation> getAllocations() {
+        return Collections.unmodifiableList(allocations);
+    }
+
+    /**
+     * @return memory readings over the run, oldest first
+     */
+    public List<MemoryReading> getMemory() {
+        return Collections.unmodifiableList(memory);
+    }
+
+    /**
+     * @return sizes of the tables reachable from {@code _G} at the end of the
+     * run, empty if the run didn't finish
+     */
+    public SortedMap<Integer, TableBucket> getTableSizes() {
+        return Collections.unmodifiableSortedMap(tables);
+    }
+
+    /**
+     * @return the most memory in use at any reading, in bytes
+     */
+    public long getPeakMemory() {
+        long peak = 0;
+        for (MemoryReading reading : memory) {
+            peak = Math.max(peak, reading.used);
+        }
+        return peak;
+    }
+
+    public long getTotalMicros() {
+        return totalMicros;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public boolean isEmpty() {
+        return samples == 0;
+    }
+
+    /**
+     * CPU time attributed to a single source line
+     */
+    public static class Line {
+
+        private final String file;
+        private final int line;
+        private final long micros;
+        private final long samples;
+
+        Line(String fileName, int lineNumber, long cpuMicros, long sampleCount) {
+            file = fileName;
+            line = lineNumber;
+            micros = cpuMicros;
+            samples = sampleCount;
+        }
+
+        /**
+         * @return path relative to the project folder, or the absolute path
+         * inside the machine for files outside of it
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return 1-based line number
+         */
+        public int getLine() {
+            return line;
+        }
+
+        public long getMicros() {
+            return micros;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+    }
+
+    /**
+     * Memory growth charged to a single source line
+     */
+    public static class Allocation {
+
+        private final String file;
+        private final int line;
+        private final long bytes;
+        private final long samples;
+
+        Allocation(String fileName, int lineNumber, long grownBytes, long sampleCount) {
+            file = fileName;
+            line = lineNumber;
+            bytes = grownBytes;
+            samples = sampleCount;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return bytes the heap grew by while the line was running
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+    }
+
+    /**
+     * Machine memory at one point of the run
+     */
+    public static class MemoryReading {
+
+        private final long micros;
+        private final long used;
+        private final long total;
+
+        MemoryReading(long cpuMicros, long usedBytes, long totalBytes) {
+            micros = cpuMicros;
+            used = usedBytes;
+            total = totalBytes;
+        }
+
+        /**
+         * @return machine CPU time at the reading
+         */
+        public long getMicros() {
+            return micros;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        public long getFree() {
+            return total - used;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Tables with a number of entries between {@link #getMinSize()} and
+     * {@link #getMaxSize()}
+     */
+    public static class TableBucket {
+
+        private final int bucket;
+        private final long tables;
+        private final long entries;
+
+        TableBucket(int index, long tableCount, long entryCount) {
+            bucket = index;
+            tables = tableCount;
+            entries = entryCount;
+        }
+
+        public long getMinSize() {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+        public long getMaxSize() {
+            return bucket == 0 ? 0 : (1L << bucket) - 1;
+        }
+
+        public long getTables() {
+            return tables;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+    }
+}
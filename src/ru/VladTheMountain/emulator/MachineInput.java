@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.event.KeyEvent;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import totoro.ocelot.brain.entity.Screen;
+
+/**
+ * Keyboard, clipboard or mouse input given to an emulated screen.
+ *
+ * Inputs are immutable values so they can be queued for the simulation
+ * thread and written to a {@link ReplayLog}.
+ *
+ * @author VladTheMountain
+ */
+public final class MachineInput {
+
+    /**
+     * Name of the user inputs are reported from
+     */
+    public static final String PLAYER = "OCLIDE";
+
+    /**
+     * Kind of an input, deciding which of its fields are used
+     */
+    public enum Type {
+        /**
+         * character, code
+         */
+        KEY_DOWN,
+        /**
+         * character, code
+         */
+        KEY_UP,
+        /**
+         * text
+         */
+        CLIPBOARD,
+        /**
+         * x, y, button
+         */
+        MOUSE_DOWN,
+        /**
+         * x, y, button
+         */
+        MOUSE_DRAG,
+        /**
+         * x, y, button
+         */
+        MOUSE_UP,
+        /**
+         * x, y, button (scroll delta)
+         */
+        MOUSE_SCROLL
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final char character;
+    private final int code;
+    private final int x;
+    private final int y;
+    private final int button;
+    private final String text;
+
+    private MachineInput(Type type, char character, int code, int x, int y, int button, String text) {
+        this.type = type;
+        this.character = character;
+        this.code = code;
+        this.x = x;
+        this.y = y;
+        this.button = button;
+        this.text = text;
+    }
+
+    /**
+     * @param down {@code true} for a press, {@code false} for a release
+     * @param character typed character, 0 if none
+     * @param code OpenComputers (LWJGL) key code
+     * @return key input
+     */
+    public static MachineInput key(boolean down, char character, int code) {
+        return new MachineInput(down ? Type.KEY_DOWN : Type.KEY_UP, character, code, 0, 0, 0, null);
+    }
+
+    public static MachineInput clipboard(String text) {
+        return new MachineInput(Type.CLIPBOARD, (char) 0, 0, 0, 0, 0, text);
+    }
+
+    /**
+     * @param type one of the {@code MOUSE_} types
+     * @param x column
+     * @param y row
+     * @param button mouse button, or scroll delta for {@link Type#MOUSE_SCROLL}
+     * @return mouse input
+     */
+    public static MachineInput mouse(Type type, int x, int y, int button) {
+        return new MachineInput(type, (char) 0, 0, x, y, button, null);
+    }
+
+    /**
+     * Gives the input to a screen. Simulation thread only.
+     *
+     * @param screen target screen
+     */
+    public void applyTo(Screen screen) {
+        switch (type) {
+            case KEY_DOWN:
+                screen.keyDown(character, code, PLAYER);
+                break;
+            case KEY_UP:
+                screen.keyUp(character, code, PLAYER);
+                break;
+            case CLIPBOARD:
+                screen.clipboard(text, PLAYER);
+                break;
+            case MOUSE_DOWN:
+                screen.mouseDown(x, y, button, PLAYER);
+                break;
+            case MOUSE_DRAG:
+                screen.mouseDrag(x, y, button, PLAYER);
+                break;
+            case MOUSE_UP:
+                screen.mouseUp(x, y, button, PLAYER);
+                break;
+            case MOUSE_SCROLL:
+                screen.mouseScroll(x, y, button, PLAYER);
+                break;
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        switch (type) {
+            case KEY_DOWN:
+            case KEY_UP:
+                out.writeChar(character);
+                out.writeShort(code);
+                break;
+            case CLIPBOARD:
+                ReplayLog.writeString(out, text);
+                break;
+            default:
+                out.writeShort(x);
+                out.writeShort(y);
+                out.writeByte(button);
+                break;
+        }
+    }
+
+    static MachineInput read(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= TYPES.length) {
+            throw new IOException("Unknown input type " + ordinal);
+        }
+        Type type = TYPES[ordinal];
+        switch (type) {
+            case KEY_DOWN:
+            case KEY_UP:
+                return new MachineInput(type, in.readChar(), in.readShort(), 0, 0, 0, null);
+            case CLIPBOARD:
+                return clipboard(ReplayLog.readString(in));
+            default:
+                return mouse(type, in.readShort(), in.readShort(), in.readByte());
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public char getCharacter() {
+        return character;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getButton() {
+        return button;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Translates an AWT key code to the LWJGL code OpenComputers reports
+     *
+     * @param keyCode {@link KeyEvent} virtual key
+     * @return LWJGL key code, 0 if there is none
+     */
+    public static int toLwjgl(int keyCode) {
+        if (keyCode >= KeyEvent.VK_1 && keyCode <= KeyEvent.VK_9) {
+            return 2 + keyCode - KeyEvent.VK_1;
+        }
+        if (keyCode >= KeyEvent.VK_F1 && keyCode <= KeyEvent.VK_F10) {
+            return 59 + keyCode - KeyEvent.VK_F1;
+        }
+        if (keyCode >= KeyEvent.VK_A && keyCode <= KeyEvent.VK_Z) {
+            return LETTERS[keyCode - KeyEvent.VK_A];
+        }
+        switch (keyCode) {
+            case KeyEvent.VK_0:
+                return 11;
+            case KeyEvent.VK_ESCAPE:
+                return 1;
+            case KeyEvent.VK_MINUS:
+                return 12;
+            case KeyEvent.VK_EQUALS:
+                return 13;
+            case KeyEvent.VK_BACK_SPACE:
+                return 14;
+            case KeyEvent.VK_TAB:
+                return 15;
+            case KeyEvent.VK_OPEN_BRACKET:
+                return 26;
+            case KeyEvent.VK_CLOSE_BRACKET:
+                return 27;
+            case KeyEvent.VK_ENTER:
+                return 28;
+            case KeyEvent.VK_CONTROL:
+                return 29;
+            case KeyEvent.VK_SEMICOLON:
+                return 39;
+            case KeyEvent.VK_QUOTE:
+                return 40;
+            case KeyEvent.VK_BACK_QUOTE:
+                return 41;
+            case KeyEvent.VK_SHIFT:
+                return 42;
+            case KeyEvent.VK_BACK_SLASH:
+                return 43;
+            case KeyEvent.VK_COMMA:
+                return 51;
+            case KeyEvent.VK_PERIOD:
+                return 52;
+            case KeyEvent.VK_SLASH:
+                return 53;
+            case KeyEvent.VK_ALT:
+                return 56;
+            case KeyEvent.VK_SPACE:
+                return 57;
+            case KeyEvent.VK_CAPS_LOCK:
+                return 58;
+            case KeyEvent.VK_F11:
+                return 87;
+            case KeyEvent.VK_F12:
+                return 88;
+            case KeyEvent.VK_HOME:
+                return 199;
+            case KeyEvent.VK_UP:
+                return 200;
+            case KeyEvent.VK_PAGE_UP:
+                return 201;
+            case KeyEvent.VK_LEFT:
+                return 203;
+            case KeyEvent.VK_RIGHT:
+                return 205;
+            case KeyEvent.VK_END:
+                return 207;
+            case KeyEvent.VK_DOWN:
+                return 208;
+            case KeyEvent.VK_PAGE_DOWN:
+                return 209;
+            case KeyEvent.VK_INSERT:
+                return 210;
+            case KeyEvent.VK_DELETE:
+                return 211;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * LWJGL codes of A to Z
+     */
+    private static final int[] LETTERS = {
+        30, 48, 46, 32, 18, 33, 34, 35, 23, 36, 37, 38, 50,
+        49, 24, 25, 16, 19, 31, 20, 22, 47, 17, 45, 21, 44
+    };
+}
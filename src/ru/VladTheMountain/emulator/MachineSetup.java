@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import ru.VladTheMountain.oclide.util.FileClones;
+import totoro.ocelot.brain.entity.CPU;
+import totoro.ocelot.brain.entity.Case;
+import totoro.ocelot.brain.entity.GraphicsCard;
+import totoro.ocelot.brain.entity.HDDManaged;
+import totoro.ocelot.brain.entity.Keyboard;
+import totoro.ocelot.brain.entity.Memory;
+import totoro.ocelot.brain.entity.NetworkCard;
+import totoro.ocelot.brain.entity.Screen;
+import totoro.ocelot.brain.loot.Loot;
+import totoro.ocelot.brain.util.Tier;
+import totoro.ocelot.brain.workspace.Workspace;
+
+/**
+ * Hardware description of a single emulated computer. Defaults match the
+ * machine the built-in emulator has always been launching.
+ *
+ * @author VladTheMountain
+ */
+public class MachineSetup {
+
+    private int caseTier = Tier.Three();
+    private int cpuTier = Tier.Three();
+    private int gpuTier = Tier.Two();
+    private int screenTier = Tier.Two();
+    private int[] memoryTiers = {Tier.Six(), Tier.Three()};
+    private int[] diskTiers = {Tier.Three()};
+    private boolean openOS = true;
+    private boolean networkCard;
+    private boolean keyboard = true;
+    private String name;
+    private String network;
+    private final Map<Integer, Path[]> diskLayers = new HashMap<>();
+
+    /**
+     * Adds a new computer described by this setup to {@code world}. The
+     * machine is not turned on.
+     *
+     * @param world Workspace to add the computer to
+     * @return the built machine
+     * @throws UncheckedIOException if a disk layer can't be laid down
+     */
+    public EmulatedMachine build(Workspace world) {
+        Case computer = world.add(new Case(caseTier));
+        computer.add(new CPU(cpuTier));
+        computer.add(new GraphicsCard(gpuTier));
+        for (int tier : memoryTiers) {
+            computer.add(new Memory(tier));
+        }
+        HDDManaged[] disks = new HDDManaged[diskTiers.length];
+        for (int i = 0; i < diskTiers.length; i++) {
+            disks[i] = new HDDManaged(diskTiers[i]);
+            computer.add(disks[i]);
+            for (Path layer : diskLayers.getOrDefault(i, new Path[0])) {
+                try {
+                    FileClones.cloneTree(layer, world.path().resolve(disks[i].node().address()));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Can't lay " + layer + " onto disk " + i, ex);
+                }
+            }
+        }
+        if (networkCard) {
+            computer.add(new NetworkCard());
+        }
+        if (openOS) {
+            computer.add(Loot.OpenOsEEPROM().create());
+            computer.add(Loot.OpenOsFloppy().create());
+        }
+        Screen screen = world.add(new Screen(screenTier));
+        computer.connect(screen);
+        if (keyboard) {
+            screen.connect(world.add(new Keyboard()));
+        }
+        return new EmulatedMachine(computer, screen, disks);
+    }
+
+    public int getCaseTier() {
+        return caseTier;
+    }
+
+    public void setCaseTier(int tier) {
+        this.caseTier = tier;
+    }
+
+    public int getCpuTier() {
+        return cpuTier;
+    }
+
+    public void setCpuTier(int tier) {
+        this.cpuTier = tier;
+    }
+
+    public int getGpuTier() {
+        return gpuTier;
+    }
+
+    public void setGpuTier(int tier) {
+        this.gpuTier = tier;
+    }
+
+    public int getScreenTier() {
+        return screenTier;
+    }
+
+    public void setScreenTier(int tier) {
+        this.screenTier = tier;
+    }
+
+    public int[] getMemoryTiers() {
+        return memoryTiers.clone();
+    }
+
+    /**
+     * @param tiers one entry per memory stick
+     */
+    public void setMemoryTiers(int... tiers) {
+        this.memoryTiers = tiers.clone();
+    }
+
+    public int[] getDiskTiers() {
+        return diskTiers.clone();
+    }
+
+    /**
+     * @param tiers one entry per managed hard drive
+     */
+    public void setDiskTiers(int... tiers) {
+        this.diskTiers = tiers.clone();
+    }
+
+    public boolean isOpenOS() {
+        return openOS;
+    }
+
+    /**
+     * @param value whether to insert the OpenOS EEPROM and install floppy
+     */
+    public void setOpenOS(boolean value) {
+        this.openOS = value;
+    }
+
+    public boolean hasKeyboard() {
+        return keyboard;
+    }
+
+    /**
+     * @param value whether to attach a keyboard to the screen, needed for key
+     * input
+     */
+    public void setKeyboard(boolean value) {
+        this.keyboard = value;
+    }
+
+    public boolean hasNetworkCard() {
+        return networkCard;
+    }
+
+    /**
+     * @param value whether to insert a wired network card
+     */
+    public void setNetworkCard(boolean value) {
+        this.networkCard = value;
+    }
+
+    /**
+     * @return name shown for the machine, or {@code null} for a generated one
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String value) {
+        this.name = value;
+    }
+
+    /**
+     * @return name of the network the machine is wired into, or {@code null}
+     * if it stands alone
+     */
+    public String getNetwork() {
+        return network;
+    }
+
+    /**
+     * Machines given the same network name get connected to each other.
+     * Hosts running machines in parallel keep each network together.
+     *
+     * @param value network name, {@code null} for none
+     */
+    public void setNetwork(String value) {
+        this.network = value;
+    }
+
+    /**
+     * @param disk drive index, as given to {@link #setDiskTiers}
+     * @return folders laid onto the drive on build, bottom first
+     */
+    public Path[] getDiskLayers(int disk) {
+        return diskLayers.getOrDefault(disk, new Path[0]).clone();
+    }
+
+    /**
+     * Sets folders to lay onto a managed drive when the machine is built,
+     * e.g. a prepared base image and then a project. Later layers win. The
+     * layers themselves are never written to: each machine gets a clone,
+     * which shares data with the layer on filesystems that support it.
+     *
+     * @param disk drive index, as given to {@link #setDiskTiers}
+     * @param layers folders to lay down, bottom first
+     */
+    public void setDiskLayers(int disk, Path... layers) {
+        diskLayers.put(disk, layers.clone());
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.VolatileImage;
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import totoro.ocelot.brain.entity.Screen;
+
+/**
+ * Display of one emulated screen.
+ *
+ * The simulation thread hands GPU calls over through {@link #offer}; the
+ * renderer replays them on the view's {@link ScreenBuffer} with
+ * {@link #drain()} and paints the damaged cells.
+ *
+ * @author VladTheMountain
+ */
+public class MachineView extends JComponent {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int COMMAND_CAPACITY = 1 << 14;
+
+    private final Color back = Color.BLACK;
+    private final int CHAR_WIDTH = 9;
+    private final int CHAR_HEIGHT = 22;
+    private final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 16);
+    private final String title;
+    private final ScreenBuffer screenBuffer = new ScreenBuffer(0, 0);
+    private final RingBuffer<GpuCommand> commands = new RingBuffer<>(COMMAND_CAPACITY);
+    private final GpuCommandCoalescer coalescer = new GpuCommandCoalescer();
+    private GlyphAtlas atlas;
+    private int atlasPaletteVersion;
+    private VolatileImage backBuffer;
+    private volatile EmulatedMachine machine;
+    private volatile Screen screen;
+    private volatile String screenAddress;
+    private Consumer<MachineInput> inputListener;
+    private EmulatorMetrics metrics;
+    private List<String> hud;
+    private final Font hudFont = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+    /**
+     * @param title name to show in the machine switcher
+     */
+    public MachineView(String title) {
+        this.title = title;
+        setFocusable(true);
+        addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                char c = e.getKeyChar() == KeyEvent.CHAR_UNDEFINED ? 0 : e.getKeyChar();
+                fireInput(MachineInput.key(true, c, MachineInput.toLwjgl(e.getKeyCode())));
+            }
+
+            @Override
+            public void keyReleased(KeyEvent e) {
+                char c = e.getKeyChar() == KeyEvent.CHAR_UNDEFINED ? 0 : e.getKeyChar();
+                fireInput(MachineInput.key(false, c, MachineInput.toLwjgl(e.getKeyCode())));
+            }
+        });
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                requestFocusInWindow();
+                if (SwingUtilities.isMiddleMouseButton(e)) {
+                    pasteClipboard();
+                    return;
+                }
+                fireMouse(MachineInput.Type.MOUSE_DOWN, e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (!(SwingUtilities.isMiddleMouseButton(e))) {
+                    fireMouse(MachineInput.Type.MOUSE_UP, e);
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (!(SwingUtilities.isMiddleMouseButton(e))) {
+                    fireMouse(MachineInput.Type.MOUSE_DRAG, e);
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                fireInput(MachineInput.mouse(MachineInput.Type.MOUSE_SCROLL, e.getX() / CHAR_WIDTH, e.getY() / CHAR_HEIGHT, -e.getWheelRotation()));
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    private void fireMouse(MachineInput.Type type, MouseEvent e) {
+        int button = SwingUtilities.isRightMouseButton(e) ? 1 : 0;
+        fireInput(MachineInput.mouse(type, e.getX() / CHAR_WIDTH, e.getY() / CHAR_HEIGHT, button));
+    }
+
+    private void pasteClipboard() {
+        try {
+            Object text = Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
+            fireInput(MachineInput.clipboard((String) text));
+        } catch (UnsupportedFlavorException | IOException | IllegalStateException ex) {
+            //Nothing to paste
+        }
+    }
+
+    private void fireInput(MachineInput input) {
+        if (inputListener != null) {
+            inputListener.accept(input);
+        }
+    }
+
+    void setMetrics(EmulatorMetrics value) {
+        metrics = value;
+    }
+
+    /**
+     * @param lines text of the performance overlay, {@code null} to hide it
+     */
+    void setHud(List<String> lines) {
+        hud = lines;
+        repaint();
+    }
+
+    /**
+     * @param listener receives keyboard, clipboard and mouse input given to
+     * this view, on the event dispatch thread
+     */
+    void setInputListener(Consumer<MachineInput> listener) {
+        inputListener = listener;
+    }
+
+    /**
+     * Attaches the computer this view shows
+     *
+     * @param value machine built from a {@link MachineSetup}
+     */
+    void bind(EmulatedMachine value) {
+        machine = value;
+        screen = value.getScreen();
+        screenAddress = value.getScreen().node().address();
+        screenBuffer.load(value.getScreen()._data().buffer());
+    }
+
+    /**
+     * Hands a GPU call over to the renderer. Simulation thread only.
+     *
+     * @param command call to replay on the {@link ScreenBuffer}
+     * @return {@code false} if the renderer is too far behind
+     */
+    boolean offer(GpuCommand command) {
+        return commands.offer(command);
+    }
+
+    /**
+     * Replays the GPU calls handed over so far on the {@link ScreenBuffer},
+     * leaving out the redundant ones, and schedules a repaint of what
+     * changed. Renderer side only.
+     */
+    void drain() {
+        commands.drain(coalescer::add, COMMAND_CAPACITY);
+        coalescer.flush(this::apply);
+        Rectangle cells = screenBuffer.getDamageBounds();
+        if (cells != null) {
+            repaint(cells.x * this.CHAR_WIDTH, cells.y * this.CHAR_HEIGHT, cells.width * this.CHAR_WIDTH, cells.height * this.CHAR_HEIGHT);
+        }
+    }
+
+    private void apply(GpuCommand command) {
+        command.applyTo(screenBuffer);
+        if (command.getType() == GpuCommand.Type.RESOLUTION) {
+            Dimension size = new Dimension(command.getWidth() * this.CHAR_WIDTH, command.getHeight() * this.CHAR_HEIGHT);
+            Runnable resize = () -> {
+                this.setPreferredSize(size);
+                this.setSize(size);
+                revalidate();
+            };
+            if (SwingUtilities.isEventDispatchThread()) {
+                resize.run();
+            } else {
+                SwingUtilities.invokeLater(resize);
+            }
+        }
+    }
+
+    /**
+     * Takes over a screen restored from a {@link WorkspaceSnapshot}
+     *
+     * @param address address of the screen
+     * @param in saved {@link ScreenBuffer} state
+     * @throws IOException
+     */
+    void restore(String address, DataInput in) throws IOException {
+        screenAddress = address;
+        screenBuffer.read(in);
+        Dimension size = new Dimension(screenBuffer.getWidth() * this.CHAR_WIDTH, screenBuffer.getHeight() * this.CHAR_HEIGHT);
+        setPreferredSize(size);
+        setSize(size);
+    }
+
+    /**
+     * Attaches the emulated screen after a restore, so the view takes input
+     * again
+     *
+     * @param value screen with {@link #getScreenAddress()}, loaded with the
+     * workspace
+     */
+    void attach(Screen value) {
+        screen = value;
+    }
+
+    /**
+     * @return the emulated screen input goes to, or {@code null} if the view
+     * has none
+     */
+    Screen getScreen() {
+        return screen;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the computer shown, or {@code null} for a view showing every
+     * screen of a loaded workspace
+     */
+    public EmulatedMachine getMachine() {
+        return machine;
+    }
+
+    /**
+     * @return address of the screen shown, or {@code null} for a view showing
+     * every screen of a loaded workspace
+     */
+    public String getScreenAddress() {
+        return screenAddress;
+    }
+
+    /**
+     * @return model of the emulated screen
+     */
+    public ScreenBuffer getScreenBuffer() {
+        return screenBuffer;
+    }
+
+    /**
+     * @return GPU calls received from the simulation since start
+     */
+    public long getGpuCommandsIn() {
+        return coalescer.getCommandsIn();
+    }
+
+    /**
+     * @return GPU calls actually applied to the screen since start, after
+     * coalescing
+     */
+    public long getGpuCommandsApplied() {
+        return coalescer.getCommandsApplied();
+    }
+
+    /**
+     * Paints the screen, timing it, and the performance overlay if shown
+     *
+     * @param gr
+     */
+    @Override
+    public void paintComponent(Graphics gr) {
+        long started = System.nanoTime();
+        paintScreen(gr);
+        if (metrics != null) {
+            metrics.paint(System.nanoTime() - started);
+        }
+        if (hud != null) {
+            paintHud(gr);
+        }
+    }
+
+    /**
+     * Draws the performance overlay in the top left corner
+     */
+    private void paintHud(Graphics gr) {
+        gr.setFont(hudFont);
+        FontMetrics fm = gr.getFontMetrics();
+        int width = 0;
+        for (String line : hud) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        gr.setColor(new Color(0, 0, 0, 180));
+        gr.fillRect(0, 0, width + 8, hud.size() * fm.getHeight() + 8);
+        gr.setColor(Color.GREEN);
+        for (int i = 0; i < hud.size(); i++) {
+            gr.drawString(hud.get(i), 4, 4 + fm.getAscent() + i * fm.getHeight());
+        }
+    }
+
+    /**
+     * Brings the back buffer up to date with the {@link ScreenBuffer} and
+     * copies the part inside the clip to the component
+     */
+    private void paintScreen(Graphics gr) {
+        super.paintComponent(gr);
+        Rectangle clip = gr.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        gr.setColor(back);
+        gr.fillRect(clip.x, clip.y, clip.width, clip.height);
+        updateAtlas();
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        int width = screenBuffer.getViewportWidth() * this.CHAR_WIDTH;
+        int height = screenBuffer.getViewportHeight() * this.CHAR_HEIGHT;
+        if (gc == null || width == 0 || height == 0) {
+            //Not on screen, e.g. printing: draw straight from the model
+            renderCells(gr, new Rectangle(0, 0, screenBuffer.getViewportWidth(), screenBuffer.getViewportHeight()));
+            return;
+        }
+        ScreenBuffer.Damage damage = screenBuffer.takeDamage();
+        boolean redrawAll = false;
+        if (backBuffer == null || backBuffer.getWidth() != width || backBuffer.getHeight() != height) {
+            backBuffer = gc.createCompatibleVolatileImage(width, height);
+            redrawAll = true;
+        }
+        do {
+            int state = backBuffer.validate(gc);
+            if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+                backBuffer = gc.createCompatibleVolatileImage(width, height);
+                redrawAll = true;
+            } else if (state == VolatileImage.IMAGE_RESTORED) {
+                redrawAll = true;
+            }
+            Graphics2D g = backBuffer.createGraphics();
+            try {
+                if (redrawAll) {
+                    renderCells(g, new Rectangle(0, 0, screenBuffer.getViewportWidth(), screenBuffer.getViewportHeight()));
+                } else {
+                    for (ScreenBuffer.Copy copy : damage.getCopies()) {
+                        Rectangle source = copy.getSource();
+                        g.copyArea(source.x * this.CHAR_WIDTH, source.y * this.CHAR_HEIGHT, source.width * this.CHAR_WIDTH, source.height * this.CHAR_HEIGHT, copy.getDx() * this.CHAR_WIDTH, copy.getDy() * this.CHAR_HEIGHT);
+                    }
+                    for (Rectangle cells : damage.getDirty()) {
+                        renderCells(g, cells);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+            //Anything drawn into lost contents has to be redrawn from scratch
+            redrawAll = true;
+        } while (backBuffer.contentsLost());
+        gr.drawImage(backBuffer, 0, 0, null);
+    }
+
+    /**
+     * Rebuilds the glyph atlas if the palette changed
+     */
+    private void updateAtlas() {
+        if (atlas == null || atlasPaletteVersion != screenBuffer.getPaletteVersion()) {
+            atlasPaletteVersion = screenBuffer.getPaletteVersion();
+            if (atlas == null) {
+                atlas = new GlyphAtlas(font, this.CHAR_WIDTH, this.CHAR_HEIGHT, screenBuffer.getPalette());
+            } else {
+                atlas.setPalette(screenBuffer.getPalette());
+                //Every cached cell on the back buffer used the old palette
+                backBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Draws a rectangle of cells from the {@link ScreenBuffer}
+     *
+     * @param g target
+     * @param cells area to draw, in cells
+     */
+    private void renderCells(Graphics g, Rectangle cells) {
+        int columns = Math.min(screenBuffer.getViewportWidth(), cells.x + cells.width);
+        int rows = Math.min(screenBuffer.getViewportHeight(), cells.y + cells.height);
+        int[] rowChars = new int[screenBuffer.getWidth()];
+        short[] rowColors = new short[rowChars.length];
+        for (int y = cells.y; y < rows; y++) {
+            int count = Math.min(columns, screenBuffer.readRow(y, rowChars, rowColors));
+            for (int x = cells.x; x < count; x++) {
+                atlas.draw(g, rowChars[x], rowColors[x], x * this.CHAR_WIDTH, y * this.CHAR_HEIGHT);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.util.List;
+import javax.swing.JComponent;
+
+/**
+ * Memory telemetry of a {@link LuaProfile}: used memory over the run against
+ * the RAM tiers, the lines the heap grew on and the sizes of live tables.
+ *
+ * @author VladTheMountain
+ */
+public class MemoryPanel extends JComponent {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default OpenComputers memory sizes of the tier 1 to 3.5 sticks, for
+     * 32-bit Lua
+     */
+    private static final int[] TIER_KIB = {192, 256, 384, 512, 768, 1024};
+    private static final String[] TIER_NAMES = {"T1", "T1.5", "T2", "T2.5", "T3", "T3.5"};
+    private static final int CHART_HEIGHT = 220;
+    private static final int MAX_SITES = 15;
+
+    private final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private final LuaProfile profile;
+
+    /**
+     * @param memoryProfile profile to draw
+     */
+    public MemoryPanel(LuaProfile memoryProfile) {
+        profile = memoryProfile;
+        setPreferredSize(new Dimension(900, CHART_HEIGHT + 40 + (MAX_SITES + 2) * 16));
+        setOpaque(true);
+    }
+
+    @Override
+    protected void paintComponent(Graphics gr) {
+        gr.setColor(Color.WHITE);
+        gr.fillRect(0, 0, getWidth(), getHeight());
+        gr.setFont(font);
+        FontMetrics fm = gr.getFontMetrics();
+        paintTimeline(gr, fm, 50, 10, getWidth() - 60, CHART_HEIGHT);
+        int top = CHART_HEIGHT + 30;
+        paintAllocations(gr, fm, 10, top);
+        paintTableSizes(gr, fm, getWidth() / 2 + 10, top, getWidth() / 2 - 20);
+    }
+
+    private void paintTimeline(Graphics gr, FontMetrics fm, int x, int y, int width, int height) {
+        List<LuaProfile.MemoryReading> memory = profile.getMemory();
+        gr.setColor(Color.LIGHT_GRAY);
+        gr.drawRect(x, y, width, height);
+        if (memory.isEmpty()) {
+            gr.setColor(Color.BLACK);
+            gr.drawString("No memory readings", x + 6, y + fm.getAscent() + 4);
+            return;
+        }
+        LuaProfile.MemoryReading first = memory.get(0);
+        LuaProfile.MemoryReading lastReading = memory.get(memory.size() - 1);
+        long maxBytes = 0;
+        for (LuaProfile.MemoryReading reading : memory) {
+            maxBytes = Math.max(maxBytes, reading.getTotal());
+        }
+        double span = Math.max(1, lastReading.getMicros() - first.getMicros());
+        //RAM tiers below the machine's total
+        for (int i = 0; i < TIER_KIB.length && TIER_KIB[i] * 1024L <= maxBytes; i++) {
+            int tierY = y + height - (int) ((double) height * TIER_KIB[i] * 1024 / maxBytes);
+            gr.setColor(new Color(200, 200, 255));
+            gr.drawLine(x, tierY, x + width, tierY);
+            gr.setColor(Color.GRAY);
+            gr.drawString(TIER_NAMES[i], x - fm.stringWidth(TIER_NAMES[i]) - 4, tierY + fm.getAscent() / 2);
+        }
+        gr.setColor(new Color(220, 60, 30));
+        int previousX = -1;
+        int previousY = -1;
+        for (LuaProfile.MemoryReading reading : memory) {
+            int pointX = x + (int) (width * (reading.getMicros() - first.getMicros()) / span);
+            int pointY = y + height - (int) ((double) height * reading.getUsed() / maxBytes);
+            if (previousX >= 0) {
+                gr.drawLine(previousX, previousY, pointX, pointY);
+            }
+            previousX = pointX;
+            previousY = pointY;
+        }
+        gr.setColor(Color.BLACK);
+        gr.drawString(String.format("peak %d KiB of %d KiB, last %d KiB free, over %.1f s of Lua time", profile.getPeakMemory() / 1024, maxBytes / 1024, lastReading.getFree() / 1024, span / 1_000_000), x + 6, y + height + fm.getAscent() + 4);
+    }
+
+    private void paintAllocations(Graphics gr, FontMetrics fm, int x, int y) {
+        gr.setColor(Color.BLACK);
+        gr.drawString("Heap growth by line", x, y + fm.getAscent());
+        List<LuaProfile.Allocation> allocations = profile.getAllocations();
+        for (int i = 0; i < Math.min(MAX_SITES, allocations.size()); i++) {
+            LuaProfile.Allocation allocation = allocations.get(i);
+            gr.drawString(String.format("%8d KiB  %s:%d", allocation.getBytes() / 1024, allocation.getFile(), allocation.getLine()), x, y + fm.getAscent() + (i + 1) * fm.getHeight());
+        }
+    }
+
+    private void paintTableSizes(Graphics gr, FontMetrics fm, int x, int y, int width) {
+        gr.setColor(Color.BLACK);
+        gr.drawString("Live tables by entry count", x, y + fm.getAscent());
+        long most = 1;
+        for (LuaProfile.TableBucket bucket : profile.getTableSizes().values()) {
+            most = Math.max(most, bucket.getTables());
+        }
+        int labelWidth = fm.stringWidth("65536-131071 ");
+        int row = 1;
+        for (LuaProfile.TableBucket bucket : profile.getTableSizes().values()) {
+            int rowY = y + row * fm.getHeight();
+            String label = bucket.getMinSize() == bucket.getMaxSize() ? String.valueOf(bucket.getMinSize()) : bucket.getMinSize() + "-" + bucket.getMaxSize();
+            gr.setColor(Color.BLACK);
+            gr.drawString(label, x, rowY + fm.getAscent());
+            int bar = (int) ((width - labelWidth - 60) * bucket.getTables() / most);
+            gr.setColor(new Color(90, 140, 220));
+            gr.fillRect(x + labelWidth, rowY + 2, Math.max(1, bar), fm.getHeight() - 4);
+            gr.setColor(Color.BLACK);
+            gr.drawString(String.valueOf(bucket.getTables()), x + labelWidth + bar + 4, rowY + fm.getAscent());
+            row++;
+        }
+    }
+}
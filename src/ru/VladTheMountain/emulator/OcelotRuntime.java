@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import totoro.ocelot.brain.Ocelot;
+
+/**
+ * Shares ocelot-brain between everything emulating in this JVM.
+ *
+ * {@code Ocelot.initialize()} and {@code Ocelot.shutdown()} are global, so an
+ * emulator window and a headless profiling run going at once would shut each
+ * other down. Each user acquires the runtime instead; it is initialized by
+ * the first and shut down when the last one releases it.
+ *
+ * @author VladTheMountain
+ */
+public final class OcelotRuntime {
+
+    private static int users;
+
+    private OcelotRuntime() {
+    }
+
+    /**
+     * Initializes ocelot-brain unless it is already in use
+     */
+    public static synchronized void acquire() {
+        if (users++ == 0) {
+            Ocelot.initialize();
+        }
+    }
+
+    /**
+     * Shuts ocelot-brain down if this was the last user. Must be called once
+     * for every {@link #acquire()}.
+     */
+    public static synchronized void release() {
+        if (users == 0) {
+            throw new IllegalStateException("ocelot-brain released more often than acquired");
+        }
+        if (--users == 0) {
+            Ocelot.shutdown();
+        }
+    }
+
+    /**
+     * @return how many emulations are using ocelot-brain
+     */
+    public static synchronized int getUsers() {
+        return users;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything given to an emulation from outside, tick by tick, so that a run
+ * started from a {@link WorkspaceSnapshot} can be played again.
+ *
+ * The file starts with magic "OCRL", a version and the tick rate. Then come
+ * records, each a varint tick delta, a kind byte and its payload: a varint
+ * view index and a {@link MachineInput} for inputs, a message for crashes.
+ * Strings are a varint byte count followed by UTF-8, so they have no length
+ * limit.
+ * An end record closes a finished recording; records are flushed as they
+ * are written, so a log cut short by a dying process stays readable.
+ *
+ * @author VladTheMountain
+ */
+public final class ReplayLog {
+
+    private static final int MAGIC = 0x4F43524C;
+    private static final int VERSION = 2;
+    private static final int INPUT = 0;
+    private static final int CRASH = 1;
+    private static final int END = 2;
+
+    private final double tps;
+    private final List<Entry> entries;
+    private final long endTick;
+
+    private ReplayLog(double tps, List<Entry> entries, long endTick) {
+        this.tps = tps;
+        this.entries = entries;
+        this.endTick = endTick;
+    }
+
+    /**
+     * Reads a whole log
+     *
+     * @param file log to read
+     * @return the recorded run
+     * @throws IOException if the file is not a replay log or can't be read
+     */
+    public static ReplayLog read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a replay log: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported replay log version " + version + ": " + file);
+            }
+            double tps = in.readDouble();
+            List<Entry> entries = new ArrayList<>();
+            long tick = 0;
+            while (true) {
+                long delta;
+                try {
+                    delta = readVarLong(in);
+                } catch (EOFException ex) {
+                    //Cut short, replay up to the last record
+                    return new ReplayLog(tps, entries, -1);
+                }
+                tick += delta;
+                int kind = in.readUnsignedByte();
+                switch (kind) {
+                    case INPUT:
+                        int view = (int) readVarLong(in);
+                        entries.add(new Entry(tick, view, MachineInput.read(in), null));
+                        break;
+                    case CRASH:
+                        entries.add(new Entry(tick, -1, null, readString(in)));
+                        break;
+                    case END:
+                        return new ReplayLog(tps, entries, tick);
+                    default:
+                        throw new IOException("Unknown replay record " + kind + " in " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return tick rate the run was recorded at
+     */
+    public double getTargetTps() {
+        return tps;
+    }
+
+    /**
+     * @return records in order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the tick the recording was stopped at, or -1 if the log was cut
+     * short
+     */
+    public long getEndTick() {
+        return endTick;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in replay log");
+    }
+
+    /**
+     * Unlike {@link DataOutput#writeUTF}, takes strings of any length, such
+     * as big clipboard pastes
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        long length = readVarLong(in);
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("String too long in replay log: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One record of a log
+     */
+    public static final class Entry {
+
+        private final long tick;
+        private final int view;
+        private final MachineInput input;
+        private final String crash;
+
+        Entry(long tick, int view, MachineInput input, String crash) {
+            this.tick = tick;
+            this.view = view;
+            this.input = input;
+            this.crash = crash;
+        }
+
+        /**
+         * @return ticks since the recording started, the record applies
+         * before that tick's update
+         */
+        public long getTick() {
+            return tick;
+        }
+
+        /**
+         * @return index of the view the input was given to
+         */
+        public int getView() {
+            return view;
+        }
+
+        /**
+         * @return the input, or {@code null} for a crash
+         */
+        public MachineInput getInput() {
+            return input;
+        }
+
+        /**
+         * @return crash message, or {@code null} for an input
+         */
+        public String getCrash() {
+            return crash;
+        }
+    }
+
+    /**
+     * Writes a log while a run is going on. Simulation thread only.
+     */
+    public static final class Recorder implements Closeable {
+
+        private final DataOutputStream out;
+        private long lastTick;
+
+        /**
+         * @param file log to create
+         * @param tps tick rate of the run
+         * @throws IOException
+         */
+        public Recorder(Path file, double tps) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(tps);
+            out.flush();
+        }
+
+        public void input(long tick, int view, MachineInput input) throws IOException {
+            header(tick, INPUT);
+            writeVarLong(out, view);
+            input.write(out);
+            out.flush();
+        }
+
+        public void crash(long tick, String message) throws IOException {
+            header(tick, CRASH);
+            writeString(out, message == null ? "" : message);
+            out.flush();
+        }
+
+        /**
+         * Ends the recording
+         *
+         * @param tick ticks run since the recording started
+         * @throws IOException
+         */
+        public void end(long tick) throws IOException {
+            header(tick, END);
+            close();
+        }
+
+        private void header(long tick, int kind) throws IOException {
+            writeVarLong(out, tick - lastTick);
+            out.writeByte(kind);
+            lastTick = tick;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
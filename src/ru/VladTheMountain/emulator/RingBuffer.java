@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer
+ * thread.
+ *
+ * Each side owns one counter and only reads the other's, so no CAS loops
+ * are needed: the producer publishes a slot with an ordered write of
+ * {@code tail}, the consumer frees it with an ordered write of {@code head}.
+ *
+ * @author VladTheMountain
+ * @param <T> element type
+ */
+public class RingBuffer<T> {
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    //Only touched by the producer and consumer respectively
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity minimum number of elements, rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Bad ring buffer capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element. Producer thread only.
+     *
+     * @param value element to add, not {@code null}
+     * @return {@code false} if the buffer is full
+     */
+    public boolean offer(T value) {
+        long t = tail.get();
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) {
+                return false;
+            }
+        }
+        slots[(int) t & mask] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element. Consumer thread only.
+     *
+     * @return the element or {@code null} if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        T value = (T) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    /**
+     * Removes up to {@code max} elements, oldest first. Consumer thread only.
+     *
+     * @param consumer receives the elements
+     * @param max upper bound, so a busy producer can't keep the consumer
+     * draining forever
+     * @return number of elements removed
+     */
+    public int drain(Consumer<? super T> consumer, int max) {
+        int count = 0;
+        T value;
+        while (count < max && (value = poll()) != null) {
+            consumer.accept(value);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return approximate number of queued elements
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,608 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Model of an emulated screen: a grid of codepoints with foreground and
+ * background colours.
+ *
+ * Cells are stored in flat primitive arrays, one {@code int} codepoint and
+ * one {@code short} packing foreground (high byte) and background (low byte)
+ * palette indices per cell, so a tier-3 160x50 screen takes under 50 KB and
+ * no per-cell objects. Colours are quantized to the 256-colour palette
+ * OpenComputers uses on tier-3 hardware: 16 changeable entries (greys by
+ * default) followed by a fixed 6x8x5 RGB cube.
+ *
+ * Every change is recorded as {@link Damage} for the renderer: copies are
+ * kept as moves to be replayed on an already rendered image, everything else
+ * marks the cells it touched as dirty.
+ *
+ * All methods are synchronized, the buffer may be read for painting while
+ * {@link GpuCommand}s are being applied to it.
+ *
+ * @author VladTheMountain
+ */
+public class ScreenBuffer {
+
+    private static final int REDS = 6;
+    private static final int GREENS = 8;
+    private static final int BLUES = 5;
+    /**
+     * Palette index of pure white in the default palette
+     */
+    static final int WHITE = 255;
+    /**
+     * Palette index of pure black in the default palette
+     */
+    static final int BLACK = 16;
+    /**
+     * Past this many separate dirty rectangles they get merged into one
+     */
+    private static final int MAX_DIRTY_RECTANGLES = 16;
+    /**
+     * Past this many pending copies the whole screen gets redrawn instead
+     */
+    private static final int MAX_COPIES = 64;
+
+    private final int[] palette = new int[256];
+    private int paletteVersion;
+    private int width;
+    private int height;
+    private int viewportWidth;
+    private int viewportHeight;
+    private int[] chars;
+    private short[] colors;
+    //Current GPU state
+    private int foreground;
+    private int background;
+    private int depth = 8;
+    private final List<Rectangle> dirty = new ArrayList<>();
+    private final List<Copy> copies = new ArrayList<>();
+
+    /**
+     * Creates a blank white-on-black buffer
+     *
+     * @param width columns
+     * @param height rows
+     */
+    public ScreenBuffer(int width, int height) {
+        for (int i = 0; i < 16; i++) {
+            int shade = 0xFF * (i + 1) / 17;
+            palette[i] = (shade << 16) | (shade << 8) | shade;
+        }
+        for (int i = 0; i < 240; i++) {
+            int r = (i / BLUES / GREENS) % REDS * 0xFF / (REDS - 1);
+            int g = (i / BLUES) % GREENS * 0xFF / (GREENS - 1);
+            int b = i % BLUES * 0xFF / (BLUES - 1);
+            palette[i + 16] = (r << 16) | (g << 8) | b;
+        }
+        foreground = deflate(0xFFFFFF);
+        background = deflate(0x000000);
+        this.width = 0;
+        this.height = 0;
+        this.chars = new int[0];
+        this.colors = new short[0];
+        setResolution(width, height);
+    }
+
+    /**
+     * Resizes the buffer, keeping the overlapping part of its contents
+     *
+     * @param w new width
+     * @param h new height
+     */
+    public synchronized void setResolution(int w, int h) {
+        int[] newChars = new int[w * h];
+        short[] newColors = new short[w * h];
+        Arrays.fill(newChars, ' ');
+        Arrays.fill(newColors, pack(foreground, background));
+        int keepWidth = Math.min(w, width);
+        for (int row = 0; row < Math.min(h, height); row++) {
+            System.arraycopy(chars, row * width, newChars, row * w, keepWidth);
+            System.arraycopy(colors, row * width, newColors, row * w, keepWidth);
+        }
+        width = w;
+        height = h;
+        viewportWidth = w;
+        viewportHeight = h;
+        chars = newChars;
+        colors = newColors;
+        markAllDirty();
+    }
+
+    /**
+     * Replaces the contents with {@code buffer}, resizing to match it
+     *
+     * @param buffer rows of characters, as kept by ocelot-brain
+     */
+    public synchronized void load(char[][] buffer) {
+        int h = buffer.length;
+        int w = h == 0 ? 0 : buffer[0].length;
+        if (w != width || h != height) {
+            setResolution(w, h);
+        }
+        for (int row = 0; row < h; row++) {
+            for (int col = 0; col < Math.min(w, buffer[row].length); col++) {
+                chars[row * w + col] = buffer[row][col];
+            }
+        }
+        markAllDirty();
+    }
+
+    public synchronized void setViewport(int w, int h) {
+        viewportWidth = Math.min(w, width);
+        viewportHeight = Math.min(h, height);
+        markAllDirty();
+    }
+
+    public synchronized void setForeground(int rgb) {
+        foreground = deflate(rgb);
+    }
+
+    public synchronized void setBackground(int rgb) {
+        background = deflate(rgb);
+    }
+
+    public synchronized void setDepth(int bits) {
+        depth = bits;
+    }
+
+    /**
+     * @param index palette entry, only the first 16 can be changed
+     * @param rgb new colour
+     */
+    public synchronized void setPaletteColor(int index, int rgb) {
+        if (index >= 0 && index < 16) {
+            palette[index] = rgb;
+            paletteVersion++;
+            markAllDirty();
+        }
+    }
+
+    /**
+     * Writes a string starting at the given cell
+     *
+     * @param x column
+     * @param y row
+     * @param value text to write
+     * @param vertical write downwards instead of to the right
+     */
+    public synchronized void set(int x, int y, String value, boolean vertical) {
+        short color = pack(foreground, background);
+        int col = x;
+        int row = y;
+        for (int i = 0; i < value.length();) {
+            int codepoint = value.codePointAt(i);
+            i += Character.charCount(codepoint);
+            if (col >= 0 && row >= 0 && col < width && row < height) {
+                chars[row * width + col] = codepoint;
+                colors[row * width + col] = color;
+            }
+            if (vertical) {
+                row++;
+            } else {
+                col++;
+            }
+        }
+        if (vertical) {
+            markDirty(x, y, 1, row - y);
+        } else {
+            markDirty(x, y, col - x, 1);
+        }
+    }
+
+    /**
+     * Fills a rectangle with one character
+     *
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     * @param codepoint character to fill with
+     */
+    public synchronized void fill(int x, int y, int w, int h, int codepoint) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + w, width);
+        int y1 = Math.min(y + h, height);
+        if (x0 >= x1) {
+            return;
+        }
+        short color = pack(foreground, background);
+        for (int row = y0; row < y1; row++) {
+            Arrays.fill(chars, row * width + x0, row * width + x1, codepoint);
+            Arrays.fill(colors, row * width + x0, row * width + x1, color);
+        }
+        markDirty(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Copies a rectangle by the given offset. Overlapping source and target
+     * are handled like a move.
+     *
+     * @param x left column of the source
+     * @param y top row of the source
+     * @param w width
+     * @param h height
+     * @param tx horizontal offset
+     * @param ty vertical offset
+     */
+    public synchronized void copy(int x, int y, int w, int h, int tx, int ty) {
+        //Clip the source so that both source and target are on the screen
+        int x0 = Math.max(Math.max(x, 0), -tx);
+        int y0 = Math.max(Math.max(y, 0), -ty);
+        int x1 = Math.min(Math.min(x + w, width), width - tx);
+        int y1 = Math.min(Math.min(y + h, height), height - ty);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        int length = x1 - x0;
+        if (ty > 0) {
+            for (int row = y1 - 1; row >= y0; row--) {
+                copyRow(row, x0, length, tx, ty);
+            }
+        } else {
+            for (int row = y0; row < y1; row++) {
+                copyRow(row, x0, length, tx, ty);
+            }
+        }
+        markCopied(new Rectangle(x0, y0, length, y1 - y0), tx, ty);
+    }
+
+    private void copyRow(int row, int col, int length, int tx, int ty) {
+        int from = row * width + col;
+        int to = (row + ty) * width + col + tx;
+        System.arraycopy(chars, from, chars, to, length);
+        System.arraycopy(colors, from, colors, to, length);
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    public synchronized int getViewportWidth() {
+        return viewportWidth;
+    }
+
+    public synchronized int getViewportHeight() {
+        return viewportHeight;
+    }
+
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    public synchronized int getChar(int x, int y) {
+        return chars[y * width + x];
+    }
+
+    /**
+     * @param x column
+     * @param y row
+     * @return foreground colour of the cell as RGB
+     */
+    public synchronized int getForeground(int x, int y) {
+        return palette[(colors[y * width + x] >> 8) & 0xFF];
+    }
+
+    /**
+     * @param x column
+     * @param y row
+     * @return background colour of the cell as RGB
+     */
+    public synchronized int getBackground(int x, int y) {
+        return palette[colors[y * width + x] & 0xFF];
+    }
+
+    /**
+     * Copies a row into caller-provided arrays, so that a whole row can be
+     * painted with a single lock
+     *
+     * @param y row
+     * @param rowChars receives codepoints
+     * @param rowColors receives packed palette indices, foreground in the
+     * high byte
+     * @return number of cells copied, less than the arrays' length if the
+     * buffer is narrower or {@code y} is past its last row
+     */
+    public synchronized int readRow(int y, int[] rowChars, short[] rowColors) {
+        if (y >= height) {
+            return 0;
+        }
+        int count = Math.min(width, rowChars.length);
+        System.arraycopy(chars, y * width, rowChars, 0, count);
+        System.arraycopy(colors, y * width, rowColors, 0, count);
+        return count;
+    }
+
+    /**
+     * Writes the whole state of the buffer, for {@link #read}
+     *
+     * @param out target
+     * @throws IOException
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(viewportWidth);
+        out.writeInt(viewportHeight);
+        out.writeByte(foreground);
+        out.writeByte(background);
+        out.writeByte(depth);
+        for (int i = 0; i < 16; i++) {
+            out.writeInt(palette[i]);
+        }
+        for (int i = 0; i < chars.length; i++) {
+            out.writeInt(chars[i]);
+            out.writeShort(colors[i]);
+        }
+    }
+
+    /**
+     * Replaces the whole state of the buffer with one saved by {@link #write}
+     *
+     * @param in source
+     * @throws IOException
+     */
+    public synchronized void read(DataInput in) throws IOException {
+        int w = in.readInt();
+        int h = in.readInt();
+        if (w < 0 || h < 0 || (long) w * h > Integer.MAX_VALUE) {
+            throw new IOException("Bad screen size " + w + "x" + h);
+        }
+        width = w;
+        height = h;
+        viewportWidth = in.readInt();
+        viewportHeight = in.readInt();
+        foreground = in.readUnsignedByte();
+        background = in.readUnsignedByte();
+        depth = in.readUnsignedByte();
+        for (int i = 0; i < 16; i++) {
+            palette[i] = in.readInt();
+        }
+        paletteVersion++;
+        chars = new int[w * h];
+        colors = new short[w * h];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = in.readInt();
+            colors[i] = in.readShort();
+        }
+        markAllDirty();
+    }
+
+    /**
+     * @return copy of the 256 palette entries as RGB
+     */
+    public synchronized int[] getPalette() {
+        return palette.clone();
+    }
+
+    /**
+     * @return counter increased on every palette change
+     */
+    public synchronized int getPaletteVersion() {
+        return paletteVersion;
+    }
+
+    /**
+     * Returns the changes made since the previous call and forgets them
+     *
+     * @return pending damage, possibly empty
+     */
+    public synchronized Damage takeDamage() {
+        Damage damage = new Damage(new ArrayList<>(copies), new ArrayList<>(dirty));
+        copies.clear();
+        dirty.clear();
+        return damage;
+    }
+
+    /**
+     * @return bounds of all pending damage in cells, or {@code null} if there
+     * is none
+     */
+    public synchronized Rectangle getDamageBounds() {
+        Rectangle bounds = null;
+        for (Rectangle r : dirty) {
+            bounds = bounds == null ? new Rectangle(r) : bounds.union(r);
+        }
+        for (Copy c : copies) {
+            Rectangle target = c.getTarget();
+            bounds = bounds == null ? target : bounds.union(target);
+        }
+        return bounds;
+    }
+
+    private void markAllDirty() {
+        copies.clear();
+        dirty.clear();
+        dirty.add(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Records a copy to be replayed by the renderer. Dirty cells inside the
+     * source haven't been rendered yet, so their targets become dirty too.
+     */
+    private void markCopied(Rectangle source, int tx, int ty) {
+        if (dirty.size() == 1 && dirty.get(0).contains(0, 0, width, height)) {
+            return;
+        }
+        if (copies.size() >= MAX_COPIES) {
+            markAllDirty();
+            return;
+        }
+        copies.add(new Copy(source, tx, ty));
+        for (Rectangle r : new ArrayList<>(dirty)) {
+            Rectangle moved = r.intersection(source);
+            if (!(moved.isEmpty())) {
+                markDirty(moved.x + tx, moved.y + ty, moved.width, moved.height);
+            }
+        }
+    }
+
+    private void markDirty(int x, int y, int w, int h) {
+        Rectangle area = new Rectangle(x, y, w, h).intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+        //Merge with everything the area touches until nothing overlaps
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < dirty.size(); i++) {
+                Rectangle other = dirty.get(i);
+                if (other.contains(area)) {
+                    return;
+                }
+                if (area.x <= other.x + other.width && other.x <= area.x + area.width
+                        && area.y <= other.y + other.height && other.y <= area.y + area.height) {
+                    area = area.union(dirty.remove(i));
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        dirty.add(area);
+        if (dirty.size() > MAX_DIRTY_RECTANGLES) {
+            Rectangle all = dirty.get(0);
+            for (Rectangle r : dirty) {
+                all = all.union(r);
+            }
+            dirty.clear();
+            dirty.add(all);
+        }
+    }
+
+    private static short pack(int fg, int bg) {
+        return (short) ((fg << 8) | bg);
+    }
+
+    /**
+     * Finds the palette entry closest to a colour
+     *
+     * @param rgb colour
+     * @return palette index
+     */
+    private int deflate(int rgb) {
+        for (int i = 0; i < 16; i++) {
+            if (palette[i] == (rgb & 0xFFFFFF)) {
+                return i;
+            }
+        }
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int idxR = (r * (REDS - 1) + 0x7F) / 0xFF;
+        int idxG = (g * (GREENS - 1) + 0x7F) / 0xFF;
+        int idxB = (b * (BLUES - 1) + 0x7F) / 0xFF;
+        int best = 16 + idxR * GREENS * BLUES + idxG * BLUES + idxB;
+        int bestDelta = delta(palette[best], rgb);
+        for (int i = 0; i < 16; i++) {
+            int d = delta(palette[i], rgb);
+            if (d < bestDelta) {
+                best = i;
+                bestDelta = d;
+            }
+        }
+        return best;
+    }
+
+    private static int delta(int a, int b) {
+        int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+        int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * A rectangle of cells moved by an offset
+     */
+    public static class Copy {
+
+        private final Rectangle source;
+        private final int dx;
+        private final int dy;
+
+        Copy(Rectangle source, int dx, int dy) {
+            this.source = source;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        public Rectangle getSource() {
+            return new Rectangle(source);
+        }
+
+        public Rectangle getTarget() {
+            return new Rectangle(source.x + dx, source.y + dy, source.width, source.height);
+        }
+
+        public int getDx() {
+            return dx;
+        }
+
+        public int getDy() {
+            return dy;
+        }
+    }
+
+    /**
+     * Changes to apply to an image that showed the buffer at the time of the
+     * previous {@link #takeDamage()}: first replay the copies in order, then
+     * redraw the dirty cells from the buffer
+     */
+    public static class Damage {
+
+        private final List<Copy> copies;
+        private final List<Rectangle> dirty;
+
+        Damage(List<Copy> copies, List<Rectangle> dirty) {
+            this.copies = copies;
+            this.dirty = dirty;
+        }
+
+        public List<Copy> getCopies() {
+            return copies;
+        }
+
+        public List<Rectangle> getDirty() {
+            return dirty;
+        }
+
+        public boolean isEmpty() {
+            return copies.isEmpty() && dirty.isEmpty();
+        }
+    }
+}
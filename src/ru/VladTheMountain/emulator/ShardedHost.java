@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicReference;
+import totoro.ocelot.brain.entity.Relay;
+import totoro.ocelot.brain.workspace.Workspace;
+
+/**
+ * Runs many computers headless, split into independent {@code Workspace}s
+ * ticked in parallel.
+ *
+ * Machines are grouped by {@link MachineSetup#getNetwork() network}; a
+ * network is never split, so each shard is self-contained and its
+ * {@code Workspace} can be updated on its own worker thread. Every tick the
+ * coordinating thread releases all workers and waits for them at a barrier,
+ * so the tick listener runs while no shard is being updated.
+ *
+ * Used by {@link HeadlessRunner} to run several projects at once.
+ *
+ * @author VladTheMountain
+ */
+public class ShardedHost {
+
+    private final Path directory;
+    private final int maxShards;
+    private final List<MachineSetup> setups = new ArrayList<>();
+    private final List<Shard> shards = new ArrayList<>();
+    private EmulatedMachine[] machines = new EmulatedMachine[0];
+    private Shard[] owners = new Shard[0];
+    private final TickScheduler scheduler = new TickScheduler();
+    private TickScheduler.Tick tickListener;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean closing;
+
+    /**
+     * Creates a host using up to one shard per available core
+     *
+     * @param directory folder to keep the shards' workspaces in
+     */
+    public ShardedHost(Path directory) {
+        this(directory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param directory folder to keep the shards' workspaces in
+     * @param maxShards upper bound on the number of workspaces and workers
+     */
+    public ShardedHost(Path directory, int maxShards) {
+        if (maxShards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed: " + maxShards);
+        }
+        this.directory = directory;
+        this.maxShards = maxShards;
+    }
+
+    /**
+     * Adds a computer to build on start
+     *
+     * @param machineSetup Hardware of the computer to add
+     */
+    public void addMachine(MachineSetup machineSetup) {
+        setups.add(machineSetup);
+    }
+
+    /**
+     * Builds the machines and ticks them until the tick listener or
+     * {@link #exit()} stops the loop. Blocks the calling thread.
+     */
+    public void start() {
+        OcelotRuntime.acquire();
+        try {
+            partition();
+            int workers = Math.min(shards.size(), Runtime.getRuntime().availableProcessors());
+            Phaser phaser = new Phaser(workers + 1);
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                List<Shard> owned = new ArrayList<>();
+                for (int i = w; i < shards.size(); i += workers) {
+                    owned.add(shards.get(i));
+                }
+                Thread thread = new Thread(() -> work(phaser, owned), "Ocelot shard worker " + w);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+            try {
+                scheduler.run(() -> {
+                    if (tickListener != null && !(tickListener.tick())) {
+                        return false;
+                    }
+                    phaser.arriveAndAwaitAdvance();
+                    phaser.arriveAndAwaitAdvance();
+                    return failure.get() == null;
+                });
+            } finally {
+                closing = true;
+                phaser.arriveAndDeregister();
+                for (Thread thread : threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        } finally {
+            OcelotRuntime.release();
+        }
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new IllegalStateException("Shard update failed", error);
+        }
+    }
+
+    private void work(Phaser phaser, List<Shard> owned) {
+        while (true) {
+            phaser.arriveAndAwaitAdvance();
+            if (closing) {
+                phaser.arriveAndDeregister();
+                return;
+            }
+            try {
+                for (Shard shard : owned) {
+                    shard.tick();
+                }
+            } catch (RuntimeException | Error ex) {
+                failure.compareAndSet(null, ex);
+            }
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    /**
+     * Spreads the networks over at most {@code maxShards} workspaces, biggest
+     * first onto the least loaded shard, and builds the machines
+     */
+    private void partition() {
+        Map<Object, List<Integer>> networks = new LinkedHashMap<>();
+        for (int i = 0; i < setups.size(); i++) {
+            MachineSetup setup = setups.get(i);
+            Object key = setup.getNetwork() != null ? setup.getNetwork() : new Object();
+            networks.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+        List<List<Integer>> groups = new ArrayList<>(networks.values());
+        groups.sort(Comparator.comparingInt((List<Integer> group) -> group.size()).reversed());
+        int count = Math.min(maxShards, groups.size());
+        for (int i = 0; i < count; i++) {
+            shards.add(new Shard(i, new Workspace(directory.resolve("shard-" + i))));
+        }
+        machines = new EmulatedMachine[setups.size()];
+        owners = new Shard[setups.size()];
+        for (List<Integer> group : groups) {
+            Shard target = Collections.min(shards, Comparator.comparingInt((Shard shard) -> shard.machines.size()));
+            Relay relay = null;
+            if (group.size() > 1) {
+                relay = target.world.add(new Relay());
+            }
+            for (int index : group) {
+                EmulatedMachine machine = setups.get(index).build(target.world);
+                if (relay != null) {
+                    machine.getComputer().connect(relay);
+                }
+                machine.getComputer().turnOn();
+                target.machines.add(machine);
+                machines[index] = machine;
+                owners[index] = target;
+            }
+        }
+    }
+
+    /**
+     * Asks the loop to finish after the current tick
+     */
+    public void exit() {
+        scheduler.stop();
+    }
+
+    /**
+     * @return the scheduler driving the ticks, used to change the tick rate or
+     * to run unthrottled
+     */
+    public TickScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param listener called on the coordinating thread before every tick,
+     * returning {@code false} stops the emulation
+     */
+    public void setTickListener(TickScheduler.Tick listener) {
+        tickListener = listener;
+    }
+
+    /**
+     * @return the shards, available once started
+     */
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * @param index position of the setup in the order it was added
+     * @return the machine built from that setup, available once started
+     */
+    public EmulatedMachine getMachine(int index) {
+        return machines[index];
+    }
+
+    /**
+     * @param index position of the setup in the order it was added
+     * @return the shard the machine runs in, available once started
+     */
+    public Shard getShard(int index) {
+        return owners[index];
+    }
+
+    /**
+     * One {@code Workspace} with the machines of one or more whole networks
+     */
+    public static class Shard {
+
+        private final int index;
+        private final Workspace world;
+        private final List<EmulatedMachine> machines = new ArrayList<>();
+
+        Shard(int index, Workspace world) {
+            this.index = index;
+            this.world = world;
+        }
+
+        private void tick() {
+            world.update();
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Workspace getWorkspace() {
+            return world;
+        }
+
+        public List<EmulatedMachine> getMachines() {
+            return Collections.unmodifiableList(machines);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-timestep scheduler for the {@code Workspace} update loop.
+ *
+ * Ticks are planned against an absolute deadline, so the time spent inside a
+ * tick doesn't shift the following ones. When the loop falls behind, up to
+ * {@code maxCatchUpTicks} late ticks are run back-to-back; if the backlog grows
+ * beyond {@code maxBacklogTicks} the excess is dropped instead of being
+ * replayed. In unthrottled mode ticks are run as fast as the host allows.
+ *
+ * @author VladTheMountain
+ */
+public class TickScheduler {
+
+    /**
+     * Minecraft (and therefore OpenComputers) server tick rate
+     */
+    public static final int DEFAULT_TPS = 20;
+
+    private volatile long tickNanos;
+    private volatile boolean unthrottled;
+    private volatile int maxCatchUpTicks = 5;
+    private volatile int maxBacklogTicks = 40;
+    private volatile boolean running;
+    private volatile boolean stopRequested;
+    //Statistics
+    private volatile long ticks;
+    private volatile long droppedTicks;
+
+    /**
+     * Creates a scheduler running at {@link #DEFAULT_TPS}
+     */
+    public TickScheduler() {
+        this(DEFAULT_TPS);
+    }
+
+    /**
+     * Creates a scheduler running at the given rate
+     *
+     * @param tps target ticks per second
+     */
+    public TickScheduler(double tps) {
+        setTargetTps(tps);
+    }
+
+    /**
+     * Runs {@code tick} on the calling thread until it returns {@code false},
+     * {@link #stop()} is called or the thread is interrupted. Returns at once
+     * if {@link #stop()} was already called, even before this thread got here;
+     * the interrupt status is left set.
+     *
+     * @param tick a single simulation step
+     */
+    public void run(Tick tick) {
+        running = true;
+        long next = System.nanoTime();
+        while (!(stopRequested) && !(Thread.currentThread().isInterrupted())) {
+            long now = System.nanoTime();
+            if (unthrottled) {
+                if (!(step(tick))) {
+                    stopRequested = true;
+                    break;
+                }
+                next = now;
+                continue;
+            }
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            long period = tickNanos;
+            long backlog = (now - next) / period;
+            if (backlog > maxBacklogTicks) {
+                droppedTicks += backlog - maxBacklogTicks;
+                next += (backlog - maxBacklogTicks) * period;
+            }
+            for (int i = 0; i <= maxCatchUpTicks && next <= now && !(stopRequested); i++) {
+                if (!(step(tick))) {
+                    stopRequested = true;
+                    break;
+                }
+                next += period;
+            }
+        }
+        running = false;
+    }
+
+    private boolean step(Tick tick) {
+        boolean result = tick.tick();
+        ticks++;
+        return result;
+    }
+
+    /**
+     * Asks the loop to finish after the current tick. A scheduler that has
+     * been stopped doesn't run again.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * @return whether the loop is ticking and hasn't been asked to stop
+     */
+    public boolean isRunning() {
+        return running && !(stopRequested);
+    }
+
+    /**
+     * @param tps target ticks per second, must be positive
+     */
+    public final void setTargetTps(double tps) {
+        if (!(tps > 0)) {
+            throw new IllegalArgumentException("TPS must be positive: " + tps);
+        }
+        tickNanos = (long) (TimeUnit.SECONDS.toNanos(1) / tps);
+    }
+
+    public double getTargetTps() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / tickNanos;
+    }
+
+    /**
+     * @param value {@code true} to ignore the target rate and tick as fast as
+     * possible
+     */
+    public void setUnthrottled(boolean value) {
+        unthrottled = value;
+    }
+
+    public boolean isUnthrottled() {
+        return unthrottled;
+    }
+
+    /**
+     * @param value how many late ticks may be run back-to-back before the loop
+     * checks the clock again
+     */
+    public void setMaxCatchUpTicks(int value) {
+        maxCatchUpTicks = Math.max(0, value);
+    }
+
+    /**
+     * @param value how many late ticks are kept before the rest gets dropped
+     */
+    public void setMaxBacklogTicks(int value) {
+        maxBacklogTicks = Math.max(0, value);
+    }
+
+    /**
+     * @return ticks run since creation
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return ticks dropped because the backlog was too long
+     */
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    /**
+     * A single simulation step
+     */
+    @FunctionalInterface
+    public interface Tick {
+
+        /**
+         * @return {@code false} to stop the loop
+         */
+        boolean tick();
+    }
+}
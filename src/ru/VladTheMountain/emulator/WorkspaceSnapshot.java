@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import totoro.ocelot.brain.nbt.CompressedStreamTools;
+import totoro.ocelot.brain.nbt.NBTTagCompound;
+
+/**
+ * A frozen {@code Workspace}: its NBT, the files of its folder (managed
+ * drives and the like) and the state of the screens shown for it.
+ *
+ * Everything is kept in one gzip-compressed file:
+ * <pre>
+ * int     magic "OCSN", int version
+ * NBT     Workspace
+ * int     file count, then per file: UTF path, long size, bytes
+ * int     screen count, then per screen: UTF title, UTF address,
+ *         ScreenBuffer state
+ * </pre>
+ *
+ * @author VladTheMountain
+ */
+public final class WorkspaceSnapshot {
+
+    private static final int MAGIC = 0x4F43534E;
+    private static final int VERSION = 1;
+
+    private final NBTTagCompound workspace;
+    private final List<MachineView> views;
+
+    private WorkspaceSnapshot(NBTTagCompound workspace, List<MachineView> views) {
+        this.workspace = workspace;
+        this.views = views;
+    }
+
+    /**
+     * Saves a snapshot. The workspace must not be updated meanwhile.
+     *
+     * @param file snapshot to write, replaced atomically
+     * @param workspace saved {@code Workspace}
+     * @param workspaceDir folder of the {@code Workspace}
+     * @param screens saved state of the screens, as written by
+     * {@link #writeScreens}
+     * @throws IOException
+     */
+    public static void write(Path file, NBTTagCompound workspace, Path workspaceDir, byte[] screens) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                CompressedStreamTools.write(workspace, out);
+                List<Path> files;
+                if (Files.isDirectory(workspaceDir)) {
+                    try (Stream<Path> walk = Files.walk(workspaceDir)) {
+                        files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+                    }
+                } else {
+                    files = Collections.emptyList();
+                }
+                out.writeInt(files.size());
+                for (Path source : files) {
+                    out.writeUTF(workspaceDir.relativize(source).toString().replace('\\', '/'));
+                    //Exactly the announced size is copied, so a file changing meanwhile can't break the framing
+                    try (SeekableByteChannel channel = Files.newByteChannel(source)) {
+                        long size = channel.size();
+                        out.writeLong(size);
+                        copy(Channels.newInputStream(channel), out, size);
+                    } catch (EOFException ex) {
+                        throw new IOException("File shrank while saving the snapshot: " + source, ex);
+                    }
+                }
+                out.write(screens);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    /**
+     * Serializes the screens for {@link #write}. Must be called on the thread
+     * rendering the views.
+     *
+     * @param views views to save
+     * @return saved state
+     * @throws IOException
+     */
+    static byte[] writeScreens(List<MachineView> views) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(views.size());
+            for (MachineView view : views) {
+                out.writeUTF(view.getTitle());
+                out.writeUTF(view.getScreenAddress() == null ? "" : view.getScreenAddress());
+                view.getScreenBuffer().write(out);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Loads a snapshot, replacing the contents of {@code workspaceDir} with
+     * the saved files. The files are extracted next to {@code workspaceDir}
+     * and swapped in only once the whole snapshot has been read, so a broken
+     * snapshot leaves the workspace as it was.
+     *
+     * @param file snapshot to read
+     * @param workspaceDir folder of the {@code Workspace} to restore into
+     * @return the saved NBT and screens
+     * @throws IOException if the file is not a snapshot or can't be read
+     */
+    public static WorkspaceSnapshot read(Path file, Path workspaceDir) throws IOException {
+        Path root = workspaceDir.toAbsolutePath().normalize();
+        Path staging = root.resolveSibling(root.getFileName() + ".restore");
+        FileUtils.deleteDirectory(staging.toFile());
+        Files.createDirectories(staging);
+        try {
+            WorkspaceSnapshot snapshot;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a workspace snapshot: " + file);
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version + ": " + file);
+                }
+                NBTTagCompound workspace = CompressedStreamTools.read(in);
+                int files = in.readInt();
+                for (int i = 0; i < files; i++) {
+                    Path target = staging.resolve(in.readUTF()).normalize();
+                    if (!(target.startsWith(staging))) {
+                        throw new IOException("File outside of the workspace in snapshot: " + target);
+                    }
+                    long size = in.readLong();
+                    Files.createDirectories(target.getParent());
+                    try (OutputStream out = Files.newOutputStream(target)) {
+                        copy(in, out, size);
+                    }
+                }
+                int screens = in.readInt();
+                List<MachineView> views = new ArrayList<>(screens);
+                for (int i = 0; i < screens; i++) {
+                    MachineView view = new MachineView(in.readUTF());
+                    String address = in.readUTF();
+                    view.restore(address.isEmpty() ? null : address, in);
+                    views.add(view);
+                }
+                snapshot = new WorkspaceSnapshot(workspace, views);
+            } catch (EOFException ex) {
+                throw new IOException("Snapshot is truncated: " + file, ex);
+            }
+            if (Files.isDirectory(root)) {
+                Path old = root.resolveSibling(root.getFileName() + ".old");
+                FileUtils.deleteDirectory(old.toFile());
+                Files.move(root, old);
+                Files.move(staging, root);
+                FileUtils.deleteDirectory(old.toFile());
+            } else {
+                Files.move(staging, root);
+            }
+            return snapshot;
+        } finally {
+            FileUtils.deleteDirectory(staging.toFile());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException("Expected " + left + " more bytes");
+            }
+            out.write(buffer, 0, read);
+            left -= read;
+        }
+    }
+
+    /**
+     * @return saved {@code Workspace}, to be loaded after
+     * {@code Ocelot.initialize()}
+     */
+    public NBTTagCompound getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * @return views with the saved screens
+     */
+    public List<MachineView> getViews() {
+        return Collections.unmodifiableList(views);
+    }
+}
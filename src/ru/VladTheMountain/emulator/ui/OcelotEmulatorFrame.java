@@ -24,49 +24,35 @@
 package ru.VladTheMountain.emulator.ui;
 
 import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics;
 import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
-import java.util.logging.Level;
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.GroupLayout;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
-import javax.swing.Timer;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
-import ru.VladTheMountain.emulator.EmuLogger;
-import totoro.ocelot.brain.Ocelot;
-import totoro.ocelot.brain.entity.CPU;
-import totoro.ocelot.brain.entity.Case;
-import totoro.ocelot.brain.entity.GraphicsCard;
-import totoro.ocelot.brain.entity.HDDManaged;
-import totoro.ocelot.brain.entity.Memory;
-import totoro.ocelot.brain.entity.Screen;
-import totoro.ocelot.brain.event.BeepEvent;
-import totoro.ocelot.brain.event.BeepPatternEvent;
-import totoro.ocelot.brain.event.Event;
-import totoro.ocelot.brain.event.EventBus;
-import totoro.ocelot.brain.event.FileSystemActivityEvent;
-import totoro.ocelot.brain.event.MachineCrashEvent;
-import totoro.ocelot.brain.event.RelayActivityEvent;
-import totoro.ocelot.brain.event.TextBufferCopyEvent;
-import totoro.ocelot.brain.event.TextBufferFillEvent;
-import totoro.ocelot.brain.event.TextBufferSetBackgroundColorEvent;
-import totoro.ocelot.brain.event.TextBufferSetColorDepthEvent;
-import totoro.ocelot.brain.event.TextBufferSetEvent;
-import totoro.ocelot.brain.event.TextBufferSetForegroundColorEvent;
-import totoro.ocelot.brain.event.TextBufferSetPaletteColorEvent;
-import totoro.ocelot.brain.event.TextBufferSetResolutionEvent;
-import totoro.ocelot.brain.event.TextBufferSetViewportEvent;
-import totoro.ocelot.brain.loot.Loot;
-import totoro.ocelot.brain.nbt.NBTTagCompound;
-import totoro.ocelot.brain.nbt.persistence.PersistableString;
-import totoro.ocelot.brain.util.Tier;
+import ru.VladTheMountain.emulator.Emulator;
+import ru.VladTheMountain.emulator.EmulatorMetrics;
+import ru.VladTheMountain.emulator.MachineSetup;
+import ru.VladTheMountain.emulator.MachineView;
 import totoro.ocelot.brain.workspace.Workspace;
 
 /**
@@ -85,18 +71,92 @@ public class OcelotEmulatorFrame extends JFrame {
      * Creates new form EmulatorFrame
      */
     public OcelotEmulatorFrame() {
-        Thread thr = new Thread() {
-            @Override
-            public void run() {
-                graphics.start();
-            }
-        };
-        graphics = new Emulator();
+        this(new MachineSetup());
+    }
+
+    /**
+     * Creates an emulator window running several computers side by side
+     *
+     * @param machineSetups Hardware of the computers to run
+     */
+    public OcelotEmulatorFrame(MachineSetup... machineSetups) {
+        graphics = new Emulator(new Workspace(new File(System.getProperty("user.dir") + "/Ocelot/test").toPath()), machineSetups);
+        graphics.setNetworked(true);
         initComponents();
-        Timer t = new Timer(300, (ActionEvent e) -> {
-            this.revalidate();
+        initMachineSwitcher();
+        initSnapshotMenu();
+        initHudMenu();
+    }
+
+    /**
+     * Adds the performance overlay and metrics export to the View menu
+     */
+    private void initHudMenu() {
+        JCheckBoxMenuItem hud = new JCheckBoxMenuItem("Performance HUD");
+        hud.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        hud.addActionListener((ActionEvent e) -> {
+            graphics.setHudVisible(hud.isSelected());
+        });
+        viewMenu.add(hud);
+        JMenuItem export = new JMenuItem("Export metrics...");
+        export.addActionListener((ActionEvent e) -> {
+            EmulatorMetrics.Report report = graphics.getLastReport();
+            if (report == null) {
+                return;
+            }
+            JFileChooser chooser = new JFileChooser(System.getProperty("user.dir"));
+            chooser.setSelectedFile(new File("emulator-metrics.prom"));
+            if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                try (Writer out = Files.newBufferedWriter(chooser.getSelectedFile().toPath(), StandardCharsets.UTF_8)) {
+                    report.export(out);
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(this, "Can't export metrics: " + ex.getMessage(), "Metrics", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        viewMenu.add(export);
+    }
+
+    /**
+     * Adds snapshot saving to the File menu
+     */
+    private void initSnapshotMenu() {
+        JMenuItem save = new JMenuItem("Save snapshot...");
+        save.addActionListener((ActionEvent e) -> {
+            JFileChooser chooser = new JFileChooser(System.getProperty("user.dir"));
+            chooser.setSelectedFile(new File("workspace.ocsnap"));
+            if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                graphics.snapshot(chooser.getSelectedFile().toPath()).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        SwingUtilities.invokeLater(() -> {
+                            JOptionPane.showMessageDialog(this, "Can't save snapshot: " + error.getMessage(), "Snapshot", JOptionPane.ERROR_MESSAGE);
+                        });
+                    }
+                });
+            }
         });
-        t.start();
+        fileMenu.add(save, 0);
+    }
+
+    /**
+     * Lists the emulated computers in the Window menu
+     */
+    private void initMachineSwitcher() {
+        windowMenu.removeAll();
+        ButtonGroup group = new ButtonGroup();
+        List<MachineView> views = graphics.getViews();
+        for (int i = 0; i < views.size(); i++) {
+            final int index = i;
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(views.get(i).getTitle(), i == 0);
+            if (i < 9) {
+                item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_1 + i, InputEvent.ALT_DOWN_MASK));
+            }
+            item.addActionListener((ActionEvent e) -> {
+                graphics.setSelectedView(index);
+            });
+            group.add(item);
+            windowMenu.add(item);
+        }
     }
 
     /**
@@ -157,231 +217,55 @@ public class OcelotEmulatorFrame extends JFrame {
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
+    /**
+     * @param args {@code [--record <log> | --replay <log>] [count]} to run
+     * that many networked computers, or {@code --restore <snapshot>}
+     */
     public static void main(String[] args) {
-        new OcelotEmulatorFrame().setVisible(true);
-        graphics.start();
-    }
-
-    //Emulator class
-    class Emulator extends JPanel {
-
-        private static final long serialVersionUID = 1L;
-
-        //JComponent
-        private Color back = Color.BLACK;
-        private Color fore = Color.WHITE;
-        private final int CHAR_WIDTH = 9;
-        private final int CHAR_HEIGHT = 22;
-        private final Font font = Font.getFont("Monospaced Plain 16");
-        //Ocelot
-        private Workspace world;
-        private NBTTagCompound emulation;
-        private Screen screen;
-        //Custom
-        private EmuLogger logger;
-
-        //Emulator-specific
-        private Color[] colors = { //Data was taken from https://minecraft-ru.gamepedia.com/OpenComputers/Colors_API
-            new Color(255, 255, 255), //White
-            new Color(255, 127, 0), //Orange
-            new Color(255, 0, 255), //Magenta
-            new Color(0, 127, 127), //Lightblue
-            new Color(255, 255, 0), //Yellow
-            new Color(0, 255, 0),//Lime,
-            new Color(255, 127, 255), //Pink
-            new Color(85, 85, 85), //Gray
-            new Color(170, 170, 170), //Silver
-            new Color(0, 255, 255), //Cyan
-            new Color(127, 0, 127), //Purple
-            new Color(0, 0, 127), //Blue
-            new Color(127, 0, 0), //Brown
-            new Color(0, 127, 0), //Green
-            new Color(255, 0, 0), //Red
-            new Color(0, 0, 0) //Black
-        };
-
-        /**
-         * Launch emulator with a premade workspace
-         *
-         * @param workspace Workspace to deploy
-         */
-        public Emulator() {
-            super();
-            logger = new EmuLogger();
-        }
-
-        /**
-         * Launch emulator with a premade workspace
-         *
-         * @param workspaceDir File to get workspace from
-         */
-        public Emulator(File workspaceDir) {
-            world = new Workspace(workspaceDir.toPath());
-            start();
-        }
-
-        /**
-         * What to do when emulation starting
-         */
-        public void start() {
-            Ocelot.initialize();
-            world = new Workspace(new File(System.getProperty("user.dir") + "/Ocelot/test").toPath());
-            Case computer = world.add(new Case(Tier.Three()));
-            CPU cpu = new CPU(Tier.Three());
-            computer.add(cpu);
-            GraphicsCard gpu = new GraphicsCard(Tier.Two());
-            computer.add(gpu);
-            Memory mem1 = new Memory(Tier.Six());
-            computer.add(mem1);
-            Memory mem2 = new Memory(Tier.Three());
-            computer.add(mem2);
-            HDDManaged hdd = new HDDManaged(Tier.Three());
-            computer.add(hdd);
-            computer.add(Loot.OpenOsEEPROM().create());
-            computer.add(Loot.OpenOsFloppy().create());
-            screen = world.add(new Screen(Tier.Two()));
-            computer.connect(screen);
-            computer.setCustomData(new PersistableString("xxx"));
-            //
-            computer.turnOn();
-            //Event handlers
-            EventBus.listenTo(BeepEvent.class, (Event v1) -> {
-                BeepEvent event = (BeepEvent) v1;
-                logger.log(Level.INFO, "Computer beeped with " + event.frequency() + " Hz for " + event.duration());
-                return null;
-            });
-            EventBus.listenTo(BeepPatternEvent.class, (Event v1) -> {
-                BeepPatternEvent event = (BeepPatternEvent) v1;
-                logger.log(Level.INFO, "Computer beeped with pattern " + event.pattern().toString());
-                return null;
-            });
-            EventBus.listenTo(FileSystemActivityEvent.class, (Event v1) -> {
-                FileSystemActivityEvent event = (FileSystemActivityEvent) v1;
-                logger.log(Level.INFO, "Filesystem actvity at " + event.address());
-                return null;
-            });
-            EventBus.listenTo(MachineCrashEvent.class, (Event v1) -> {
-                MachineCrashEvent event = (MachineCrashEvent) v1;
-                logger.log(Level.WARNING, "Machine crashed. Info:\n" + event.message());
-                return null;
-            });
-            EventBus.listenTo(RelayActivityEvent.class, (Event v1) -> {
-                RelayActivityEvent event = (RelayActivityEvent) v1;
-                logger.log(Level.INFO, "Relay activity at " + event.relay().toString());
-                return null;
-            });
-            // DO NOT MODIFY //
-            while (true) {
-                if (loop() != 1) {
-                    break;
-                } else {
-                    world.update();
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException ex) {
-                        System.out.println("[" + ru.VladTheMountain.emulator.Emulator.class.getName() + "]" + ex.getMessage());
-                    }
+        if (args.length == 2 && args[0].equals("--restore")) {
+            SwingUtilities.invokeLater(() -> {
+                OcelotEmulatorFrame frame = new OcelotEmulatorFrame(new MachineSetup[0]);
+                try {
+                    graphics.restore(new File(args[1]).toPath());
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(frame, "Can't restore snapshot: " + ex.getMessage(), "Snapshot", JOptionPane.ERROR_MESSAGE);
+                    System.exit(1);
                 }
-            }
-            exit();
-        }
-
-        /**
-         * What to perform while working
-         *
-         * @return status of performed operation
-         */
-        private int loop() {
-            repaint();
-            System.out.println("Called repaint()");
-            return 1;
+                frame.initMachineSwitcher();
+                frame.pack();
+                frame.setVisible(true);
+                graphics.launch();
+            });
+            return;
         }
-
-        /**
-         * What to do when stopping the emulation
-         */
-        private void stop() {
-
-            // DO NOT MODIFY //
-            world.save(emulation);
+        int first = 0;
+        String mode = null;
+        if (args.length >= 2 && (args[0].equals("--record") || args[0].equals("--replay"))) {
+            mode = args[0];
+            first = 2;
         }
-
-        public void exit() {
-            stop();
-            Ocelot.shutdown();
+        int count = args.length > first ? Integer.parseInt(args[first]) : 1;
+        MachineSetup[] setups = new MachineSetup[count];
+        for (int i = 0; i < count; i++) {
+            setups[i] = new MachineSetup();
+            setups[i].setNetworkCard(count > 1);
         }
-
-        /**
-         * GPU-related event handling
-         *
-         * @param gr
-         */
-        @Override
-        public void paintComponent(Graphics gr) {
-            super.paintComponent(gr);
-            System.out.println("paintComponent");
-            gr.setColor(Color.BLACK);
-            EventBus.listenTo(TextBufferCopyEvent.class, (Event v1) -> {
-                TextBufferCopyEvent event = (TextBufferCopyEvent) v1;
-                logger.log(Level.INFO, "GPU: Copied area " + event.width() + "x" + event.height() + "at" + event.x() + ":" + event.y() + " to " + (event.x() + event.horizontalTranslation()) + ":" + (event.y() + event.verticalTranslation()));
-                gr.copyArea(event.x(), event.y(), event.width(), event.height(), event.x() + event.horizontalTranslation(), event.y() + event.verticalTranslation());
-                return null;
-            });
-            EventBus.listenTo(TextBufferFillEvent.class, (Event v1) -> {
-                TextBufferFillEvent event = (TextBufferFillEvent) v1;
-                logger.log(Level.INFO, "GPU: Filled area at " + event.x() + ":" + event.y() + " with size of " + event.width() + "x" + event.height());
-                gr.fillRect(event.x(), event.y(), event.width(), event.height());
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetBackgroundColorEvent.class, (Event v1) -> {
-                TextBufferSetBackgroundColorEvent event = (TextBufferSetBackgroundColorEvent) v1;
-                logger.log(Level.INFO, "GPU: Background set to " + event.color());
-                this.setBackground(new Color(event.color()));
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetColorDepthEvent.class, (Event v1) -> {
-                TextBufferSetColorDepthEvent event = (TextBufferSetColorDepthEvent) v1;
-                logger.log(Level.INFO, "GPU: Set color depth to " + event.depth());
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetEvent.class, (Event v1) -> {
-                TextBufferSetEvent event = (TextBufferSetEvent) v1;
-                logger.log(Level.INFO, "GPU: Printed string " + event.value() + " at " + event.x() + ":" + event.y());
-                gr.drawString(event.value(), event.x() * this.CHAR_WIDTH, event.y() * this.CHAR_HEIGHT);
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetForegroundColorEvent.class, (Event v1) -> {
-                TextBufferSetForegroundColorEvent event = (TextBufferSetForegroundColorEvent) v1;
-                logger.log(Level.INFO, "GPU: Foreground set to " + event.color());
-                gr.setColor(new Color(event.color()));
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetPaletteColorEvent.class, (Event v1) -> {
-                TextBufferSetPaletteColorEvent event = (TextBufferSetPaletteColorEvent) v1;
-                logger.log(Level.INFO, "GPU: Set palette color " + event.index());
-                gr.setColor(colors[event.index()]);
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetResolutionEvent.class, (Event v1) -> {
-                TextBufferSetResolutionEvent event = (TextBufferSetResolutionEvent) v1;
-                logger.log(Level.INFO, "GPU: Resolution is set to " + event.width() + "x" + event.height());
-                this.setSize(event.width() * this.CHAR_WIDTH, event.height() * this.CHAR_HEIGHT);
-                return null;
-            });
-            EventBus.listenTo(TextBufferSetViewportEvent.class, (Event v1) -> {
-                TextBufferSetViewportEvent event = (TextBufferSetViewportEvent) v1;
-                // TODO
-                return null;
-            });
-            logger.log(Level.WARNING, "GPU: Drawing screen");
-            for (int i = 0; i < screen._data().buffer().length; i++) {
-                for (int j = 0; j < screen._data().buffer()[i].length; j++) {
-                    gr.drawString(String.valueOf(screen._data().buffer()[i][j]), j * this.CHAR_WIDTH, i * this.CHAR_HEIGHT);
-                    System.out.print(String.valueOf(screen._data().buffer()[i][j]));
+        String replayMode = mode;
+        SwingUtilities.invokeLater(() -> {
+            OcelotEmulatorFrame frame = new OcelotEmulatorFrame(setups);
+            try {
+                if ("--record".equals(replayMode)) {
+                    graphics.record(new File(args[1]).toPath());
+                } else if ("--replay".equals(replayMode)) {
+                    graphics.replay(new File(args[1]).toPath());
                 }
-                System.out.print("\n");
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(frame, "Can't open replay log: " + ex.getMessage(), "Replay", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
             }
-        }
+            frame.setVisible(true);
+            graphics.launch();
+        });
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
@@ -23,18 +23,43 @@
  */
 package ru.VladTheMountain.oclide.configurator.ocemu;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.swing.JOptionPane;
 import ru.VladTheMountain.oclide.configurator.ocemu.component.OCEmuComponent;
 
 /**
+ * Writes OCEmu's {@code ocemu.cfg}.
+ *
+ * The config is rendered from an {@link OCEmuConfig}: the existing file if
+ * there is one, otherwise the bundled template. Components are always
+ * replaced with the given ones, settings missing from the file are added with
+ * their defaults. The file is only rewritten when the rendered text differs
+ * from what's on disk, and an existing file that doesn't parse is never
+ * overwritten.
  *
  * @author VladTheMountain
  */
 public class ConfigMaker {
 
+    /**
+     * Default config with comments and an empty component list
+     */
+    private static final String TEMPLATE = "/ru/VladTheMountain/oclide/resources/configurator/ocemu/ocemu.cfg";
+
     //CONFIG VARIABLES
     private static String monochromeColor = "0xFFFFFF";
     private static boolean allowBytecode = false;
@@ -47,7 +72,7 @@ public class ConfigMaker {
     private static int maxNetworkPacketSize = 8192;
     private static int maxWirelessRange = 400;
     //
-    private String computerComponents;
+    private final List<OCEmuComponent> computerComponents;
 
     /**
      * Initialization constructor
@@ -55,185 +80,114 @@ public class ConfigMaker {
      * @param comps
      */
     public ConfigMaker(OCEmuComponent[] comps) {
-        this.computerComponents = "";
-        for (OCEmuComponent comp : comps) {
-            switch (comp.getComponentType()) {
-                case 0:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"computer\", "
-                            + "\"" + comp.getComponentAddress() + "\"},\n";
-                    break;
-                case 1:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"eeprom\", "
-                            + "\"" + comp.getComponentAddress() + "\", " + "" + comp.getOptionAt(0) + ", " + "\"" + comp.getOptionAt(1) + "\"},\n";
-                    break;
-                case 2:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"filesystem\", "
-                            + "\"" + comp.getComponentAddress() + "\", " + "" + comp.getOptionAt(0) + ", " + "\"" + comp.getOptionAt(1) + "\", " + "" + comp.getOptionAt(2) + "},\n";
-                    break;
-                case 3:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"gpu\", "
-                            + "\"" + comp.getComponentAddress() + "\", " + "" + comp.getOptionAt(0) + ", " + "" + comp.getOptionAt(1) + ", " + "" + comp.getOptionAt(2) + ", " + "" + comp.getOptionAt(3) + "},\n";
-                    break;
-                case 4:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"internet\", \"" + comp.getComponentAddress() + "\"},\n";
-                    break;
-                case 5:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"keyboard_sdl2\", "
-                            + "\"" + comp.getComponentAddress() + "\"},\n";
-                    break;
-                case 6:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"modem\", "
-                            + "\"" + comp.getComponentAddress() + "\", " + "" + comp.getOptionAt(0) + ", " + "" + comp.getOptionAt(1) + "},\n";
-                    break;
-                case 7:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"ocemu\", "
-                            + "\"" + comp.getComponentAddress() + "\"},\n";
-                    break;
-                case 8:
-                    this.computerComponents = this.computerComponents + "      "
-                            + "{\"screen_sdl2\", "
-                            + "\"" + comp.getComponentAddress() + "\", " + "" + comp.getOptionAt(0) + ", " + "" + comp.getOptionAt(1) + ", " + "" + comp.getOptionAt(2) + ", " + "" + comp.getOptionAt(3) + "},\n";
-                    break;
-            }
+        this.computerComponents = Arrays.asList(comps.clone());
+    }
+
+    /**
+     * @return where OCEmu looks for its config on this OS
+     */
+    public static File getConfigFile() {
+        if (System.getProperty("os.name").contains("Windows")) {
+            return new File(System.getenv("APPDATA") + "\\OCEmu\\ocemu.cfg");
+        }
+        if (new File(System.getenv("XDG_CONFIG_HOME") + "/ocemu").exists()) {
+            return new File(System.getenv("XDG_CONFIG_HOME") + "/ocemu/ocemu.cfg");
         }
+        return new File(System.getenv("HOME") + "/.config/ocemu/ocemu.cfg");
     }
 
     /**
-     * Creates the new config file
+     * Writes the config to {@link #getConfigFile()}
      *
+     * @return {@code false} if the file already had the same contents
      * @throws IOException
      */
-    public void createConfig() throws IOException {
-        String path = null;
-        if (System.getProperty("os.name").contains("Windows")) {
-            path = System.getenv("APPDATA") + "\\OCEmu\\ocemu.cfg";
-        } else {
-            if (new File(System.getenv("XDG_CONFIG_HOME") + "/ocemu").exists()) {
-                path = System.getenv("XDG_CONFIG_HOME") + "/ocemu/ocemu.cfg";
-            } else {
-                path = System.getenv("HOME") + "/.config/ocemu/ocemu.cfg";
+    public boolean createConfig() throws IOException {
+        File config = getConfigFile();
+        if (config.getParentFile() == null) {
+            JOptionPane.showMessageDialog(null, "WARNING: Couldn't create config for your OS. Please create an issue about this problem at https://github.com/Vladg24YT/Oclide/issues", "Config creation error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        return writeConfig(config.toPath());
+    }
+
+    /**
+     * Renders the config over {@code file}, if it exists, and replaces it
+     * atomically
+     *
+     * @param file config to write
+     * @return {@code false} if the file already had the same contents
+     * @throws IOException if the existing file can't be parsed, which leaves
+     * it untouched, or if it can't be written
+     */
+    public boolean writeConfig(Path file) throws IOException {
+        byte[] old = Files.exists(file) ? Files.readAllBytes(file) : null;
+        OCEmuConfig config = null;
+        if (old != null) {
+            try {
+                config = OCEmuConfig.parse(new InputStreamReader(new ByteArrayInputStream(old), StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new IOException("Couldn't read " + file + ": " + ex.getMessage() + "\nFix or delete it to let Oclide write a new one.", ex);
             }
         }
-        if (path == null) {
-            JOptionPane.showMessageDialog(null, "WARNING: Couldn't create config for your OS. Please create an issue about this problem at https://github.com/Vladg24YT/Oclide/issues", "Config creation error", JOptionPane.ERROR_MESSAGE);
-            return;
+        boolean fresh = config == null;
+        if (fresh) {
+            config = template();
         }
-        File config = new File(path);
-        if (!(config.exists())) {
-            if (!(new File(config.getParent()).exists())) {
-                new File(config.getParent()).mkdirs();
+        for (Map.Entry<String, OCEmuConfig.Value> setting : settings().entrySet()) {
+            if (fresh || config.get(setting.getKey()) == null) {
+                config.set(setting.getKey(), setting.getValue());
             }
-            config.createNewFile();
         }
-        //
-        String contents
-                = "--OCEmu configuration. Designed to mimic HOCON syntax, but is not exactly HOCON\n"
-                + "--syntax.\n"
-                + "ocemu {\n"
-                + "\n"
-                + "  --Client side settings, presentation and performance related stuff.\n"
-                + "  client {\n"
-                + "\n"
-                + "    --The color of monochrome text (i.e. displayed when in 1-bit color depth,\n"
-                + "    --e.g. tier one screens / GPUs, or higher tier set to 1-bit color depth).\n"
-                + "    --Defaults to white, feel free to make it some other color, tho!\n"
-                + "    monochromeColor=\"" + monochromeColor + "\"\n"
-                + "  }\n"
-                + "\n"
-                + "  --Computer related settings, concerns server performance and security.\n"
-                + "  computer {\n"
-                + "\n"
-                + "    --Settings specific to the Lua architecture.\n"
-                + "    lua {\n"
-                + "\n"
-                + "      --Whether to allow loading precompiled bytecode via Lua's `load` function,\n"
-                + "      --or related functions (`loadfile`, `dofile`). Enable this only if you\n"
-                + "      --absolutely trust all users on your server and all Lua code you run. This\n"
-                + "      --can be a MASSIVE SECURITY RISK, since precompiled code can easily be\n"
-                + "      --used for exploits, running arbitrary code on the real server! I cannot\n"
-                + "      --stress this enough: only enable this is you know what you're doing.\n"
-                + "      allowBytecode=" + allowBytecode + "\n"
-                + "\n"
-                + "      --Whether to allow user defined __gc callbacks, i.e. __gc callbacks\n"
-                + "      --defined *inside* the sandbox. Since garbage collection callbacks are not\n"
-                + "      --sandboxed (hooks are disabled while they run), this is not recommended.\n"
-                + "      allowGC=" + allowGC + "\n"
-                + "    }\n"
-                + "\n"
-                + "    --The time in seconds a program may run without yielding before it is\n"
-                + "    --forcibly aborted. This is used to avoid stupidly written or malicious\n"
-                + "    --programs blocking other computers by locking down the executor threads.\n"
-                + "    --Note that changing this won't have any effect on computers that are\n"
-                + "    --already running - they'll have to be rebooted for this to take effect.\n"
-                + "    timeout=" + timeout + "\n"
-                + "  }\n"
-                + "\n"
-                + "  --Emulator related settings. Components, accuracy, and debugging.\n"
-                + "  emulator {\n"
-                + "\n"
-                + "    --Default components available to the computer.\n"
-                + "    components {\n"
-                + "\n"
-                /*computerComponents*/
-                + "{\"gpu\", \"ea252465-71b5-4a10-b073-a4fa86d5a0de\", 0, 160, 50, 3},\n"
-                + "      {\"modem\", \"8547cc86-0377-40f0-a3b9-fcee29003213\", 1, false},\n"
-                + "      {\"eeprom\", \"b66d9734-880f-453e-bfce-3bbb230afaae\", 9, \"lua/bios.lua\"},\n"
-                + "      {\"filesystem\", \"2bf82535-b34e-469c-ac31-a92d10040b9a\", 7, \"loot/openos\", \"openos\", true, 1},\n"
-                + "      {\"filesystem\", \"a20fd029-b38f-4689-ad35-177b5b9caa33\", -1, \"tmpfs\", \"tmpfs\", false, 5},\n"
-                + "      {\"filesystem\", \"93b849a3-d3d6-4a84-851e-7e5fd936ea63\", 5, \".machine\", \"OpenOS\", false, 4},\n"
-                + "      {\"internet\", \"c8fe394e-1cf3-4e2b-9f44-a13c6c1552c3\", 2},\n"
-                + "      {\"computer\", \"fd0de30a-f3a2-4559-b830-ab39a37376ba\", -1},\n"
-                + "      {\"ocemu\", \"8855c210-b7a5-4e49-88bf-cd6659a79e9d\", -1},\n"
-                + "      {\"screen_sdl2\", \"8d56e247-3db3-46ef-af93-13ccf12c40e5\", -1, 80, 25, 3},\n"
-                + "      {\"keyboard_sdl2\", \"6eea2524-6571-4bad-84c1-73a4fa86d5a0\", -1}"
-                + "    }\n"
-                + "\n"
-                + "    --Whether to enable the emulator's extremely verbose logging.\n"
-                + "    debug=" + debug + "\n"
-                + "\n"
-                + "    --Whether to return vague error messages like OpenComputers.\n"
-                + "    vague=" + vague + "\n"
-                + "  }\n"
-                + "\n"
-                + "  internet {\n"
-                + "\n"
-                + "    --Whether to allow HTTP requests via internet cards. When enabled, the\n"
-                + "    --`request` method on internet card components becomes available.\n"
-                + "    enableHttp=" + enableHttp + "\n"
-                + "\n"
-                + "    --Whether to allow TCP connections via internet cards. When enabled, the\n"
-                + "    --`connect` method on internet card components becomes available.\n"
-                + "    enableTcp=" + enableTcp + "\n"
-                + "  }\n"
-                + "\n"
-                + "  --Other settings that you might find useful to tweak.\n"
-                + "  misc {\n"
-                + "\n"
-                + "    --The maximum size of network packets to allow sending via network cards.\n"
-                + "    --This has *nothing to do* with real network traffic, it's just a limit for\n"
-                + "    --the network cards, mostly to reduce the chance of computer with a lot of\n"
-                + "    --RAM killing those with less by sending huge packets. This does not apply\n"
-                + "    --to HTTP traffic.\n"
-                + "    maxNetworkPacketSize=" + maxNetworkPacketSize + "\n"
-                + "\n"
-                + "    --The maximum distance a wireless message can be sent. In other words, this\n"
-                + "    --is the maximum signal strength a wireless network card supports. This is\n"
-                + "    --used to limit the search range in which to check for modems, which may or\n"
-                + "    --may not lead to performance issues for ridiculous ranges - like, you know,\n"
-                + "    --more than the loaded area. See also: `wirelessCostPerRange`.\n"
-                + "    maxWirelessRange=" + maxWirelessRange + "\n"
-                + "  }\n"
-                + "}";
-        //
-        Files.write(config.toPath(), contents.getBytes());
+        config.setComponents(computerComponents);
+        StringBuilder text = new StringBuilder(4096);
+        config.write(text);
+        byte[] contents = text.toString().getBytes(StandardCharsets.UTF_8);
+        if (Arrays.equals(old, contents)) {
+            return false;
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, contents);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * @return the bundled default config
+     */
+    static OCEmuConfig template() throws IOException {
+        InputStream in = ConfigMaker.class.getResourceAsStream(TEMPLATE);
+        if (in == null) {
+            //Stripped resources; the settings get added without comments
+            return OCEmuConfig.parse(new StringReader(""));
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return OCEmuConfig.parse(reader);
+        }
+    }
+
+    /**
+     * @return every setting by its dotted path
+     */
+    private static Map<String, OCEmuConfig.Value> settings() {
+        Map<String, OCEmuConfig.Value> settings = new LinkedHashMap<>();
+        settings.put("ocemu.client.monochromeColor", OCEmuConfig.Value.string(monochromeColor));
+        settings.put("ocemu.computer.lua.allowBytecode", OCEmuConfig.Value.bool(allowBytecode));
+        settings.put("ocemu.computer.lua.allowGC", OCEmuConfig.Value.bool(allowGC));
+        settings.put("ocemu.computer.timeout", OCEmuConfig.Value.number(timeout));
+        settings.put("ocemu.emulator.debug", OCEmuConfig.Value.bool(debug));
+        settings.put("ocemu.emulator.vague", OCEmuConfig.Value.bool(vague));
+        settings.put("ocemu.internet.enableHttp", OCEmuConfig.Value.bool(enableHttp));
+        settings.put("ocemu.internet.enableTcp", OCEmuConfig.Value.bool(enableTcp));
+        settings.put("ocemu.misc.maxNetworkPacketSize", OCEmuConfig.Value.number(maxNetworkPacketSize));
+        settings.put("ocemu.misc.maxWirelessRange", OCEmuConfig.Value.number(maxWirelessRange));
+        return settings;
     }
 
     /**
@@ -244,57 +198,6 @@ public class ConfigMaker {
      * @throws IOException
      */
     public OCEmuComponent[] readConfig(File f) throws IOException {
-        int lines = Files.readAllLines(f.toPath()).toArray().length;
-        String[] configContents = new String[lines];
-        System.arraycopy(Files.readAllLines(f.toPath()).toArray(configContents), 0, configContents, 0, lines);
-        OCEmuComponent[] tmp = {};
-        for (int i = 47; i < configContents.length; i++) {
-            if (configContents[i].startsWith("{") && (configContents[i].endsWith("}") || configContents[i].endsWith("},"))) {
-                int type = 7;
-                String address;
-                String[] opts = new String[4];
-                int comma1 = configContents[i].indexOf(",");
-                int comma2 = configContents[i].indexOf(",", comma1);
-                int comma3 = configContents[i].indexOf(",", comma2);
-                int comma4 = configContents[i].indexOf(",", comma3);
-                int comma5 = configContents[i].indexOf(",", comma4);
-                switch (configContents[i].substring(configContents[i].indexOf("\""), configContents[i].indexOf("\"", configContents[i].indexOf("\"")))) {
-                    case "computer":
-                        type = 0;
-                        break;
-                    case "eeprom":
-                        type = 1;
-                        break;
-                    case "filesystem":
-                        type = 2;
-                        break;
-                    case "gpu":
-                        type = 3;
-                        break;
-                    case "internet":
-                        type = 4;
-                        break;
-                    case "keyboard":
-                        type = 5;
-                        break;
-                    case "modem":
-                        type = 6;
-                        break;
-                    case "ocemu":
-                        type = 7;
-                        break;
-                    case "screen":
-                        type = 8;
-                        break;
-                }
-                address = configContents[i].substring(comma1 + 2, comma2 - 1);
-                opts[0] = configContents[i].substring(comma2 + 2, comma3 - 1);
-                opts[1] = configContents[i].substring(comma3 + 2, comma4 - 1);
-                opts[2] = configContents[i].substring(comma4 + 2, comma5 - 1);
-                opts[3] = configContents[i].substring(comma5 + 2, configContents[i].indexOf("}") - 1);
-                tmp[i] = new OCEmuComponent(type, address, opts);
-            }
-        }
-        return tmp;
+        return OCEmuConfig.read(f.toPath()).getComponents().toArray(new OCEmuComponent[0]);
     }
 }
@@ -0,0 +1,669 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.configurator.ocemu;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import ru.VladTheMountain.oclide.configurator.ocemu.component.OCEmuComponent;
+
+/**
+ * Contents of an {@code ocemu.cfg}: nested sections of settings, and the
+ * component list under {@code ocemu.emulator.components}.
+ *
+ * Comments and blank lines are kept with the node they precede, so a config
+ * read with {@link #read(Path)} and written with {@link #write(Appendable)}
+ * keeps everything but the indentation, which is normalized to two spaces.
+ *
+ * @author VladTheMountain
+ */
+public class OCEmuConfig {
+
+    /**
+     * Section holding the component list
+     */
+    public static final String COMPONENTS = "ocemu.emulator.components";
+    /**
+     * Component names by {@link OCEmuComponent#getComponentType()}
+     */
+    static final String[] COMPONENT_NAMES = {"computer", "eeprom", "filesystem", "gpu", "internet", "keyboard_sdl2", "modem", "ocemu", "screen_sdl2"};
+    /**
+     * Lua number literals, as far as the parser takes them
+     */
+    private static final Pattern NUMBER = Pattern.compile("-?(0[xX][0-9a-fA-F]+|([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?)");
+
+    private final Section root;
+
+    OCEmuConfig(Section rootSection) {
+        root = rootSection;
+    }
+
+    /**
+     * Creates an empty config
+     */
+    public OCEmuConfig() {
+        this(new Section(""));
+    }
+
+    /**
+     * @param file config to read
+     * @return the parsed config
+     * @throws IOException if the file can't be read or isn't a valid config
+     */
+    public static OCEmuConfig read(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return new OCEmuConfigParser(in, file.getFileName().toString()).parse();
+        }
+    }
+
+    /**
+     * @param in config text
+     * @return the parsed config
+     * @throws IOException if {@code in} fails or isn't a valid config
+     */
+    public static OCEmuConfig parse(Reader in) throws IOException {
+        return new OCEmuConfigParser(in, "ocemu.cfg").parse();
+    }
+
+    /**
+     * @return the unnamed top-level section
+     */
+    public Section getRoot() {
+        return root;
+    }
+
+    /**
+     * @param path dot-separated section names
+     * @return the section, or {@code null} if there's none
+     */
+    public Section getSection(String path) {
+        Section section = root;
+        for (String name : path.split("\\.")) {
+            section = section.getSection(name);
+            if (section == null) {
+                return null;
+            }
+        }
+        return section;
+    }
+
+    /**
+     * @param path dot-separated section names followed by the key
+     * @return the value, or {@code null} if there's none
+     */
+    public Value get(String path) {
+        int dot = path.lastIndexOf('.');
+        Section section = dot < 0 ? root : getSection(path.substring(0, dot));
+        return section == null ? null : section.get(path.substring(dot + 1));
+    }
+
+    public String getString(String path, String fallback) {
+        Value value = get(path);
+        return value == null || value.getType() == Value.Type.NIL ? fallback : value.getText();
+    }
+
+    public boolean getBoolean(String path, boolean fallback) {
+        Value value = get(path);
+        return value == null || value.getType() != Value.Type.BOOLEAN ? fallback : Boolean.parseBoolean(value.getText());
+    }
+
+    public int getInt(String path, int fallback) {
+        Value value = get(path);
+        return value == null || value.getType() != Value.Type.NUMBER ? fallback : (int) value.toLong();
+    }
+
+    /**
+     * Sets a value, adding the setting and its sections if they are missing
+     *
+     * @param path dot-separated section names followed by the key
+     * @param value new value
+     */
+    public void set(String path, Value value) {
+        int dot = path.lastIndexOf('.');
+        Section section = dot < 0 ? root : createSection(path.substring(0, dot));
+        section.set(path.substring(dot + 1), value);
+    }
+
+    /**
+     * @param path dot-separated section names
+     * @return the section, added along with its parents if missing
+     */
+    public Section createSection(String path) {
+        Section section = root;
+        for (String name : path.split("\\.")) {
+            Section child = section.getSection(name);
+            if (child == null) {
+                child = new Section(name);
+                section.add(child);
+            }
+            section = child;
+        }
+        return section;
+    }
+
+    /**
+     * @return the components listed in {@link #COMPONENTS}; options are
+     * everything after the address, strings unquoted. {@link #setComponents}
+     * keeps the Lua type of every option that comes back unchanged.
+     */
+    public List<OCEmuComponent> getComponents() {
+        List<OCEmuComponent> components = new ArrayList<>();
+        Section section = getSection(COMPONENTS);
+        if (section == null) {
+            return components;
+        }
+        for (Node node : section.getChildren()) {
+            if (!(node instanceof Item)) {
+                continue;
+            }
+            List<Value> values = ((Item) node).getValues();
+            if (values.size() < 2) {
+                continue;
+            }
+            int type = componentType(values.get(0).getText());
+            if (type < 0) {
+                continue;
+            }
+            String[] options = new String[values.size() - 2];
+            for (int i = 0; i < options.length; i++) {
+                options[i] = optionText(values.get(i + 2));
+            }
+            components.add(new OCEmuComponent(type, values.get(1).getText(), options));
+        }
+        return components;
+    }
+
+    /**
+     * Replaces the entries in {@link #COMPONENTS}, keeping the comments and
+     * settings around them. An entry for an address that was already listed
+     * keeps that entry's comments, and the values of the options that didn't
+     * change, so they are written back with the type they were read with.
+     *
+     * @param components new component list
+     */
+    public void setComponents(List<OCEmuComponent> components) {
+        Section section = createSection(COMPONENTS);
+        Map<String, Item> old = new HashMap<>();
+        for (Node node : section.getChildren()) {
+            if (node instanceof Item && ((Item) node).getValues().size() > 1) {
+                old.putIfAbsent(((Item) node).getValues().get(1).getText(), (Item) node);
+            }
+        }
+        section.clearItems();
+        for (int i = 0; i < components.size(); i++) {
+            Item previous = old.remove(components.get(i).getComponentAddress());
+            Item item = new Item(componentValues(components.get(i), previous), i < components.size() - 1);
+            if (previous != null) {
+                item.getComments().addAll(previous.getComments());
+                item.setTrailingComment(previous.getTrailingComment());
+            }
+            section.add(item);
+        }
+    }
+
+    /**
+     * @return an option as {@link #getComponents()} reports it
+     */
+    private static String optionText(Value value) {
+        switch (value.getType()) {
+            case NIL:
+                return "nil";
+            case TABLE:
+                return value.toString();
+            default:
+                return value.getText();
+        }
+    }
+
+    /**
+     * Options that still read the same as in {@code previous} keep its
+     * values, edited options that were strings stay strings. Other ones are
+     * written as Lua literals when they look
+     * like one: numbers, {@code true}, {@code false} and {@code nil} stay
+     * bare, anything else is quoted. The first {@code null} option ends the
+     * entry.
+     *
+     * @param previous entry listed for the same address before, or
+     * {@code null}
+     */
+    private static List<Value> componentValues(OCEmuComponent component, Item previous) {
+        List<Value> old = previous == null ? Collections.emptyList() : previous.getValues();
+        List<Value> values = new ArrayList<>();
+        if (!(old.isEmpty()) && componentType(old.get(0).getText()) == component.getComponentType()) {
+            //Keeps "screen" and "screen_sdl2" apart
+            values.add(old.get(0));
+        } else {
+            values.add(Value.string(COMPONENT_NAMES[component.getComponentType()]));
+        }
+        values.add(Value.string(component.getComponentAddress()));
+        for (int i = 0; i < component.getOptionCount() && component.getOptionAt(i) != null; i++) {
+            String option = component.getOptionAt(i);
+            if (i + 2 < old.size() && option.equals(optionText(old.get(i + 2)))) {
+                values.add(old.get(i + 2));
+            } else if (i + 2 < old.size() && old.get(i + 2).getType() == Value.Type.STRING) {
+                //An edited label stays a string, even if it reads like a number
+                values.add(Value.string(option));
+            } else if (option.equals("nil")) {
+                values.add(Value.NIL);
+            } else if (option.equals("true") || option.equals("false")) {
+                values.add(Value.bool(Boolean.parseBoolean(option)));
+            } else if (NUMBER.matcher(option).matches()) {
+                values.add(Value.number(option));
+            } else {
+                values.add(Value.string(option));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param name component name as written in the config, with or without
+     * the {@code _sdl2} suffix
+     * @return the matching {@link OCEmuComponent#getComponentType()}, or -1
+     */
+    static int componentType(String name) {
+        for (int i = 0; i < COMPONENT_NAMES.length; i++) {
+            if (COMPONENT_NAMES[i].equals(name) || COMPONENT_NAMES[i].equals(name + "_sdl2")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the config back in OCEmu's syntax
+     *
+     * @param out where to write to
+     * @throws IOException if {@code out} fails
+     */
+    public void write(Appendable out) throws IOException {
+        root.writeBody(out, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        try {
+            write(text);
+        } catch (IOException ex) {
+            //StringBuilder doesn't throw
+        }
+        return text.toString();
+    }
+
+    private static void indent(Appendable out, int depth) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+    }
+
+    /**
+     * Writes comment lines; an empty entry is a blank line
+     */
+    private static void writeComments(Appendable out, List<String> comments, int depth) throws IOException {
+        for (String comment : comments) {
+            if (!(comment.isEmpty())) {
+                indent(out, depth);
+                out.append("--").append(comment);
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Part of a config with the comments written above it
+     */
+    public abstract static class Node {
+
+        private final List<String> comments = new ArrayList<>();
+        private String trailingComment;
+
+        /**
+         * @return comment lines above the node without the leading
+         * {@code --}, empty strings stand for blank lines
+         */
+        public List<String> getComments() {
+            return comments;
+        }
+
+        /**
+         * @return comment on the same line after the node, or {@code null}
+         */
+        public String getTrailingComment() {
+            return trailingComment;
+        }
+
+        public void setTrailingComment(String comment) {
+            trailingComment = comment;
+        }
+
+        abstract void writeNode(Appendable out, int depth) throws IOException;
+
+        void write(Appendable out, int depth) throws IOException {
+            writeComments(out, comments, depth);
+            indent(out, depth);
+            writeNode(out, depth);
+            if (trailingComment != null) {
+                out.append(" --").append(trailingComment);
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * {@code name { ... }}
+     */
+    public static class Section extends Node {
+
+        private final String name;
+        private final List<Node> children = new ArrayList<>();
+        private final List<String> closingComments = new ArrayList<>();
+
+        public Section(String sectionName) {
+            name = sectionName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Node> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @return comment lines before the closing brace
+         */
+        public List<String> getClosingComments() {
+            return closingComments;
+        }
+
+        public void add(Node child) {
+            children.add(child);
+        }
+
+        public void remove(Node child) {
+            children.remove(child);
+        }
+
+        /**
+         * Removes all list items, keeping sections and settings
+         */
+        public void clearItems() {
+            children.removeIf((Node child) -> child instanceof Item);
+        }
+
+        public Section getSection(String sectionName) {
+            for (Node child : children) {
+                if (child instanceof Section && ((Section) child).name.equals(sectionName)) {
+                    return (Section) child;
+                }
+            }
+            return null;
+        }
+
+        public Value get(String key) {
+            Setting setting = getSetting(key);
+            return setting == null ? null : setting.value;
+        }
+
+        public Setting getSetting(String key) {
+            for (Node child : children) {
+                if (child instanceof Setting && ((Setting) child).key.equals(key)) {
+                    return (Setting) child;
+                }
+            }
+            return null;
+        }
+
+        public void set(String key, Value value) {
+            Setting setting = getSetting(key);
+            if (setting == null) {
+                children.add(new Setting(key, value));
+            } else {
+                setting.value = value;
+            }
+        }
+
+        @Override
+        void writeNode(Appendable out, int depth) throws IOException {
+            out.append(name).append(" {\n");
+            writeBody(out, depth + 1);
+            indent(out, depth);
+            out.append('}');
+        }
+
+        void writeBody(Appendable out, int depth) throws IOException {
+            for (Node child : children) {
+                child.write(out, depth);
+            }
+            writeComments(out, closingComments, depth);
+        }
+    }
+
+    /**
+     * {@code key=value}
+     */
+    public static class Setting extends Node {
+
+        private final String key;
+        private Value value;
+
+        public Setting(String settingKey, Value settingValue) {
+            key = settingKey;
+            value = settingValue;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Value getValue() {
+            return value;
+        }
+
+        public void setValue(Value newValue) {
+            value = newValue;
+        }
+
+        @Override
+        void writeNode(Appendable out, int depth) throws IOException {
+            out.append(key).append('=');
+            value.write(out);
+        }
+    }
+
+    /**
+     * Unnamed table in a section, such as a component entry
+     */
+    public static class Item extends Node {
+
+        private final List<Value> values;
+        private boolean separated;
+
+        /**
+         * @param itemValues table contents
+         * @param comma whether a comma follows the item
+         */
+        public Item(List<Value> itemValues, boolean comma) {
+            values = new ArrayList<>(itemValues);
+            separated = comma;
+        }
+
+        public List<Value> getValues() {
+            return Collections.unmodifiableList(values);
+        }
+
+        public boolean isSeparated() {
+            return separated;
+        }
+
+        public void setSeparated(boolean comma) {
+            separated = comma;
+        }
+
+        @Override
+        void writeNode(Appendable out, int depth) throws IOException {
+            Value.table(values).write(out);
+            if (separated) {
+                out.append(',');
+            }
+        }
+    }
+
+    /**
+     * A setting value or table entry
+     */
+    public static final class Value {
+
+        public enum Type {
+            STRING, NUMBER, BOOLEAN, NIL, TABLE
+        }
+
+        /**
+         * Shared {@code nil}
+         */
+        public static final Value NIL = new Value(Type.NIL, "nil", null);
+
+        private final Type type;
+        private final String text;
+        private final List<Value> items;
+
+        private Value(Type valueType, String valueText, List<Value> tableItems) {
+            type = valueType;
+            text = valueText;
+            items = tableItems;
+        }
+
+        public static Value string(String text) {
+            return new Value(Type.STRING, text, null);
+        }
+
+        /**
+         * @param literal number as written, e.g. {@code 0xFFFFFF}
+         */
+        public static Value number(String literal) {
+            return new Value(Type.NUMBER, literal, null);
+        }
+
+        public static Value number(long number) {
+            return new Value(Type.NUMBER, String.valueOf(number), null);
+        }
+
+        public static Value bool(boolean value) {
+            return new Value(Type.BOOLEAN, String.valueOf(value), null);
+        }
+
+        public static Value table(List<Value> tableItems) {
+            return new Value(Type.TABLE, null, Collections.unmodifiableList(new ArrayList<>(tableItems)));
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the string (unquoted), the number as written,
+         * {@code true}/{@code false} or {@code nil}; {@code null} for tables
+         */
+        public String getText() {
+            return text;
+        }
+
+        public List<Value> getItems() {
+            return items == null ? Collections.emptyList() : items;
+        }
+
+        /**
+         * @return the number's value, decimal or hexadecimal
+         * @throws NumberFormatException if this isn't an integer
+         */
+        public long toLong() {
+            String literal = text.trim();
+            boolean negative = literal.startsWith("-");
+            String digits = negative ? literal.substring(1) : literal;
+            long value = digits.startsWith("0x") || digits.startsWith("0X") ? Long.parseLong(digits.substring(2), 16) : (long) Double.parseDouble(digits);
+            return negative ? -value : value;
+        }
+
+        void write(Appendable out) throws IOException {
+            switch (type) {
+                case STRING:
+                    out.append('"');
+                    for (int i = 0; i < text.length(); i++) {
+                        char c = text.charAt(i);
+                        switch (c) {
+                            case '"':
+                                out.append("\\\"");
+                                break;
+                            case '\\':
+                                out.append("\\\\");
+                                break;
+                            case '\n':
+                                out.append("\\n");
+                                break;
+                            case '\t':
+                                out.append("\\t");
+                                break;
+                            default:
+                                out.append(c);
+                        }
+                    }
+                    out.append('"');
+                    break;
+                case TABLE:
+                    out.append('{');
+                    for (int i = 0; i < items.size(); i++) {
+                        if (i > 0) {
+                            out.append(", ");
+                        }
+                        items.get(i).write(out);
+                    }
+                    out.append('}');
+                    break;
+                default:
+                    out.append(text);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            try {
+                write(out);
+            } catch (IOException ex) {
+                //StringBuilder doesn't throw
+            }
+            return out.toString();
+        }
+    }
+}
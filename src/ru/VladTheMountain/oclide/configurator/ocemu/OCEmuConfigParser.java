@@ -0,0 +1,370 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.configurator.ocemu;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Single-pass parser for OCEmu's config syntax: {@code name { ... }}
+ * sections, {@code key=value} settings and unnamed {@code {...}} tables, with
+ * Lua literals and {@code --} comments.
+ *
+ * The input is read one character at a time and never buffered as a whole, so
+ * large generated configs are handled in constant memory apart from the tree
+ * itself.
+ *
+ * @author VladTheMountain
+ */
+class OCEmuConfigParser {
+
+    private enum Token {
+        NAME, STRING, NUMBER, OPEN, CLOSE, EQUALS, COMMA, COMMENT, NEWLINE, EOF
+    }
+
+    private final Reader in;
+    private final String source;
+    private int peeked = -2;
+    private int line = 1;
+    private int column;
+    //Current token
+    private Token token;
+    private final StringBuilder text = new StringBuilder();
+    private int tokenLine;
+    private int tokenColumn;
+
+    OCEmuConfigParser(Reader reader, String sourceName) {
+        in = reader;
+        source = sourceName;
+    }
+
+    OCEmuConfig parse() throws IOException {
+        OCEmuConfig.Section root = new OCEmuConfig.Section("");
+        Deque<OCEmuConfig.Section> open = new ArrayDeque<>();
+        open.push(root);
+        List<String> comments = new ArrayList<>();
+        OCEmuConfig.Node last = null;
+        int newlines = 0;
+        next();
+        while (true) {
+            switch (token) {
+                case NEWLINE:
+                    newlines++;
+                    if (newlines > 1) {
+                        comments.add("");
+                    }
+                    last = null;
+                    next();
+                    continue;
+                case COMMENT:
+                    if (last != null && newlines == 0) {
+                        last.setTrailingComment(text.toString());
+                    } else {
+                        comments.add(text.toString());
+                    }
+                    newlines = 0;
+                    next();
+                    continue;
+                case EOF:
+                    if (open.size() > 1) {
+                        throw error("missing '}' for section '" + open.peek().getName() + "'");
+                    }
+                    root.getClosingComments().addAll(comments);
+                    return new OCEmuConfig(root);
+                case CLOSE:
+                    if (open.size() == 1) {
+                        throw error("unexpected '}'");
+                    }
+                    OCEmuConfig.Section closed = open.pop();
+                    closed.getClosingComments().addAll(comments);
+                    comments.clear();
+                    last = closed;
+                    next();
+                    break;
+                case NAME:
+                    String name = text.toString();
+                    next();
+                    if (token == Token.OPEN) {
+                        OCEmuConfig.Section section = new OCEmuConfig.Section(name);
+                        attach(section, comments, open.peek());
+                        open.push(section);
+                        last = section;
+                        next();
+                    } else if (token == Token.EQUALS) {
+                        next();
+                        OCEmuConfig.Setting setting = new OCEmuConfig.Setting(name, value());
+                        attach(setting, comments, open.peek());
+                        last = setting;
+                        if (token == Token.COMMA) {
+                            next();
+                        }
+                    } else {
+                        throw error("expected '{' or '=' after '" + name + "'");
+                    }
+                    break;
+                case OPEN:
+                    next();
+                    List<OCEmuConfig.Value> values = tableItems();
+                    boolean comma = token == Token.COMMA;
+                    if (comma) {
+                        next();
+                    }
+                    OCEmuConfig.Item item = new OCEmuConfig.Item(values, comma);
+                    attach(item, comments, open.peek());
+                    last = item;
+                    break;
+                default:
+                    throw error("unexpected " + describe());
+            }
+            newlines = 0;
+        }
+    }
+
+    private static void attach(OCEmuConfig.Node node, List<String> comments, OCEmuConfig.Section parent) {
+        node.getComments().addAll(comments);
+        comments.clear();
+        parent.add(node);
+    }
+
+    /**
+     * Parses a value starting at the current token and moves past it
+     */
+    private OCEmuConfig.Value value() throws IOException {
+        OCEmuConfig.Value result;
+        switch (token) {
+            case STRING:
+                result = OCEmuConfig.Value.string(text.toString());
+                break;
+            case NUMBER:
+                result = OCEmuConfig.Value.number(text.toString());
+                break;
+            case NAME:
+                String name = text.toString();
+                if (name.equals("true") || name.equals("false")) {
+                    result = OCEmuConfig.Value.bool(Boolean.parseBoolean(name));
+                } else if (name.equals("nil")) {
+                    result = OCEmuConfig.Value.NIL;
+                } else {
+                    throw error("unexpected '" + name + "', expected a value");
+                }
+                break;
+            case OPEN:
+                next();
+                return OCEmuConfig.Value.table(tableItems());
+            default:
+                throw error("expected a value, got " + describe());
+        }
+        next();
+        return result;
+    }
+
+    /**
+     * Parses comma-separated values up to and past the closing brace
+     */
+    private List<OCEmuConfig.Value> tableItems() throws IOException {
+        List<OCEmuConfig.Value> values = new ArrayList<>();
+        while (true) {
+            skipLayout();
+            if (token == Token.CLOSE) {
+                next();
+                return values;
+            }
+            values.add(value());
+            skipLayout();
+            if (token == Token.COMMA) {
+                next();
+            } else if (token != Token.CLOSE) {
+                throw error("expected ',' or '}' in table, got " + describe());
+            }
+        }
+    }
+
+    /**
+     * Comments and line breaks inside a table aren't kept
+     */
+    private void skipLayout() throws IOException {
+        while (token == Token.NEWLINE || token == Token.COMMENT) {
+            next();
+        }
+    }
+
+    //Tokenizer
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = in.read();
+        }
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        peeked = -2;
+        if (c == '\n') {
+            line++;
+            column = 0;
+        } else if (c != -1) {
+            column++;
+        }
+        return c;
+    }
+
+    private void next() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\t' || c == '\r' || c == ';') {
+            read();
+            c = peek();
+        }
+        text.setLength(0);
+        tokenLine = line;
+        tokenColumn = column + 1;
+        if (c == -1) {
+            token = Token.EOF;
+            return;
+        }
+        read();
+        switch (c) {
+            case '\n':
+                token = Token.NEWLINE;
+                return;
+            case '{':
+                token = Token.OPEN;
+                return;
+            case '}':
+                token = Token.CLOSE;
+                return;
+            case '=':
+                token = Token.EQUALS;
+                return;
+            case ',':
+                token = Token.COMMA;
+                return;
+            case '"':
+            case '\'':
+                string(c);
+                return;
+            case '-':
+                if (peek() == '-') {
+                    read();
+                    comment();
+                    return;
+                }
+                text.append('-');
+                number();
+                return;
+            default:
+                if (Character.isDigit(c) || c == '.') {
+                    text.append((char) c);
+                    number();
+                } else if (Character.isLetter(c) || c == '_') {
+                    text.append((char) c);
+                    while (Character.isLetterOrDigit(peek()) || peek() == '_') {
+                        text.append((char) read());
+                    }
+                    token = Token.NAME;
+                } else {
+                    throw error("unexpected character '" + (char) c + "'");
+                }
+        }
+    }
+
+    private void number() throws IOException {
+        while (Character.isLetterOrDigit(peek()) || peek() == '.' || ((peek() == '-' || peek() == '+') && (text.charAt(text.length() - 1) == 'e' || text.charAt(text.length() - 1) == 'E'))) {
+            text.append((char) read());
+        }
+        if (text.length() == 1 && text.charAt(0) == '-') {
+            throw error("unexpected '-'");
+        }
+        token = Token.NUMBER;
+    }
+
+    private void string(int quote) throws IOException {
+        while (true) {
+            int c = read();
+            if (c == -1 || c == '\n') {
+                throw error("unterminated string");
+            }
+            if (c == quote) {
+                break;
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case -1:
+                        throw error("unterminated string");
+                    default:
+                        //\" \' \\ and anything else stand for themselves
+                }
+            }
+            text.append((char) c);
+        }
+        token = Token.STRING;
+    }
+
+    /**
+     * Reads a comment after its {@code --}; long comments are kept on one
+     * line with their brackets
+     */
+    private void comment() throws IOException {
+        while (peek() != '\n' && peek() != -1) {
+            text.append((char) read());
+        }
+        if (text.toString().startsWith("[[")) {
+            while (text.indexOf("]]") < 0 && peek() != -1) {
+                int c = read();
+                text.append(c == '\n' ? ' ' : (char) c);
+            }
+        }
+        token = Token.COMMENT;
+    }
+
+    private String describe() {
+        switch (token) {
+            case EOF:
+                return "end of file";
+            case NEWLINE:
+                return "line break";
+            case STRING:
+                return "string \"" + text + "\"";
+            default:
+                return text.length() > 0 ? "'" + text + "'" : token.name().toLowerCase();
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(source + ":" + tokenLine + ":" + tokenColumn + ": " + message);
+    }
+}
@@ -39,7 +39,7 @@ public class OCEmuComponent {
     public OCEmuComponent(int componentType, String componentAddress, String... options) {
         this.type = componentType;
         this.address = componentAddress;
-        this.opts = new String[4];
+        this.opts = new String[Math.max(4, options.length)];
         System.arraycopy(options, 0, opts, 0, options.length);
     }
 
@@ -54,4 +54,8 @@ public class OCEmuComponent {
     public String getOptionAt(int pos) {
         return opts[pos];
     }
+
+    public int getOptionCount() {
+        return opts.length;
+    }
 }
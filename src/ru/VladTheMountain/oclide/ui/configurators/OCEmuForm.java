@@ -27,13 +27,10 @@ import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.Locale;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
@@ -44,6 +41,7 @@ import javax.swing.DefaultComboBoxModel;
 import javax.swing.DefaultListModel;
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
@@ -61,6 +59,7 @@ import javax.swing.KeyStroke;
 import javax.swing.LayoutStyle;
 import javax.swing.ListSelectionModel;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingWorker;
 import javax.swing.Timer;
 import javax.swing.WindowConstants;
 import javax.swing.border.TitledBorder;
@@ -71,6 +70,10 @@ import org.apache.commons.io.FileUtils;
 import ru.VladTheMountain.oclide.configurator.ocemu.ConfigMaker;
 import ru.VladTheMountain.oclide.configurator.ocemu.OCEmuLauncher;
 import ru.VladTheMountain.oclide.configurator.ocemu.component.OCEmuComponent;
+import ru.VladTheMountain.oclide.util.FileClones;
+import ru.VladTheMountain.oclide.util.ProcessSupervisor;
+import ru.VladTheMountain.oclide.util.ProjectSync;
+import ru.VladTheMountain.oclide.util.ProjectWatcher;
 import ru.VladTheMountain.oclide.util.UUIDGenerator;
 
 /**
@@ -86,26 +89,51 @@ public class OCEmuForm extends javax.swing.JFrame {
     private static final long serialVersionUID = 1L;
 
     private OCEmuComponent[] componentsArray = {};
+    private final File projectDir;
+    private ProjectSync projectSync;
+    private ProjectWatcher projectWatcher;
+    private final JCheckBoxMenuItem hotReloadItem = new JCheckBoxMenuItem("Hot reload modules");
 
     /**
      * Creates new form ConfiguratorForm
      *
      */
     public OCEmuForm() {
+        this(null);
+    }
+
+    /**
+     * Creates new form ConfiguratorForm
+     *
+     * @param project folder of the project to copy into the machine's
+     * {@code home} on launch, or {@code null}
+     */
+    public OCEmuForm(File project) {
+        this.projectDir = project;
         Timer t = new Timer(300, (ActionEvent e) -> {
             this.repaint();
         });
         initComponents();
-        if (!(new File("OCEmu/.machine/ocemu.cfg").exists()) || this.componentsArray == null || this.componentsArray.length == 0) {
-            this.componentsArray = new OCEmuComponent[OCEmuLauncher.DEFAULT.length];
-            System.arraycopy(OCEmuLauncher.DEFAULT, 0, componentsArray, 0, OCEmuLauncher.DEFAULT.length);
-        } else {
+        this.hotReloadItem.setToolTipText("Signal changed modules to " + ProjectWatcher.HOOK_FILE + " in the project folder on the machine");
+        this.hotReloadItem.addActionListener((ActionEvent e) -> {
+            synchronized (this) {
+                if (this.projectWatcher != null) {
+                    this.projectWatcher.setHotReload(this.hotReloadItem.isSelected());
+                }
+            }
+        });
+        this.fileMenu.add(this.hotReloadItem, 0);
+        if (new File("OCEmu/.machine/ocemu.cfg").exists()) {
             try {
-                new ConfigMaker(this.componentsArray).readConfig(new File("OCEmu/.machine/ocemu.cfg"));
+                this.componentsArray = new ConfigMaker(this.componentsArray).readConfig(new File("OCEmu/.machine/ocemu.cfg"));
             } catch (IOException ex) {
                 Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        if (this.componentsArray == null || this.componentsArray.length == 0) {
+            this.componentsArray = new OCEmuComponent[OCEmuLauncher.DEFAULT.length];
+            System.arraycopy(OCEmuLauncher.DEFAULT, 0, componentsArray, 0, OCEmuLauncher.DEFAULT.length);
+        }
         updateComponentList();
         t.start();
     }
@@ -150,20 +178,16 @@ public class OCEmuForm extends javax.swing.JFrame {
     }
 
     /**
-     * Copies OpenOS from OCEmu's loot folder to target filesystem
+     * Lays OpenOS from OCEmu's loot folder down on the target filesystem,
+     * cloned where possible and copied otherwise
      */
     private void installOpenOS() {
         String input = "tmpfs";
         File machineDir = new File("OCEmu/.machine/" + input);
         try {
-            FileUtils.copyDirectory(new File("OCEmu/loot/openos/bin"), new File(machineDir.getAbsoluteFile() + "/bin"));
-            FileUtils.copyDirectory(new File("OCEmu/loot/openos/boot"), new File(machineDir.getAbsoluteFile() + "/boot"));
-            FileUtils.copyDirectory(new File("OCEmu/loot/openos/etc"), new File(machineDir.getAbsoluteFile() + "/etc"));
-            FileUtils.copyDirectory(new File("OCEmu/loot/openos/home"), new File(machineDir.getAbsoluteFile() + "/home"));
-            FileUtils.copyDirectory(new File("OCEmu/loot/openos/lib"), new File(machineDir.getAbsoluteFile() + "/lib"));
-            FileUtils.copyDirectory(new File("OCEmu/loot/openos/usr"), new File(machineDir.getAbsoluteFile() + "/usr"));
-            Files.copy(new File("OCEmu/loot/openos/.prop").toPath(), new File(machineDir.getAbsoluteFile() + "/.prop").toPath(), StandardCopyOption.REPLACE_EXISTING);
-            Files.copy(new File("OCEmu/loot/openos/init.lua").toPath(), new File(machineDir.getAbsoluteFile() + "/init.lua").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long started = System.nanoTime();
+            FileClones.shareTree(new File("OCEmu/loot/openos").toPath(), machineDir.toPath());
+            System.out.println("OpenOS laid down in " + (System.nanoTime() - started) / 1_000_000 + " ms");
         } catch (IOException ex) {
             Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -652,6 +676,29 @@ public class OCEmuForm extends javax.swing.JFrame {
     }//GEN-LAST:event_cancelButtonActionPerformed
 
     private void launchButtonActionPerformed(ActionEvent evt) {//GEN-FIRST:event_launchButtonActionPerformed
+        OCEmuComponent[] components = this.componentsArray.clone();
+        this.launchButton.setEnabled(false);
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                launch(components);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                launchButton.setEnabled(true);
+            }
+        }.execute();
+    }//GEN-LAST:event_launchButtonActionPerformed
+
+    /**
+     * Installs OpenOS if needed, writes the config, syncs the project and
+     * starts OCEmu. Runs off the EDT.
+     *
+     * @param components machine configuration
+     */
+    private void launch(OCEmuComponent[] components) {
         boolean isOSInstalled = false;
         String OpenOSUUID = "tmpfs";
         File machineFolder = new File("OCEmu" + FileSystems.getDefault().getSeparator() + ".machine");
@@ -677,49 +724,79 @@ public class OCEmuForm extends javax.swing.JFrame {
         System.out.println("OpenOS is installed");
         //Creating config
         try {
-            new ConfigMaker(this.componentsArray).createConfig();
+            new ConfigMaker(components).createConfig();
         } catch (IOException ex) {
             Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid config", JOptionPane.ERROR_MESSAGE);
+            return;
         }
         System.out.println("Config ready");
         //Files' copy
-        if (new File("projects").exists()) {
+        if (this.projectDir != null && this.projectDir.isDirectory()) {
+            File home = new File(".machine" + FileSystems.getDefault().getSeparator() + OpenOSUUID + FileSystems.getDefault().getSeparator() + "home");
             try {
-                //recursivelyCopyFiles(new File("projects"), new File("OCEmu"+FileSystems.getDefault().getSeparator()+".machine"+FileSystems.getDefault().getSeparator()+OpenOSUUID+FileSystems.getDefault().getSeparator()+"home"));
-                FileUtils.copyDirectory(new File("projects"), new File(/*System.getenv("APPDATA") + FileSystems.getDefault().getSeparator() + "OCEmu"*/".machine" + FileSystems.getDefault().getSeparator() + OpenOSUUID + FileSystems.getDefault().getSeparator() + "home"));
-                System.out.println("Copied " + new File("projects").getAbsolutePath() + " to " + new File(/*System.getenv("APPDATA") + FileSystems.getDefault().getSeparator() + "OCEmu"*/".machine" + FileSystems.getDefault().getSeparator() + OpenOSUUID + FileSystems.getDefault().getSeparator() + "home").getAbsolutePath());
+                ProjectSync.Result synced = sync(home).sync();
+                System.out.println("Synced " + this.projectDir.getAbsolutePath() + " to " + home.getAbsolutePath() + ": " + synced);
             } catch (IOException ex) {
                 Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        System.out.println("Files copied");
         //
-        Thread t = new Thread() {
-            @Override
-            public void run() {
-                ProcessBuilder pb;
-                pb = System.getProperty("os.name").contains("Windows") ? new ProcessBuilder("cmd.exe", "/c", "start", "/D", "OCEmu", "OCEmu\\OCEmu.exe") : new ProcessBuilder("lua", "OCEmu/boot.lua", "./.machine");
-                pb.redirectErrorStream(true).inheritIO();
-                try {
-                    Process p = pb.start();
-                    BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                    String outLine;
-                    Logger.getLogger(OCEmuForm.class.getName()).log(Level.INFO, "Starting OCEmu...");
-                    while (true) {
-                        outLine = r.readLine();
-                        if (outLine == null) {
-                            break;
-                        }
-                        System.out.println(outLine);
-                    }
-                } catch (IOException ex) {
-                    Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
-                }
+        ProcessBuilder pb = System.getProperty("os.name").contains("Windows") ? new ProcessBuilder("cmd.exe", "/c", "start", "/D", "OCEmu", "OCEmu\\OCEmu.exe") : new ProcessBuilder("lua", "OCEmu/boot.lua", "./.machine");
+        pb.redirectErrorStream(true);
+        try {
+            Logger.getLogger(OCEmuForm.class.getName()).log(Level.INFO, "Starting OCEmu...");
+            ProcessSupervisor.Child child = ProcessSupervisor.getDefault().start("OCEmu", pb);
+            if (this.projectSync != null) {
+                watch(child);
             }
-        };
-        t.start();
-        System.out.println("Tread started");
-    }//GEN-LAST:event_launchButtonActionPerformed
+        } catch (IOException ex) {
+            Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Pushes saved project files into the machine while OCEmu runs. On
+     * Windows OCEmu is detached through {@code start}, so there the watcher
+     * runs until the form is closed.
+     */
+    private synchronized void watch(ProcessSupervisor.Child child) throws IOException {
+        if (this.projectWatcher != null) {
+            this.projectWatcher.close();
+        }
+        ProjectWatcher watcher = new ProjectWatcher(this.projectSync);
+        watcher.setHotReload(this.hotReloadItem.isSelected());
+        watcher.start();
+        this.projectWatcher = watcher;
+        if (!(System.getProperty("os.name").contains("Windows"))) {
+            child.onExit().whenComplete((Integer code, Throwable error) -> {
+                watcher.close();
+            });
+        }
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (this.projectWatcher != null) {
+                this.projectWatcher.close();
+                this.projectWatcher = null;
+            }
+        }
+        super.dispose();
+    }
+
+    /**
+     * @param home the machine's home folder
+     * @return the sync of the project into {@code home}, kept between
+     * launches so the manifest is read only once
+     */
+    private synchronized ProjectSync sync(File home) {
+        if (this.projectSync == null) {
+            this.projectSync = new ProjectSync(this.projectDir.toPath(), new File(home, this.projectDir.getName()).toPath(), FileSystems.getDefault().getPath(".oclide", "ocemu-" + this.projectDir.getName() + ".manifest"));
+        }
+        return this.projectSync;
+    }
 
     private void exitItemActionPerformed(ActionEvent evt) {//GEN-FIRST:event_exitItemActionPerformed
         this.dispose();
@@ -728,9 +805,13 @@ public class OCEmuForm extends javax.swing.JFrame {
     private void importConfigItemActionPerformed(ActionEvent evt) {//GEN-FIRST:event_importConfigItemActionPerformed
         if (this.configChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             try {
-                new ConfigMaker(this.componentsArray).readConfig(this.configChooser.getSelectedFile());
+                OCEmuComponent[] imported = new ConfigMaker(this.componentsArray).readConfig(this.configChooser.getSelectedFile());
+                if (imported.length > 0) {
+                    this.componentsArray = imported;
+                }
             } catch (IOException ex) {
                 Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid config", JOptionPane.ERROR_MESSAGE);
             }
             updateComponentList();
         }
@@ -741,6 +822,7 @@ public class OCEmuForm extends javax.swing.JFrame {
             new ConfigMaker(this.componentsArray).createConfig();
         } catch (IOException ex) {
             Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid config", JOptionPane.ERROR_MESSAGE);
         }
     }//GEN-LAST:event_saveConfigItemActionPerformed
 
@@ -755,6 +837,7 @@ public class OCEmuForm extends javax.swing.JFrame {
             System.arraycopy(OCEmuLauncher.DEFAULT, 0, this.componentsArray, 0, OCEmuLauncher.DEFAULT.length);
         } catch (IOException ex) {
             Logger.getLogger(OCEmuForm.class.getName()).log(Level.SEVERE, null, ex);
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid config", JOptionPane.ERROR_MESSAGE);
         }
         updateComponentList();
     }//GEN-LAST:event_resetConfigItemActionPerformed
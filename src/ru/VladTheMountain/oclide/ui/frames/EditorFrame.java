@@ -23,28 +23,35 @@
  */
 package ru.VladTheMountain.oclide.ui.frames;
 
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
 import java.awt.Font;
+import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.accessibility.AccessibleContext;
 import javax.swing.GroupLayout;
+import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -61,11 +68,13 @@ import javax.swing.JTree;
 import javax.swing.KeyStroke;
 import javax.swing.LayoutStyle;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 import javax.swing.ToolTipManager;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.WindowConstants;
 import javax.swing.event.CaretEvent;
+import javax.swing.text.BadLocationException;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import org.apache.commons.io.FileUtils;
@@ -76,6 +85,11 @@ import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 import org.fife.ui.rsyntaxtextarea.SyntaxConstants;
 import org.fife.ui.rtextarea.RTextScrollPane;
 import org.fife.ui.rtextarea.ToolTipSupplier;
+import ru.VladTheMountain.emulator.FlameGraphPanel;
+import ru.VladTheMountain.emulator.HeadlessRunner;
+import ru.VladTheMountain.emulator.LuaProfile;
+import ru.VladTheMountain.emulator.MachineSetup;
+import ru.VladTheMountain.emulator.MemoryPanel;
 import ru.VladTheMountain.emulator.ui.OcelotEmulatorFrame;
 import ru.VladTheMountain.oclide.editor.OCLIDECompletionProvider;
 import ru.VladTheMountain.oclide.ui.configurators.AurumEmulatorForm;
@@ -85,6 +99,8 @@ import ru.VladTheMountain.oclide.ui.dialogs.CreateNewProjectDialog;
 import ru.VladTheMountain.oclide.ui.dialogs.OpenFileFileChooser;
 import ru.VladTheMountain.oclide.ui.dialogs.ProjectFileChooser;
 import ru.VladTheMountain.oclide.util.ConsoleOutputStream;
+import ru.VladTheMountain.oclide.util.ProcessSupervisor;
+import ru.VladTheMountain.oclide.util.ProjectWatcher;
 
 /**
  *
@@ -106,7 +122,116 @@ public class EditorFrame extends JFrame {
             Logger.getLogger(EditorFrame.class.getName()).log(Level.SEVERE, null, ex);
         }
         initComponents();
-        System.setOut(new PrintStream(new ConsoleOutputStream(outputTextArea)));
+        initProfileMenu();
+        System.setOut(ConsoleOutputStream.printStream(outputTextArea));
+    }
+
+    /**
+     * Adds the Lua profiler to the Deploy menu
+     */
+    private void initProfileMenu() {
+        JMenuItem profile = new JMenuItem("Profile in built-in emulator");
+        profile.addActionListener((ActionEvent e) -> {
+            profileProject();
+        });
+        emulatorMenu.add(profile);
+    }
+
+    /**
+     * Runs the selected project headless with profiling on, then shows the
+     * flame graph and memory telemetry and marks hot lines in the open files
+     */
+    private void profileProject() {
+        if (projectsTree.getSelectionPath() == null || projectsTree.getSelectionPath().getPath().length < 2) {
+            JOptionPane.showMessageDialog(this, "No project chosen. Please select a project folder in the file tree and then start profiling.", "Project not set", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        File projectDir = new File("projects/" + String.valueOf(projectsTree.getSelectionPath().getPath()[1]));
+        System.out.println("Profiling " + projectDir.getName() + "...");
+        new SwingWorker<HeadlessRunner.Result, Void>() {
+            @Override
+            protected HeadlessRunner.Result doInBackground() throws IOException {
+                HeadlessRunner runner = new HeadlessRunner(new MachineSetup());
+                runner.setProfiling(true);
+                return runner.run(projectDir);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    showProfile(projectDir, get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(EditorFrame.class.getName()).log(Level.SEVERE, null, ex);
+                    JOptionPane.showMessageDialog(EditorFrame.this, "Can't profile " + projectDir.getName() + ": " + ex.getMessage(), "Profiler", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void showProfile(File projectDir, HeadlessRunner.Result result) {
+        LuaProfile profile = result.getProfile();
+        System.out.println("Profiled " + projectDir.getName() + ": exit " + result.getStatus() + " after " + result.getTicks() + " ticks");
+        if (profile == null || profile.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No samples were collected. The program may have finished before the first sample.", "Profiler", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        markHotLines(projectDir, profile);
+        JDialog dialog = new JDialog(this, "Profile of " + projectDir.getName() + " (" + profile.getTotalMicros() / 1000 + " ms of Lua time)", false);
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("CPU", new JScrollPane(new FlameGraphPanel(profile)));
+        tabs.addTab("Memory", new JScrollPane(new MemoryPanel(profile)));
+        dialog.add(tabs, BorderLayout.CENTER);
+        JButton export = new JButton("Export...");
+        export.addActionListener((ActionEvent e) -> {
+            JFileChooser chooser = new JFileChooser(projectDir);
+            chooser.setSelectedFile(new File(projectDir, projectDir.getName() + ".profile"));
+            if (chooser.showSaveDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+                try (Writer out = Files.newBufferedWriter(chooser.getSelectedFile().toPath(), StandardCharsets.UTF_8)) {
+                    profile.export(out);
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(dialog, "Can't export the profile: " + ex.getMessage(), "Profiler", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        dialog.add(export, BorderLayout.SOUTH);
+        dialog.pack();
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
+    }
+
+    /**
+     * Highlights sampled lines in the open tabs of the project's files and
+     * puts their share of the CPU time in the gutter
+     */
+    private void markHotLines(File projectDir, LuaProfile profile) {
+        Path project = projectDir.toPath().toAbsolutePath().normalize();
+        for (int i = 0; i < this.editorTabs.getTabCount(); i++) {
+            if (!(this.editorTabs.getComponentAt(i) instanceof RTextScrollPane)) {
+                continue;
+            }
+            RTextScrollPane sp = (RTextScrollPane) this.editorTabs.getComponentAt(i);
+            sp.getTextArea().removeAllLineHighlights();
+            sp.getGutter().removeAllTrackingIcons();
+            Path file = FileSystems.getDefault().getPath(sp.getName()).toAbsolutePath().normalize();
+            if (!(file.startsWith(project))) {
+                continue;
+            }
+            sp.setIconRowHeaderEnabled(true);
+            String relative = project.relativize(file).toString().replace(File.separatorChar, '/');
+            for (LuaProfile.Line line : profile.getLines(relative)) {
+                double share = (double) line.getMicros() / profile.getTotalMicros();
+                if (share < 0.01) {
+                    break;
+                }
+                Color color = new Color(255, 64, 0, 40 + (int) (160 * share));
+                try {
+                    sp.getTextArea().addLineHighlight(line.getLine() - 1, color);
+                    sp.getGutter().addLineTrackingIcon(line.getLine() - 1, new HotLineIcon(color), String.format("%.1f%% of CPU time, %d samples", share * 100, line.getSamples()));
+                } catch (BadLocationException ex) {
+                    //The file was edited since it was run
+                }
+            }
+        }
     }
 
     /**
@@ -183,6 +308,7 @@ public class EditorFrame extends JFrame {
         }
         try {
             Files.write(f.toPath(), this.editorTabs.getComponentAt(this.editorTabs.getSelectedIndex()).getAccessibleContext().getAccessibleChild(0).getAccessibleContext().getAccessibleChild(0).getAccessibleContext().getAccessibleDescription().getBytes());
+            ProjectWatcher.saved(f.toPath());
         } catch (IOException ex) {
             Logger.getLogger(EditorFrame.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -1034,7 +1160,7 @@ projectsTree.addMouseListener(new MouseAdapter() {
             if (String.valueOf(projectsTree.getSelectionPath().getPath()[1]) == null || "".equals(String.valueOf(projectsTree.getSelectionPath().getPath()[1]))) {
                 JOptionPane.showMessageDialog(this, "Invalid project selection.", "Error: Can't run OCEmu", JOptionPane.ERROR_MESSAGE);
             } else {
-                new OCEmuForm().setVisible(true);
+                new OCEmuForm(new File("projects/" + String.valueOf(projectsTree.getSelectionPath().getPath()[1]))).setVisible(true);
             }
         } else {
             JOptionPane.showMessageDialog(this, "No project chosen. Please select a project folder in the file tree and then launch OCEmu.", "Project not set", JOptionPane.ERROR_MESSAGE);
@@ -1042,25 +1168,44 @@ projectsTree.addMouseListener(new MouseAdapter() {
     }
 
     private void runOcelot() {
+        ProcessBuilder pb = new ProcessBuilder("java", "-jar", "Ocelot" + FileSystems.getDefault().getSeparator() + "ocelot.jar");
+        pb.redirectErrorStream(true);
         try {
-            ProcessBuilder pb = new ProcessBuilder("java", "-jar", "Ocelot" + FileSystems.getDefault().getSeparator() + "ocelot.jar");
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String outLine;
             Logger.getLogger(EditorFrame.class.getName()).log(Level.INFO, "Starting Ocelot Desktop...");
-            while (true) {
-                outLine = r.readLine();
-                if (outLine == null) {
-                    break;
-                }
-                System.out.println(outLine);
-            }
+            ProcessSupervisor.getDefault().start("Ocelot", pb);
         } catch (IOException ex) {
             Logger.getLogger(EditorFrame.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
+    /**
+     * Gutter mark of a hot line
+     */
+    private static class HotLineIcon implements Icon {
+
+        private final Color color;
+
+        HotLineIcon(Color lineColor) {
+            color = new Color(lineColor.getRed(), lineColor.getGreen(), lineColor.getBlue());
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            g.setColor(color);
+            g.fillOval(x + 2, y + 2, getIconWidth() - 4, getIconHeight() - 4);
+        }
+
+        @Override
+        public int getIconWidth() {
+            return 12;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return 12;
+        }
+    }
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private JMenuItem aboutMenuItem;
     private JButton addFileButton;
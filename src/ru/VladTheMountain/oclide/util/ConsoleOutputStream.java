@@ -23,26 +23,145 @@
  */
 package ru.VladTheMountain.oclide.util;
 
-import java.io.IOException;
+import java.awt.event.ActionEvent;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 
 /**
  * Util class for redirecting {@link System.out} to {@code outputArea}
  *
+ * Bytes are decoded as UTF-8 and collected off the EDT; the collected text is
+ * appended in one chunk at most once per frame. The text area keeps at most
+ * {@code maxChars} characters, older lines are removed as new ones arrive,
+ * and text still waiting for the EDT is capped the same way.
+ *
  * @author VladTheMountain
  */
 public class ConsoleOutputStream extends OutputStream {
 
-    private JTextArea target;
+    /**
+     * Default scrollback size in characters
+     */
+    public static final int DEFAULT_MAX_CHARS = 1 << 20;
+    private static final int FRAME_MILLIS = 16;
+
+    private final JTextArea target;
+    private final int maxChars;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer undecoded = ByteBuffer.allocate(8192);
+    private final CharBuffer decoded = CharBuffer.allocate(8192);
+    private final StringBuilder pending = new StringBuilder();
+    private final Timer flusher;
+    private boolean scheduled;
 
     public ConsoleOutputStream(JTextArea area) {
+        this(area, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * @param area text area to append to
+     * @param scrollback characters kept in {@code area}
+     */
+    public ConsoleOutputStream(JTextArea area, int scrollback) {
         target = area;
+        maxChars = scrollback;
+        flusher = new Timer(FRAME_MILLIS, (ActionEvent e) -> appendPending());
+        flusher.setRepeats(false);
+    }
+
+    /**
+     * @param area text area to append to
+     * @return an auto-flushing UTF-8 print stream writing to {@code area}
+     */
+    public static PrintStream printStream(JTextArea area) {
+        try {
+            return new PrintStream(new ConsoleOutputStream(area), true, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException ex) {
+            //UTF-8 is always supported
+            throw new IllegalStateException(ex);
+        }
     }
 
     @Override
-    public void write(int b) throws IOException {
-        target.append(String.valueOf((char) b));
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
     }
 
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            int chunk = Math.min(len, undecoded.remaining());
+            undecoded.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            decode();
+        }
+        if (!(scheduled) && pending.length() > 0) {
+            scheduled = true;
+            flusher.restart();
+        }
+    }
+
+    /**
+     * Decodes the buffered bytes into {@link #pending}, keeping an incomplete
+     * trailing sequence for the next write
+     */
+    private void decode() {
+        undecoded.flip();
+        while (true) {
+            decoded.clear();
+            boolean overflow = decoder.decode(undecoded, decoded, false).isOverflow();
+            decoded.flip();
+            pending.append(decoded);
+            if (!(overflow)) {
+                break;
+            }
+        }
+        undecoded.compact();
+        if (pending.length() > maxChars) {
+            pending.delete(0, pending.length() - maxChars);
+        }
+    }
+
+    /**
+     * Appends the collected text, runs on the EDT
+     */
+    private void appendPending() {
+        String text;
+        synchronized (this) {
+            text = pending.toString();
+            pending.setLength(0);
+            scheduled = false;
+        }
+        if (text.isEmpty()) {
+            return;
+        }
+        target.append(text);
+        Document document = target.getDocument();
+        int excess = document.getLength() - maxChars;
+        if (excess > 0) {
+            //Cut whole lines where possible
+            Element root = document.getDefaultRootElement();
+            Element line = root.getElement(root.getElementIndex(excess));
+            int end = line.getEndOffset() <= document.getLength() ? line.getEndOffset() : excess;
+            try {
+                document.remove(0, Math.max(excess, Math.min(end, document.getLength())));
+            } catch (BadLocationException ex) {
+                //Can't happen, the range is inside the document
+            }
+        }
+    }
 }
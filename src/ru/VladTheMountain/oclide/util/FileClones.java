@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Copies directory trees as cheaply as the host allows.
+ *
+ * On filesystems with block cloning (btrfs, XFS, APFS...) files are cloned:
+ * the copy shares the data of the original until either side writes to it,
+ * so a layer costs no data copies up front and any number of copies can be
+ * made from one base. Elsewhere a regular copy is made.
+ *
+ * @author VladTheMountain
+ */
+public final class FileClones {
+
+    /**
+     * Source and target filesystems known not to be able to clone between
+     * each other
+     */
+    private static final Set<List<FileStore>> NO_CLONES = ConcurrentHashMap.newKeySet();
+    /**
+     * {@code cp} messages saying that cloning can't work at all, as opposed
+     * to failing for this one tree
+     */
+    private static final String[] UNSUPPORTED = {"not supported", "cross-device"};
+
+    /**
+     * Outcome of a clone attempt
+     */
+    private enum Clone {
+        DONE, UNSUPPORTED, FAILED
+    }
+
+    private FileClones() {
+    }
+
+    /**
+     * Copies the contents of {@code source} into {@code target}, replacing
+     * files that already exist there
+     *
+     * @param source directory to copy
+     * @param target directory to copy into, created if missing
+     * @throws IOException
+     */
+    public static void cloneTree(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        if (tryClone(source, target)) {
+            return;
+        }
+        copyTree(source, target);
+    }
+
+    /**
+     * Lays {@code source} down in {@code target} sharing file data with it
+     * where that is safe: the tree is cloned where the filesystem supports
+     * it, otherwise copied. Nothing is ever hard-linked, so whatever the
+     * target does to its files can't reach {@code source} or other trees laid
+     * down from it.
+     *
+     * When copying, files whose size and modification time already match
+     * their source are left alone, which makes laying the same tree down
+     * again cheap. Hard links left to {@code source} by older versions are
+     * replaced with copies first.
+     *
+     * @param source directory to share
+     * @param target directory to lay it down in, created if missing
+     * @throws IOException
+     */
+    public static void shareTree(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        unlink(source, target);
+        if (tryClone(source, target)) {
+            return;
+        }
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = target.resolve(source.relativize(file).toString());
+                if (Files.isRegularFile(copy, LinkOption.NOFOLLOW_LINKS)) {
+                    BasicFileAttributes existing = Files.readAttributes(copy, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (existing.size() == attrs.size() && existing.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                }
+                Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Deletes every file in {@code target} that is a hard link to its
+     * counterpart in {@code source}, so neither cloning nor copying writes
+     * through it
+     */
+    private static void unlink(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = target.resolve(source.relativize(file).toString());
+                if (Files.isRegularFile(copy, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(file, copy)) {
+                    Files.delete(copy);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Clones the tree unless the filesystems are known not to support it.
+     * Only failures meaning that cloning can't work between the two
+     * filesystems are remembered; anything else is retried next time.
+     *
+     * @return whether the tree was cloned
+     */
+    private static boolean tryClone(Path source, Path target) throws IOException {
+        List<FileStore> stores = Arrays.asList(Files.getFileStore(source), Files.getFileStore(target));
+        if (NO_CLONES.contains(stores)) {
+            return false;
+        }
+        Clone result = cloneWithCp(source, target);
+        if (result == Clone.UNSUPPORTED) {
+            NO_CLONES.add(stores);
+        }
+        return result == Clone.DONE;
+    }
+
+    /**
+     * Clones the tree with the system {@code cp}
+     */
+    private static Clone cloneWithCp(Path source, Path target) throws IOException {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        ProcessBuilder pb;
+        if (os.contains("linux")) {
+            pb = new ProcessBuilder("cp", "-R", "--reflink=always", source.toAbsolutePath() + "/.", target.toAbsolutePath().toString());
+        } else if (os.contains("mac")) {
+            pb = new ProcessBuilder("cp", "-cR", source.toAbsolutePath() + "/", target.toAbsolutePath().toString());
+        } else {
+            return Clone.UNSUPPORTED;
+        }
+        Path log = Files.createTempFile("oclide-cp", ".log");
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(log.toFile());
+        try {
+            Process p;
+            try {
+                p = pb.start();
+            } catch (IOException ex) {
+                //No cp at all
+                return Clone.UNSUPPORTED;
+            }
+            if (!(p.waitFor(5, TimeUnit.MINUTES))) {
+                p.destroyForcibly();
+                return Clone.FAILED;
+            }
+            if (p.exitValue() == 0) {
+                return Clone.DONE;
+            }
+            String output = readHead(log).toLowerCase(Locale.ROOT);
+            for (String message : UNSUPPORTED) {
+                if (output.contains(message)) {
+                    return Clone.UNSUPPORTED;
+                }
+            }
+            return Clone.FAILED;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Clone.FAILED;
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * @return the first few kilobytes of a {@code cp} log
+     */
+    private static String readHead(Path log) throws IOException {
+        byte[] head = new byte[8192];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(log)) {
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+                length += read;
+            }
+        }
+        return new String(head, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Plain recursive copy
+     *
+     * @param source directory to copy
+     * @param target directory to copy into
+     * @throws IOException
+     */
+    public static void copyTree(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Starts emulator processes and keeps an eye on them without blocking the
+ * caller.
+ *
+ * Each child gets two daemon threads pumping its stdout and stderr line by
+ * line into a bounded buffer of recent lines and on to a listener, and a
+ * third one waiting for it to exit. Lines beyond the buffer size push the
+ * oldest ones out.
+ *
+ * @author VladTheMountain
+ */
+public class ProcessSupervisor {
+
+    /**
+     * Lines of output kept per process by default
+     */
+    public static final int DEFAULT_BUFFERED_LINES = 2000;
+
+    private static final ProcessSupervisor SHARED = new ProcessSupervisor();
+
+    static {
+        //Don't leave emulators running after the IDE is closed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            SHARED.stopAll(2, TimeUnit.SECONDS);
+        }, "Process supervisor shutdown"));
+    }
+
+    private final List<Child> children = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return the supervisor of the IDE's emulator processes
+     */
+    public static ProcessSupervisor getDefault() {
+        return SHARED;
+    }
+
+    /**
+     * Starts a process whose output goes to {@code System.out}, prefixed
+     * with its name
+     *
+     * @param name short name shown with its output
+     * @param pb process to start
+     * @return the running child
+     * @throws IOException if the process can't be started
+     */
+    public Child start(String name, ProcessBuilder pb) throws IOException {
+        return start(name, pb, DEFAULT_BUFFERED_LINES, (String line) -> {
+            System.out.println("[" + name + "] " + line);
+        });
+    }
+
+    /**
+     * @param name short name of the process
+     * @param pb process to start; output redirected away from pipes is not
+     * pumped
+     * @param bufferedLines recent lines kept, see {@link Child#getLines()}
+     * @param listener called on a pump thread for every line
+     * @return the running child
+     * @throws IOException if the process can't be started
+     */
+    public Child start(String name, ProcessBuilder pb, int bufferedLines, Consumer<String> listener) throws IOException {
+        Child child = new Child(name, pb.start(), bufferedLines, listener);
+        children.add(child);
+        child.pump(child.process.getInputStream(), "stdout");
+        if (!(pb.redirectErrorStream())) {
+            child.pump(child.process.getErrorStream(), "stderr");
+        }
+        Thread waiter = new Thread(() -> {
+            try {
+                int code = child.process.waitFor();
+                for (Thread pump : child.pumps) {
+                    pump.join(TimeUnit.SECONDS.toMillis(1));
+                }
+                child.finished(code);
+            } catch (InterruptedException ex) {
+                child.exit.completeExceptionally(ex);
+            }
+            children.remove(child);
+        }, name + " waiter");
+        waiter.setDaemon(true);
+        waiter.start();
+        return child;
+    }
+
+    /**
+     * @return processes started by this supervisor that are still running
+     */
+    public List<Child> getChildren() {
+        return Collections.unmodifiableList(new ArrayList<>(children));
+    }
+
+    /**
+     * Asks every running child to stop, killing those that don't within
+     * {@code timeout}
+     */
+    public void stopAll(long timeout, TimeUnit unit) {
+        for (Child child : children) {
+            child.process.destroy();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Child child : children) {
+            try {
+                if (!(child.process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))) {
+                    child.process.destroyForcibly();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A supervised process
+     */
+    public static class Child {
+
+        private final String name;
+        private final Process process;
+        private final int capacity;
+        private final Consumer<String> listener;
+        private final ArrayDeque<String> lines;
+        private final List<Thread> pumps = new ArrayList<>(2);
+        private final long started = System.currentTimeMillis();
+        private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+        private volatile long ended;
+        private long lineCount;
+        private long charCount;
+        private long droppedLines;
+
+        Child(String processName, Process childProcess, int bufferedLines, Consumer<String> lineListener) {
+            name = processName;
+            process = childProcess;
+            capacity = Math.max(1, bufferedLines);
+            listener = lineListener;
+            lines = new ArrayDeque<>(Math.min(capacity, 1024));
+        }
+
+        private void pump(InputStream stream, String which) {
+            Thread pump = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        keep(line);
+                        if (listener != null) {
+                            listener.accept(line);
+                        }
+                    }
+                } catch (IOException ex) {
+                    //Stream closed with the process
+                }
+            }, name + " " + which);
+            pump.setDaemon(true);
+            pumps.add(pump);
+            pump.start();
+        }
+
+        private synchronized void keep(String line) {
+            if (lines.size() == capacity) {
+                lines.removeFirst();
+                droppedLines++;
+            }
+            lines.addLast(line);
+            lineCount++;
+            charCount += line.length() + 1;
+        }
+
+        private void finished(int code) {
+            ended = System.currentTimeMillis();
+            System.out.println("[" + name + "] exited with code " + code + " after " + getUptimeMillis() / 1000.0 + " s, " + getLineCount() + " lines of output");
+            exit.complete(code);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAlive() {
+            return process.isAlive();
+        }
+
+        /**
+         * @return completed with the exit code once the process is gone
+         */
+        public CompletableFuture<Integer> onExit() {
+            return exit;
+        }
+
+        /**
+         * @return exit code, or {@code null} while the process runs
+         */
+        public Integer getExitCode() {
+            return exit.getNow(null);
+        }
+
+        public long getStartMillis() {
+            return started;
+        }
+
+        /**
+         * @return how long the process has been (or was) running
+         */
+        public long getUptimeMillis() {
+            return (ended == 0 ? System.currentTimeMillis() : ended) - started;
+        }
+
+        /**
+         * @return the most recent lines of output, oldest first
+         */
+        public synchronized List<String> getLines() {
+            return new ArrayList<>(lines);
+        }
+
+        public synchronized long getLineCount() {
+            return lineCount;
+        }
+
+        public synchronized long getCharCount() {
+            return charCount;
+        }
+
+        /**
+         * @return lines pushed out of the buffer by newer ones
+         */
+        public synchronized long getDroppedLines() {
+            return droppedLines;
+        }
+
+        /**
+         * Asks the process to stop
+         */
+        public void destroy() {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a copy of a project folder up to date, copying only what changed.
+ *
+ * A manifest remembers the size, modification time and SHA-256 of every file
+ * copied, and the modification time of the copy. A file is copied again when
+ * its size or time changed and its content hash differs, or when the copy was
+ * changed or removed on the other side. Files removed from the project are
+ * removed from the copy; files the copy gained on its own are left alone.
+ *
+ * @author VladTheMountain
+ */
+public class ProjectSync {
+
+    private final Path source;
+    private final Path target;
+    private final Path manifestFile;
+    private final Map<String, Entry> manifest = new HashMap<>();
+    private boolean loaded;
+
+    /**
+     * @param projectDir folder to copy from
+     * @param targetDir folder to keep in sync with it
+     * @param manifestPath where to keep the manifest, should be outside of
+     * {@code targetDir}
+     */
+    public ProjectSync(Path projectDir, Path targetDir, Path manifestPath) {
+        source = projectDir;
+        target = targetDir;
+        manifestFile = manifestPath;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Brings the target folder up to date
+     *
+     * @return what was done
+     * @throws IOException if a file can't be read, copied or removed
+     */
+    public synchronized Result sync() throws IOException {
+        long started = System.nanoTime();
+        if (!(loaded)) {
+            readManifest();
+            loaded = true;
+        }
+        Result result = new Result();
+        Set<String> seen = new HashSet<>();
+        Files.createDirectories(target);
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = source.relativize(file).toString().replace('\\', '/');
+                seen.add(name);
+                update(name, file, attrs, result);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (String name : new HashSet<>(manifest.keySet())) {
+            if (!(seen.contains(name))) {
+                remove(name);
+                result.deleted++;
+                result.changed.add(name);
+            }
+        }
+        if (result.copied > 0 || result.deleted > 0 || result.rehashed > 0) {
+            writeManifest();
+        }
+        result.nanos = System.nanoTime() - started;
+        return result;
+    }
+
+    /**
+     * Copies a single file if it changed since the last sync
+     */
+    private void update(String name, Path file, BasicFileAttributes attrs, Result result) throws IOException {
+        Path copy = target.resolve(name);
+        Entry known = manifest.get(name);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        boolean copyIntact = known != null && Files.isRegularFile(copy)
+                && Files.size(copy) == known.size && Files.getLastModifiedTime(copy).toMillis() == known.copyMtime;
+        if (copyIntact && known.size == attrs.size() && known.mtime == mtime) {
+            result.unchanged++;
+            return;
+        }
+        String hash = hash(file);
+        if (copyIntact && known.hash.equals(hash)) {
+            //Touched but not changed
+            manifest.put(name, new Entry(attrs.size(), mtime, hash, known.copyMtime));
+            result.rehashed++;
+            result.unchanged++;
+            return;
+        }
+        Files.createDirectories(copy.getParent());
+        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+        manifest.put(name, new Entry(attrs.size(), mtime, hash, Files.getLastModifiedTime(copy).toMillis()));
+        result.copied++;
+        result.bytes += attrs.size();
+        result.changed.add(name);
+    }
+
+    /**
+     * Removes a file that is gone from the project, and the folders it leaves
+     * empty
+     */
+    private void remove(String name) throws IOException {
+        manifest.remove(name);
+        Path copy = target.resolve(name);
+        Files.deleteIfExists(copy);
+        for (Path dir = copy.getParent(); dir != null && dir.startsWith(target) && !(dir.equals(target)); dir = dir.getParent()) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException ex) {
+                break;
+            }
+        }
+    }
+
+    private void readManifest() throws IOException {
+        manifest.clear();
+        if (!(Files.isRegularFile(manifestFile))) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+                if (fields.length == 5) {
+                    try {
+                        manifest.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0], Long.parseLong(fields[3])));
+                    } catch (NumberFormatException ex) {
+                        //Damaged entry, the file gets copied again
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        Files.createDirectories(manifestFile.toAbsolutePath().getParent());
+        Path tmp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : manifest.entrySet()) {
+                Entry e = entry.getValue();
+                out.write(e.hash + "\t" + e.size + "\t" + e.mtime + "\t" + e.copyMtime + "\t" + entry.getKey());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            //Every JRE has SHA-256
+            throw new IllegalStateException(ex);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Manifest record of a copied file
+     */
+    private static class Entry {
+
+        private final long size;
+        private final long mtime;
+        private final String hash;
+        private final long copyMtime;
+
+        Entry(long fileSize, long fileMtime, String contentHash, long copyTime) {
+            size = fileSize;
+            mtime = fileMtime;
+            hash = contentHash;
+            copyMtime = copyTime;
+        }
+    }
+
+    /**
+     * What a {@link #sync()} did
+     */
+    public static class Result {
+
+        private final List<String> changed = new ArrayList<>();
+        private int copied;
+        private int deleted;
+        private int unchanged;
+        private int rehashed;
+        private long bytes;
+        private long nanos;
+
+        public int getCopied() {
+            return copied;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return paths, relative to the project, of the files copied or
+         * deleted
+         */
+        public List<String> getChanged() {
+            return Collections.unmodifiableList(changed);
+        }
+
+        @Override
+        public String toString() {
+            return copied + " copied (" + bytes + " bytes), " + deleted + " deleted, " + unchanged + " unchanged in " + nanos / 1_000_000 + " ms";
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes project changes into a running machine as they are saved.
+ *
+ * The project folder is watched with a {@link WatchService}; events are
+ * debounced and every quiet period ends with one {@link ProjectSync#sync()},
+ * so a burst of saves becomes a single batch of copies. Saves from the
+ * editor are also reported directly with {@link #saved(Path)}, which doesn't
+ * wait for platforms where the watch service polls.
+ *
+ * With hot reload on, each batch also bumps a {@code .oclide-reload} file in
+ * the machine listing the module names that changed, and the
+ * {@code .oclide-hotreload.lua} hook is installed next to it. Running the hook
+ * once in OpenOS (e.g. from {@code .shrc}) makes it drop changed modules
+ * from {@code package.loaded} and push an {@code oclide_reload} signal with
+ * their names.
+ *
+ * @author VladTheMountain
+ */
+public class ProjectWatcher implements Closeable {
+
+    /**
+     * File in the machine listing the modules to reload
+     */
+    public static final String SIGNAL_FILE = ".oclide-reload";
+    /**
+     * OpenOS-side hook reacting to {@link #SIGNAL_FILE}
+     */
+    public static final String HOOK_FILE = ".oclide-hotreload.lua";
+
+    private static final long DEBOUNCE_MILLIS = 150;
+    private static final String HOOK
+            = "-- Installed by OCLIDE: unloads modules the IDE has pushed new code for\n"
+            + "local event = require(\"event\")\n"
+            + "local filesystem = require(\"filesystem\")\n"
+            + "local signal = filesystem.concat(filesystem.path(debug.getinfo(1, \"S\").source:sub(2)), \"" + SIGNAL_FILE + "\")\n"
+            + "local function serial()\n"
+            + "  local file = io.open(signal, \"r\")\n"
+            + "  if not file then\n"
+            + "    return nil\n"
+            + "  end\n"
+            + "  local value = file:read(\"*l\")\n"
+            + "  local modules = {}\n"
+            + "  for name in file:lines() do\n"
+            + "    modules[#modules + 1] = name\n"
+            + "  end\n"
+            + "  file:close()\n"
+            + "  return value, modules\n"
+            + "end\n"
+            + "local seen = serial()\n"
+            + "event.timer(0.5, function()\n"
+            + "  local value, modules = serial()\n"
+            + "  if value and value ~= seen then\n"
+            + "    seen = value\n"
+            + "    for _, name in ipairs(modules) do\n"
+            + "      package.loaded[name] = nil\n"
+            + "    end\n"
+            + "    event.push(\"oclide_reload\", table.unpack(modules))\n"
+            + "  end\n"
+            + "end, math.huge)\n";
+
+    private static final Set<ProjectWatcher> ACTIVE = new CopyOnWriteArraySet<>();
+
+    private final ProjectSync sync;
+    private final WatchService watcher;
+    private final Thread thread;
+    private volatile boolean hotReload;
+    private volatile boolean dirty;
+    private volatile long lastChange;
+    private volatile boolean closed;
+    private long serial;
+
+    /**
+     * @param projectSync copies the project into the machine
+     * @throws IOException if the project can't be watched
+     */
+    public ProjectWatcher(ProjectSync projectSync) throws IOException {
+        sync = projectSync;
+        watcher = sync.getSource().getFileSystem().newWatchService();
+        register(sync.getSource());
+        thread = new Thread(this::watch, "Project watcher " + sync.getSource().getFileName());
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @param value {@code true} to signal changed modules to the machine
+     */
+    public void setHotReload(boolean value) {
+        hotReload = value;
+    }
+
+    /**
+     * Starts pushing changes, beginning with whatever changed since the
+     * last sync
+     */
+    public void start() {
+        ACTIVE.add(this);
+        changed();
+        thread.start();
+    }
+
+    /**
+     * Tells the watchers of the project containing {@code file} that it was
+     * just saved
+     *
+     * @param file saved file
+     */
+    public static void saved(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        for (ProjectWatcher active : ACTIVE) {
+            if (absolute.startsWith(active.sync.getSource().toAbsolutePath().normalize())) {
+                active.changed();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ACTIVE.remove(this);
+        try {
+            watcher.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ProjectWatcher.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private void changed() {
+        lastChange = System.currentTimeMillis();
+        dirty = true;
+    }
+
+    /**
+     * Watches {@code dir} and every folder below it
+     */
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Watcher thread body
+     */
+    private void watch() {
+        while (!(closed)) {
+            long wait = dirty ? Math.max(1, lastChange + DEBOUNCE_MILLIS - System.currentTimeMillis()) : DEBOUNCE_MILLIS;
+            WatchKey key;
+            try {
+                key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                break;
+            }
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        Path created = ((Path) key.watchable()).resolve((Path) event.context());
+                        if (Files.isDirectory(created)) {
+                            try {
+                                register(created);
+                            } catch (IOException ex) {
+                                Logger.getLogger(ProjectWatcher.class.getName()).log(Level.WARNING, null, ex);
+                            }
+                        }
+                    }
+                }
+                key.reset();
+                changed();
+            } else if (dirty && System.currentTimeMillis() - lastChange >= DEBOUNCE_MILLIS) {
+                dirty = false;
+                push();
+            }
+        }
+    }
+
+    /**
+     * Copies a batch of changes into the machine
+     */
+    private void push() {
+        try {
+            ProjectSync.Result result = sync.sync();
+            if (result.getChanged().isEmpty()) {
+                return;
+            }
+            System.out.println("Pushed " + sync.getSource().getFileName() + ": " + result);
+            if (hotReload) {
+                signal(result.getChanged());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ProjectWatcher.class.getName()).log(Level.WARNING, "Couldn't push project changes", ex);
+        }
+    }
+
+    private void signal(List<String> changed) throws IOException {
+        Path target = sync.getTarget();
+        Path hook = target.resolve(HOOK_FILE);
+        if (!(Files.exists(hook))) {
+            Files.write(hook, HOOK.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(System.currentTimeMillis()).append('-').append(++serial).append('\n');
+        for (String name : changed) {
+            if (name.endsWith(".lua")) {
+                text.append(name.substring(0, name.length() - 4).replace('/', '.')).append('\n');
+            }
+        }
+        Path tmp = target.resolve(SIGNAL_FILE + ".tmp");
+        Files.write(tmp, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, target.resolve(SIGNAL_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Which commands {@link GpuCommandCoalescer} drops or merges, and that the
+ * screen comes out the same either way
+ *
+ * @author VladTheMountain
+ */
+public class GpuCommandCoalescerTest {
+
+    @Test
+    public void fillCoveredByALaterFillIsDropped() {
+        List<GpuCommand> out = coalesce(
+                GpuCommand.fill(1, 1, 2, 2, 'a'),
+                GpuCommand.set(0, 0, "xy", false),
+                GpuCommand.fill(0, 0, 4, 4, 'b'));
+        assertEquals(1, out.size());
+        assertEquals('b', out.get(0).getValue());
+    }
+
+    @Test
+    public void copyKeepsWhatItCouldRead() {
+        List<GpuCommand> out = coalesce(
+                GpuCommand.fill(0, 0, 2, 2, 'a'),
+                GpuCommand.copy(0, 0, 2, 2, 4, 0),
+                GpuCommand.fill(0, 0, 4, 4, 'b'));
+        assertEquals(3, out.size());
+    }
+
+    @Test
+    public void partlyCoveredFillIsKept() {
+        List<GpuCommand> out = coalesce(
+                GpuCommand.fill(0, 0, 5, 5, 'a'),
+                GpuCommand.fill(0, 0, 4, 4, 'b'));
+        assertEquals(2, out.size());
+    }
+
+    @Test
+    public void adjacentSetsAreMerged() {
+        List<GpuCommand> out = coalesce(
+                GpuCommand.set(0, 0, "ab", false),
+                GpuCommand.set(2, 0, "cd", false),
+                GpuCommand.set(5, 0, "ef", false),
+                GpuCommand.set(0, 1, "g", true),
+                GpuCommand.set(0, 2, "h", true));
+        assertEquals(3, out.size());
+        assertEquals("abcd", out.get(0).getText());
+        assertEquals("ef", out.get(1).getText());
+        assertEquals("gh", out.get(2).getText());
+        assertEquals(true, out.get(2).isVertical());
+    }
+
+    @Test
+    public void setsWithAColourChangeBetweenThemAreNotMerged() {
+        List<GpuCommand> out = coalesce(
+                GpuCommand.set(0, 0, "ab", false),
+                GpuCommand.foreground(0xFF0000),
+                GpuCommand.set(2, 0, "cd", false));
+        assertEquals(3, out.size());
+    }
+
+    @Test
+    public void unusedColourChangesAreDropped() {
+        List<GpuCommand> out = coalesce(
+                GpuCommand.foreground(0xFF0000),
+                GpuCommand.background(0x0000FF),
+                GpuCommand.foreground(0x00FF00),
+                GpuCommand.set(0, 0, "a", false),
+                GpuCommand.background(0xFFFFFF));
+        assertEquals(4, out.size());
+        assertEquals(GpuCommand.Type.BACKGROUND, out.get(0).getType());
+        assertEquals(0x00FF00, out.get(1).getValue());
+        assertEquals(GpuCommand.Type.SET, out.get(2).getType());
+        assertEquals(0xFFFFFF, out.get(3).getValue());
+    }
+
+    @Test
+    public void countsCommandsInAndOut() {
+        GpuCommandCoalescer coalescer = new GpuCommandCoalescer();
+        coalescer.add(GpuCommand.set(0, 0, "a", false));
+        coalescer.add(GpuCommand.set(1, 0, "b", false));
+        coalescer.flush((GpuCommand command) -> {
+        });
+        assertEquals(2, coalescer.getCommandsIn());
+        assertEquals(1, coalescer.getCommandsApplied());
+    }
+
+    @Test
+    public void randomFramesDrawTheSameScreen() {
+        Random random = new Random(42);
+        ScreenBuffer direct = new ScreenBuffer(16, 8);
+        ScreenBuffer coalesced = new ScreenBuffer(16, 8);
+        GpuCommandCoalescer coalescer = new GpuCommandCoalescer();
+        for (int frame = 0; frame < 500; frame++) {
+            for (int i = random.nextInt(20); i > 0; i--) {
+                GpuCommand command = randomCommand(random);
+                command.applyTo(direct);
+                coalescer.add(command);
+            }
+            coalescer.flush((GpuCommand command) -> command.applyTo(coalesced));
+            for (int y = 0; y < direct.getHeight(); y++) {
+                for (int x = 0; x < direct.getWidth(); x++) {
+                    String cell = "frame " + frame + " at " + x + "," + y;
+                    assertEquals(cell, direct.getChar(x, y), coalesced.getChar(x, y));
+                    assertEquals(cell, direct.getForeground(x, y), coalesced.getForeground(x, y));
+                    assertEquals(cell, direct.getBackground(x, y), coalesced.getBackground(x, y));
+                }
+            }
+        }
+    }
+
+    private static GpuCommand randomCommand(Random random) {
+        int x = random.nextInt(20) - 2;
+        int y = random.nextInt(10) - 2;
+        switch (random.nextInt(6)) {
+            case 0:
+                return GpuCommand.fill(x, y, random.nextInt(18), random.nextInt(10), 'a' + random.nextInt(26));
+            case 1:
+                return GpuCommand.copy(x, y, random.nextInt(18), random.nextInt(10), random.nextInt(9) - 4, random.nextInt(5) - 2);
+            case 2:
+                return GpuCommand.foreground(random.nextInt(0x1000000));
+            case 3:
+                return GpuCommand.background(random.nextInt(0x1000000));
+            default:
+                StringBuilder text = new StringBuilder();
+                for (int i = random.nextInt(4) + 1; i > 0; i--) {
+                    text.append((char) ('A' + random.nextInt(26)));
+                }
+                return GpuCommand.set(x, y, text.toString(), random.nextInt(4) == 0);
+        }
+    }
+
+    private static List<GpuCommand> coalesce(GpuCommand... commands) {
+        GpuCommandCoalescer coalescer = new GpuCommandCoalescer();
+        for (GpuCommand command : commands) {
+            coalescer.add(command);
+        }
+        List<GpuCommand> out = new ArrayList<>();
+        coalescer.flush(out::add);
+        return out;
+    }
+}
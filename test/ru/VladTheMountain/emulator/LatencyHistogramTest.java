@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bucket layout and percentiles of {@link LatencyHistogram}
+ *
+ * @author VladTheMountain
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 32; value++) {
+            assertEquals(value, LatencyHistogram.index(value));
+            assertEquals(value, LatencyHistogram.upperBound(value));
+        }
+        assertEquals(0, LatencyHistogram.index(-5));
+    }
+
+    @Test
+    public void everyValueFallsInsideItsBucket() {
+        for (long value = 1; value < (1L << 41); value = value * 17 / 16 + 1) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " above its bucket", LatencyHistogram.upperBound(index) >= value);
+            assertTrue(value + " below its bucket", LatencyHistogram.upperBound(index - 1) < value);
+            //Within 1/32 of the value
+            assertTrue(value + " too coarse", LatencyHistogram.upperBound(index) - value <= value / 32);
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        int last = LatencyHistogram.index(1L << 42);
+        for (int index = 1; index <= last; index++) {
+            long low = LatencyHistogram.upperBound(index - 1) + 1;
+            assertEquals(index, LatencyHistogram.index(low));
+            assertEquals(index, LatencyHistogram.index(LatencyHistogram.upperBound(index)));
+        }
+    }
+
+    @Test
+    public void hugeValuesGoToTheLastBucket() {
+        int last = LatencyHistogram.index(Long.MAX_VALUE);
+        assertEquals(last, LatencyHistogram.index(1L << 42));
+        assertEquals(last, LatencyHistogram.index(TimeUnit.HOURS.toNanos(5)));
+    }
+
+    @Test
+    public void percentilesAreUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram interval = histogram.takeInterval();
+        assertEquals(1000, interval.getCount());
+        assertWithin(500_000, interval.getValueAtPercentile(50));
+        assertWithin(990_000, interval.getValueAtPercentile(99));
+        assertWithin(1_000_000, interval.getValueAtPercentile(100));
+        assertWithin(1_000_000, interval.getMax());
+        assertWithin(1000, interval.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void takeIntervalStartsANewOne() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        assertEquals(1, histogram.takeInterval().getCount());
+        LatencyHistogram empty = histogram.takeInterval();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getValueAtPercentile(99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " isn't an upper bound of " + expected, actual >= expected);
+        assertTrue(actual + " is too far from " + expected, actual - expected <= expected / 32);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Where {@link LuaInstrumenter} puts probes, and where it must not
+ *
+ * @author VladTheMountain
+ */
+public class LuaInstrumenterTest {
+
+    private static final String P = " " + LuaInstrumenter.PROBE + "();";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void probesFollowBlockStarts() {
+        assertEquals("while x do" + P + " x = f() end",
+                LuaInstrumenter.instrument("while x do x = f() end"));
+        assertEquals("if a then" + P + " b() elseif c then" + P + " d() else" + P + " e() end",
+                LuaInstrumenter.instrument("if a then b() elseif c then d() else e() end"));
+        assertEquals("repeat" + P + " n = n - 1 until n == 0",
+                LuaInstrumenter.instrument("repeat n = n - 1 until n == 0"));
+    }
+
+    @Test
+    public void probesFollowFunctionParameters() {
+        assertEquals("local function f(a, b)" + P + " return a end",
+                LuaInstrumenter.instrument("local function f(a, b) return a end"));
+        assertEquals("t.g = function()" + P + " end",
+                LuaInstrumenter.instrument("t.g = function() end"));
+    }
+
+    @Test
+    public void keywordsInsideLongerNamesAreIgnored() {
+        String source = "local done, thenable, elsewhere, do_it = 1, 2, 3, 4";
+        assertEquals(source, LuaInstrumenter.instrument(source));
+    }
+
+    @Test
+    public void stringsAreLeftAlone() {
+        String source = "print(\"do then else\", 'repeat \\' do', \"function(x)\")";
+        assertEquals(source, LuaInstrumenter.instrument(source));
+    }
+
+    @Test
+    public void commentsAreLeftAlone() {
+        String source = "-- do then else\nx = 1 --[[ while x do\nend ]] y = 2\n--[==[ do ]] then ]==]";
+        assertEquals(source, LuaInstrumenter.instrument(source));
+    }
+
+    @Test
+    public void longStringsAreLeftAlone() {
+        String source = "s = [[do\nthen]] t = [=[ ]] do ]=] u = [==[ function() ]==]";
+        assertEquals(source, LuaInstrumenter.instrument(source));
+    }
+
+    @Test
+    public void unterminatedLongStringRunsToTheEnd() {
+        String source = "s = [[ do\nthen";
+        assertEquals(source, LuaInstrumenter.instrument(source));
+    }
+
+    @Test
+    public void indexingIsNotALongBracket() {
+        assertEquals("x = t[i] do" + P + " end", LuaInstrumenter.instrument("x = t[i] do end"));
+        assertEquals("x = t[ [[k]] ] do" + P + " end", LuaInstrumenter.instrument("x = t[ [[k]] ] do end"));
+    }
+
+    @Test
+    public void numbersWithLettersAreNotNames() {
+        String source = "x = 0xdo + 1e-5 + 0x1p+4";
+        assertEquals(source, LuaInstrumenter.instrument(source));
+    }
+
+    @Test
+    public void linesAreKept() {
+        String source = "#!/bin/lua\nfor i = 1, 10 do\n  print(i)\nend\n";
+        String instrumented = LuaInstrumenter.instrument(source);
+        assertEquals("#!/bin/lua\nfor i = 1, 10 do" + P + "\n  print(i)\nend\n", instrumented);
+    }
+
+    @Test
+    public void treeInstrumentsOnlyLuaFiles() throws IOException {
+        Path lua = folder.newFolder("lib").toPath().resolve("a.lua");
+        Path text = folder.getRoot().toPath().resolve("notes.txt");
+        Files.write(lua, "while true do end".getBytes(StandardCharsets.UTF_8));
+        Files.write(text, "while true do end".getBytes(StandardCharsets.UTF_8));
+        LuaInstrumenter.instrumentTree(folder.getRoot().toPath());
+        assertEquals("while true do" + P + " end", new String(Files.readAllBytes(lua), StandardCharsets.UTF_8));
+        assertEquals("while true do end", new String(Files.readAllBytes(text), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Writing and reading back {@link ReplayLog}s
+ *
+ * @author VladTheMountain
+ */
+public class ReplayLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stringsOfAnyLengthRoundTrip() throws IOException {
+        char[] paste = new char[200_000];
+        Arrays.fill(paste, 'ж');
+        for (String value : new String[]{"", "a", "łódź 🙂", new String(paste)}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ReplayLog.writeString(new DataOutputStream(bytes), value);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(value, ReplayLog.readString(in));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedStringIsAnError() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ReplayLog.writeString(new DataOutputStream(bytes), "truncated");
+        byte[] cut = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        ReplayLog.readString(new DataInputStream(new ByteArrayInputStream(cut)));
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("run.replay");
+        //Deltas needing one, two and several varint bytes
+        long[] ticks = {0, 127, 128, 300, 1L << 40, (1L << 40) + 1};
+        try (ReplayLog.Recorder recorder = new ReplayLog.Recorder(file, 20)) {
+            recorder.input(ticks[0], 0, MachineInput.key(true, 'a', 30));
+            recorder.input(ticks[1], 3, MachineInput.clipboard("pasted\ntext"));
+            recorder.input(ticks[2], 200, MachineInput.mouse(MachineInput.Type.MOUSE_DOWN, 12, 7, 1));
+            recorder.crash(ticks[3], "too long without yielding");
+            recorder.crash(ticks[4], null);
+            recorder.end(ticks[5]);
+        }
+        ReplayLog log = ReplayLog.read(file);
+        assertEquals(20, log.getTargetTps(), 0);
+        assertEquals(ticks[5], log.getEndTick());
+        List<ReplayLog.Entry> entries = log.getEntries();
+        assertEquals(5, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(ticks[i], entries.get(i).getTick());
+        }
+        assertEquals(MachineInput.Type.KEY_DOWN, entries.get(0).getInput().getType());
+        assertEquals('a', entries.get(0).getInput().getCharacter());
+        assertEquals(30, entries.get(0).getInput().getCode());
+        assertEquals(3, entries.get(1).getView());
+        assertEquals("pasted\ntext", entries.get(1).getInput().getText());
+        assertEquals(200, entries.get(2).getView());
+        assertEquals(12, entries.get(2).getInput().getX());
+        assertEquals(7, entries.get(2).getInput().getY());
+        assertEquals(1, entries.get(2).getInput().getButton());
+        assertNull(entries.get(3).getInput());
+        assertEquals("too long without yielding", entries.get(3).getCrash());
+        assertEquals("", entries.get(4).getCrash());
+    }
+
+    @Test
+    public void logCutShortIsReadUpToTheLastRecord() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("cut.replay");
+        try (ReplayLog.Recorder recorder = new ReplayLog.Recorder(file, 20)) {
+            recorder.input(5, 0, MachineInput.key(false, 'b', 48));
+        }
+        ReplayLog log = ReplayLog.read(file);
+        assertEquals(-1, log.getEndTick());
+        assertEquals(1, log.getEntries().size());
+        assertEquals(5, log.getEntries().get(0).getTick());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("other.replay");
+        Files.write(file, "not a replay log".getBytes("UTF-8"));
+        ReplayLog.read(file);
+    }
+}
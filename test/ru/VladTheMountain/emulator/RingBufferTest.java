@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bounds, order and hand-over between threads of {@link RingBuffer}
+ *
+ * @author VladTheMountain
+ */
+public class RingBufferTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(1, new RingBuffer<>(1).capacity());
+        assertEquals(8, new RingBuffer<>(5).capacity());
+        assertEquals(8, new RingBuffer<>(8).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacityIsRejected() {
+        new RingBuffer<>(0);
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+    }
+
+    @Test
+    public void pollIsFirstInFirstOutAcrossWrapAround() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 10; round++) {
+            while (ring.offer(next)) {
+                next++;
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), ring.poll());
+            }
+        }
+        Integer value;
+        while ((value = ring.poll()) != null) {
+            assertEquals(Integer.valueOf(expected++), value);
+        }
+        assertEquals(next, expected);
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void drainStopsAtMax() {
+        RingBuffer<String> ring = new RingBuffer<>(8);
+        for (String s : new String[]{"a", "b", "c", "d"}) {
+            ring.offer(s);
+        }
+        List<String> drained = new ArrayList<>();
+        assertEquals(3, ring.drain(drained::add, 3));
+        assertEquals(Arrays.asList("a", "b", "c"), drained);
+        assertEquals(1, ring.drain(drained::add, 3));
+        assertEquals(0, ring.drain(drained::add, 3));
+    }
+
+    @Test(timeout = 30000)
+    public void oneProducerAndOneConsumerSeeEveryElementInOrder() throws InterruptedException {
+        final int count = 1_000_000;
+        RingBuffer<Integer> ring = new RingBuffer<>(64);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            int expected = 0;
+            while (expected < count) {
+                Integer value = ring.poll();
+                if (value == null) {
+                    Thread.yield();
+                } else if (value != expected++) {
+                    failure.set("Expected " + (expected - 1) + ", got " + value);
+                    return;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!(ring.offer(i))) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        assertNull(failure.get());
+        assertNull(ring.poll());
+    }
+}
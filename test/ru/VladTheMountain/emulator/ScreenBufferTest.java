@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Clipping and damage tracking of {@link ScreenBuffer}
+ *
+ * @author VladTheMountain
+ */
+public class ScreenBufferTest {
+
+    private ScreenBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new ScreenBuffer(10, 5);
+        buffer.takeDamage();
+    }
+
+    @Test
+    public void newBufferIsAllDirty() {
+        ScreenBuffer fresh = new ScreenBuffer(10, 5);
+        assertEquals(Collections.singletonList(new Rectangle(0, 0, 10, 5)), fresh.takeDamage().getDirty());
+        assertTrue(fresh.takeDamage().isEmpty());
+    }
+
+    @Test
+    public void fillIsClippedToTheScreen() {
+        buffer.fill(-2, -1, 5, 3, '#');
+        assertEquals("###       ", row(0));
+        assertEquals("###       ", row(1));
+        assertEquals("          ", row(2));
+        ScreenBuffer.Damage damage = buffer.takeDamage();
+        assertTrue(damage.getCopies().isEmpty());
+        assertEquals(Collections.singletonList(new Rectangle(0, 0, 3, 2)), damage.getDirty());
+    }
+
+    @Test
+    public void fillOutsideTheScreenDoesNothing() {
+        buffer.fill(10, 0, 3, 3, '#');
+        buffer.fill(0, 5, 3, 3, '#');
+        buffer.fill(-5, -5, 5, 5, '#');
+        buffer.fill(2, 2, 0, 2, '#');
+        assertTrue(buffer.takeDamage().isEmpty());
+    }
+
+    @Test
+    public void setIsClippedToTheScreen() {
+        buffer.set(8, 0, "abcd", false);
+        buffer.set(0, 3, "xyz", true);
+        assertEquals("        ab", row(0));
+        assertEquals('x', buffer.getChar(0, 3));
+        assertEquals('y', buffer.getChar(0, 4));
+    }
+
+    @Test
+    public void copyIsClippedSoTheTargetStaysOnScreen() {
+        buffer.set(0, 0, "abcdefghij", false);
+        buffer.takeDamage();
+        buffer.copy(0, 0, 10, 1, 3, 0);
+        assertEquals("abcabcdefg", row(0));
+        ScreenBuffer.Damage damage = buffer.takeDamage();
+        assertTrue(damage.getDirty().isEmpty());
+        assertEquals(1, damage.getCopies().size());
+        ScreenBuffer.Copy copy = damage.getCopies().get(0);
+        assertEquals(new Rectangle(0, 0, 7, 1), copy.getSource());
+        assertEquals(new Rectangle(3, 0, 7, 1), copy.getTarget());
+    }
+
+    @Test
+    public void copyIsClippedSoTheSourceStaysOnScreen() {
+        buffer.set(0, 0, "abcdefghij", false);
+        buffer.copy(-3, 0, 6, 1, 5, 0);
+        assertEquals("abcdeabcij", row(0));
+    }
+
+    @Test
+    public void overlappingCopiesMoveTheCells() {
+        buffer.set(0, 0, "1234", true);
+        buffer.copy(0, 0, 1, 4, 0, 1);
+        assertEquals("11234", column(0));
+        buffer.set(0, 0, "abcdefghij", false);
+        buffer.copy(1, 0, 9, 1, -1, 0);
+        assertEquals("bcdefghijj", row(0));
+    }
+
+    @Test
+    public void copyOffTheScreenDoesNothing() {
+        buffer.set(0, 0, "abcdefghij", false);
+        buffer.takeDamage();
+        buffer.copy(0, 0, 5, 5, -10, 0);
+        buffer.copy(0, 0, 5, 5, 0, 5);
+        assertEquals("abcdefghij", row(0));
+        assertTrue(buffer.takeDamage().isEmpty());
+    }
+
+    @Test
+    public void copyingUndrawnCellsMakesTheirTargetDirty() {
+        buffer.set(0, 0, "ab", false);
+        buffer.copy(0, 0, 2, 1, 0, 2);
+        ScreenBuffer.Damage damage = buffer.takeDamage();
+        assertEquals(1, damage.getCopies().size());
+        assertTrue(damage.getDirty().contains(new Rectangle(0, 0, 2, 1)));
+        assertTrue(damage.getDirty().contains(new Rectangle(0, 2, 2, 1)));
+    }
+
+    @Test
+    public void touchingDirtyRectanglesAreMerged() {
+        buffer.set(0, 0, "ab", false);
+        buffer.set(2, 0, "cd", false);
+        buffer.set(0, 3, "x", false);
+        ScreenBuffer.Damage damage = buffer.takeDamage();
+        assertEquals(2, damage.getDirty().size());
+        assertTrue(damage.getDirty().contains(new Rectangle(0, 0, 4, 1)));
+        assertTrue(damage.getDirty().contains(new Rectangle(0, 3, 1, 1)));
+    }
+
+    @Test
+    public void manyDirtyRectanglesCollapseIntoOne() {
+        ScreenBuffer big = new ScreenBuffer(40, 40);
+        big.takeDamage();
+        for (int i = 0; i < 17; i++) {
+            big.set(2 * i, 2 * i, "x", false);
+        }
+        assertEquals(Collections.singletonList(new Rectangle(0, 0, 33, 33)), big.takeDamage().getDirty());
+    }
+
+    @Test
+    public void damageBoundsCoverDirtyCellsAndCopyTargets() {
+        buffer.set(0, 0, "ab", false);
+        buffer.takeDamage();
+        assertEquals(null, buffer.getDamageBounds());
+        buffer.copy(0, 0, 2, 1, 5, 3);
+        buffer.set(9, 0, "z", false);
+        assertEquals(new Rectangle(5, 0, 5, 4), buffer.getDamageBounds());
+    }
+
+    @Test
+    public void resizingKeepsTheOverlap() {
+        buffer.set(0, 0, "abcdefghij", false);
+        buffer.setResolution(4, 2);
+        assertEquals("abcd", row(0));
+        buffer.setResolution(6, 2);
+        assertEquals("abcd  ", row(0));
+    }
+
+    private String row(int y) {
+        StringBuilder text = new StringBuilder();
+        for (int x = 0; x < buffer.getWidth(); x++) {
+            text.appendCodePoint(buffer.getChar(x, y));
+        }
+        return text.toString();
+    }
+
+    private String column(int x) {
+        StringBuilder text = new StringBuilder();
+        for (int y = 0; y < buffer.getHeight(); y++) {
+            text.appendCodePoint(buffer.getChar(x, y));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.emulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stopping, catch-up and backlog dropping of {@link TickScheduler}. Timings
+ * are only checked with wide margins, so a busy machine doesn't fail them.
+ *
+ * @author VladTheMountain
+ */
+public class TickSchedulerTest {
+
+    @Test(timeout = 10000)
+    public void tickReturningFalseStopsTheLoop() {
+        TickScheduler scheduler = new TickScheduler(1000);
+        AtomicInteger count = new AtomicInteger();
+        scheduler.run(() -> count.incrementAndGet() < 3);
+        assertEquals(3, count.get());
+        assertEquals(3, scheduler.getTicks());
+        assertFalse(scheduler.isRunning());
+    }
+
+    @Test(timeout = 10000)
+    public void stoppedSchedulerDoesNotRun() {
+        TickScheduler scheduler = new TickScheduler();
+        scheduler.stop();
+        scheduler.run(() -> true);
+        assertEquals(0, scheduler.getTicks());
+    }
+
+    @Test(timeout = 10000)
+    public void interruptedThreadDoesNotRun() {
+        TickScheduler scheduler = new TickScheduler();
+        Thread.currentThread().interrupt();
+        try {
+            scheduler.run(() -> true);
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, scheduler.getTicks());
+    }
+
+    @Test(timeout = 10000)
+    public void unthrottledIgnoresTheTargetRate() {
+        TickScheduler scheduler = new TickScheduler(1);
+        scheduler.setUnthrottled(true);
+        AtomicInteger count = new AtomicInteger();
+        scheduler.run(() -> count.incrementAndGet() < 1000);
+        assertEquals(1000, scheduler.getTicks());
+    }
+
+    @Test(timeout = 10000)
+    public void lateTicksAreRunBackToBack() {
+        //10 ms ticks, the first one takes 200 ms
+        TickScheduler scheduler = new TickScheduler(100);
+        scheduler.setMaxBacklogTicks(1000);
+        scheduler.setMaxCatchUpTicks(1000);
+        long[] times = new long[12];
+        AtomicInteger count = new AtomicInteger();
+        scheduler.run(() -> {
+            int n = count.getAndIncrement();
+            times[n] = System.nanoTime();
+            if (n == 0) {
+                sleep(200);
+            }
+            return n < times.length - 1;
+        });
+        assertEquals(0, scheduler.getDroppedTicks());
+        //Ten ticks that were due during the stall take well under ten periods
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(times[11] - times[1]) < 60);
+    }
+
+    @Test(timeout = 10000)
+    public void backlogBeyondTheLimitIsDropped() {
+        //1 ms ticks, the first one takes 200 ms
+        TickScheduler scheduler = new TickScheduler(1000);
+        scheduler.setMaxBacklogTicks(5);
+        scheduler.setMaxCatchUpTicks(100);
+        AtomicInteger count = new AtomicInteger();
+        long started = System.nanoTime();
+        scheduler.run(() -> {
+            if (count.getAndIncrement() == 0) {
+                sleep(200);
+            }
+            return count.get() < 20;
+        });
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertEquals(20, scheduler.getTicks());
+        //About 195 ticks of the stall can't be caught up any more
+        assertTrue(scheduler.getDroppedTicks() >= 150);
+        assertTrue(scheduler.getDroppedTicks() <= elapsed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        new TickScheduler(0);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
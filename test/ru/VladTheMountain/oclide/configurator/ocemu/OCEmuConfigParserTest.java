@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.configurator.ocemu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import ru.VladTheMountain.oclide.configurator.ocemu.component.OCEmuComponent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parsing OCEmu configs and writing them back unchanged
+ *
+ * @author VladTheMountain
+ */
+public class OCEmuConfigParserTest {
+
+    private static final String CONFIG = "--Header\n"
+            + "ocemu {\n"
+            + "\n"
+            + "  --Colour\n"
+            + "  client {\n"
+            + "    monochromeColor=\"0xFFFFFF\" --trailing\n"
+            + "  }\n"
+            + "  computer {\n"
+            + "    timeout=5\n"
+            + "    lua {\n"
+            + "      allowGC=false\n"
+            + "    }\n"
+            + "  }\n"
+            + "  emulator {\n"
+            + "    components {\n"
+            + "      --The machine itself\n"
+            + "      {\"computer\", \"a0\", -1, 4194304},\n"
+            + "      {\"filesystem\", \"f1\", 7, \"loot\", \"1\", true, nil, 1e3, .5, {1, 2}},\n"
+            + "      {\"keyboard_sdl2\", \"k2\"}\n"
+            + "    }\n"
+            + "  }\n"
+            + "}\n"
+            + "--Footer\n";
+
+    @Test
+    public void configIsWrittenBackUnchanged() throws IOException {
+        assertEquals(CONFIG, parse(CONFIG).toString());
+    }
+
+    @Test
+    public void bundledTemplateIsWrittenBackUnchanged() throws IOException {
+        InputStream in = ConfigMaker.class.getResourceAsStream("/ru/VladTheMountain/oclide/resources/configurator/ocemu/ocemu.cfg");
+        assertNotNull(in);
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                text.append(buffer, 0, read);
+            }
+        }
+        assertEquals(text.toString(), parse(text.toString()).toString());
+    }
+
+    @Test
+    public void settingsAreReadByPath() throws IOException {
+        OCEmuConfig config = parse(CONFIG);
+        assertEquals("0xFFFFFF", config.getString("ocemu.client.monochromeColor", null));
+        assertEquals(5, config.getInt("ocemu.computer.timeout", 0));
+        assertEquals(false, config.getBoolean("ocemu.computer.lua.allowGC", true));
+        assertEquals(42, config.getInt("ocemu.computer.missing", 42));
+        assertEquals("trailing", config.getSection("ocemu.client").getSetting("monochromeColor").getTrailingComment().trim());
+    }
+
+    @Test
+    public void componentsAreRead() throws IOException {
+        List<OCEmuComponent> components = parse(CONFIG).getComponents();
+        assertEquals(3, components.size());
+        assertEquals("a0", components.get(0).getComponentAddress());
+        OCEmuComponent filesystem = components.get(1);
+        assertEquals(OCEmuConfig.componentType("filesystem"), filesystem.getComponentType());
+        assertEquals(8, filesystem.getOptionCount());
+        assertEquals("loot", filesystem.getOptionAt(1));
+        assertEquals("nil", filesystem.getOptionAt(4));
+        assertEquals(OCEmuConfig.componentType("keyboard"), components.get(2).getComponentType());
+    }
+
+    @Test
+    public void unchangedComponentsKeepTheirTypes() throws IOException {
+        OCEmuConfig config = parse(CONFIG);
+        config.setComponents(config.getComponents());
+        assertEquals(CONFIG, config.toString());
+    }
+
+    @Test
+    public void editedComponentsAreWrittenBack() throws IOException {
+        OCEmuConfig config = parse(CONFIG);
+        List<OCEmuComponent> components = config.getComponents();
+        config.setComponents(Arrays.asList(components.get(2),
+                new OCEmuComponent(OCEmuConfig.componentType("filesystem"), "f1", "8", "loot", "2"),
+                new OCEmuComponent(OCEmuConfig.componentType("gpu"), "g3", "160")));
+        String text = config.toString();
+        assertTrue(text, text.contains("{\"keyboard_sdl2\", \"k2\"},\n"));
+        //Still a string, though it reads like a number
+        assertTrue(text, text.contains("{\"filesystem\", \"f1\", 8, \"loot\", \"2\"},\n"));
+        assertTrue(text, text.contains("{\"gpu\", \"g3\", 160}\n"));
+        //Dropped with the computer it described
+        assertFalse(text, text.contains("--The machine itself"));
+        assertEquals(text, parse(text).toString());
+    }
+
+    @Test
+    public void errorsNameTheLineAndColumn() {
+        assertError("ocemu {\n  timeout=\n}\n", "ocemu.cfg:2:11: expected a value");
+        assertError("ocemu {\n  timeout=5\n", "missing '}'");
+        assertError("}\n", "unexpected '}'");
+        assertError("ocemu {\n  {1 2}\n}\n", "expected ',' or '}'");
+    }
+
+    private static void assertError(String text, String expected) {
+        try {
+            parse(text);
+            fail("Parsed " + text);
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(expected));
+        }
+    }
+
+    private static OCEmuConfig parse(String text) throws IOException {
+        return OCEmuConfig.parse(new StringReader(text));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 Vladislav Gorskii.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ru.VladTheMountain.oclide.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What {@link ProjectSync} copies, skips and removes, and what its manifest
+ * remembers between runs
+ *
+ * @author VladTheMountain
+ */
+public class ProjectSyncTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path project;
+    private Path target;
+    private Path manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        project = folder.newFolder("project").toPath();
+        target = folder.getRoot().toPath().resolve("machine").resolve("home");
+        manifest = folder.getRoot().toPath().resolve("sync.manifest");
+        write(project.resolve("main.lua"), "print('hi')");
+        write(project.resolve("lib").resolve("util.lua"), "return {}");
+    }
+
+    @Test
+    public void firstSyncCopiesEverything() throws IOException {
+        ProjectSync.Result result = sync().sync();
+        assertEquals(2, result.getCopied());
+        assertEquals(0, result.getUnchanged());
+        assertEquals(Arrays.asList("lib/util.lua", "main.lua"), sorted(result));
+        assertEquals("return {}", read(target.resolve("lib").resolve("util.lua")));
+        assertTrue(Files.isRegularFile(manifest));
+    }
+
+    @Test
+    public void unchangedFilesAreSkipped() throws IOException {
+        ProjectSync sync = sync();
+        sync.sync();
+        ProjectSync.Result result = sync.sync();
+        assertEquals(0, result.getCopied());
+        assertEquals(2, result.getUnchanged());
+        assertTrue(result.getChanged().isEmpty());
+    }
+
+    @Test
+    public void manifestIsKeptBetweenRuns() throws IOException {
+        sync().sync();
+        ProjectSync.Result result = sync().sync();
+        assertEquals(0, result.getCopied());
+        assertEquals(2, result.getUnchanged());
+    }
+
+    @Test
+    public void changedFilesAreCopiedAgain() throws IOException {
+        ProjectSync sync = sync();
+        sync.sync();
+        write(project.resolve("main.lua"), "print('hello')");
+        ProjectSync.Result result = sync.sync();
+        assertEquals(1, result.getCopied());
+        assertEquals(Collections.singletonList("main.lua"), result.getChanged());
+        assertEquals("print('hello')", read(target.resolve("main.lua")));
+    }
+
+    @Test
+    public void touchedFilesAreOnlyRehashed() throws IOException {
+        ProjectSync sync = sync();
+        sync.sync();
+        Path main = project.resolve("main.lua");
+        Files.setLastModifiedTime(main, FileTime.fromMillis(Files.getLastModifiedTime(main).toMillis() + 60_000));
+        ProjectSync.Result result = sync.sync();
+        assertEquals(0, result.getCopied());
+        assertEquals(2, result.getUnchanged());
+    }
+
+    @Test
+    public void copiesChangedInTheMachineAreRestored() throws IOException {
+        ProjectSync sync = sync();
+        sync.sync();
+        write(target.resolve("main.lua"), "edited inside the emulator");
+        Files.delete(target.resolve("lib").resolve("util.lua"));
+        ProjectSync.Result result = sync.sync();
+        assertEquals(2, result.getCopied());
+        assertEquals("print('hi')", read(target.resolve("main.lua")));
+        assertEquals("return {}", read(target.resolve("lib").resolve("util.lua")));
+    }
+
+    @Test
+    public void deletedFilesAndTheirEmptyFoldersAreRemoved() throws IOException {
+        ProjectSync sync = sync();
+        sync.sync();
+        Files.delete(project.resolve("lib").resolve("util.lua"));
+        ProjectSync.Result result = sync.sync();
+        assertEquals(1, result.getDeleted());
+        assertEquals(Collections.singletonList("lib/util.lua"), result.getChanged());
+        assertFalse(Files.exists(target.resolve("lib")));
+        assertTrue(Files.exists(target.resolve("main.lua")));
+        //Remembered by the manifest too
+        assertEquals(0, sync().sync().getDeleted());
+    }
+
+    @Test
+    public void filesCreatedInTheMachineAreLeftAlone() throws IOException {
+        ProjectSync sync = sync();
+        sync.sync();
+        write(target.resolve("lib").resolve("cache.dat"), "made by the program");
+        Files.delete(project.resolve("lib").resolve("util.lua"));
+        sync.sync();
+        assertEquals("made by the program", read(target.resolve("lib").resolve("cache.dat")));
+    }
+
+    @Test
+    public void damagedManifestEntriesAreCopiedAgain() throws IOException {
+        sync().sync();
+        String text = read(manifest);
+        write(manifest, text.replaceFirst("\t[0-9]+\t", "\tbroken\t") + "garbage\n");
+        ProjectSync.Result result = sync().sync();
+        assertEquals(1, result.getCopied());
+        assertEquals(1, result.getUnchanged());
+    }
+
+    private ProjectSync sync() {
+        return new ProjectSync(project, target, manifest);
+    }
+
+    private static List<String> sorted(ProjectSync.Result result) {
+        List<String> changed = new ArrayList<>(result.getChanged());
+        Collections.sort(changed);
+        return changed;
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}